@@ -177,10 +177,9 @@ public class ActivateHandler extends BaseHandler implements StatusChangeHandlerP
         String id = integration.getId().orElse(null);
         String username = integration.getUserId().orElseThrow(() -> new IllegalStateException("Couldn't find the user of the integration"));
 
-        return (int) dataManager.fetchAll(Integration.class).getItems()
+        return (int) dataManager.fetchAllByIndex(Integration.class, "userId", username)
             .stream()
             .filter(i -> !i.idEquals(id)) //The "current" integration will already be in the database.
-            .filter(i -> i.getUserId().map(username::equals).orElse(Boolean.FALSE))
             .filter(i -> Integration.Status.Activated.equals(i.getStatus()))
             .count();
     }
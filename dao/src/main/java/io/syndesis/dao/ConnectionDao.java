@@ -15,6 +15,10 @@
  */
 package io.syndesis.dao;
 
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Function;
+
 import io.syndesis.dao.manager.DataAccessObject;
 import io.syndesis.model.connection.Connection;
 
@@ -26,4 +30,12 @@ public interface ConnectionDao extends DataAccessObject<Connection> {
         return Connection.class;
     }
 
+    @Override
+    default Map<String, Function<Connection, ?>> getIndexedProperties() {
+        Map<String, Function<Connection, ?>> properties = new HashMap<>();
+        properties.put("name", Connection::getName);
+        properties.put("connectorId", Connection::getConnectorId);
+        return properties;
+    }
+
 }
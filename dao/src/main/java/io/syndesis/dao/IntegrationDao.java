@@ -16,8 +16,16 @@
 package io.syndesis.dao;
 
 
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
 import io.syndesis.dao.manager.DataAccessObject;
 import io.syndesis.model.integration.Integration;
+import io.syndesis.model.integration.Step;
 
 public interface IntegrationDao extends DataAccessObject<Integration> {
 
@@ -26,4 +34,20 @@ public interface IntegrationDao extends DataAccessObject<Integration> {
         return Integration.class;
     }
 
+    @Override
+    default Map<String, Function<Integration, ?>> getIndexedProperties() {
+        Map<String, Function<Integration, ?>> properties = new HashMap<>();
+        properties.put("name", Integration::getName);
+        properties.put("userId", Integration::getUserId);
+        properties.put("currentStatus", Integration::getCurrentStatus);
+        // not a property of the model, the ids of the extensions used by the steps.
+        properties.put("extensionId", integration -> integration.getSteps().stream()
+            .filter(Objects::nonNull)
+            .map(Step::getExtension)
+            .filter(Optional::isPresent)
+            .map(extension -> extension.get().getExtensionId())
+            .collect(Collectors.toSet()));
+        return properties;
+    }
+
 }
@@ -0,0 +1,279 @@
+/**
+ * Copyright (C) 2016 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.syndesis.dao.manager;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.OptionalLong;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import io.syndesis.model.ListResult;
+import io.syndesis.model.WithId;
+
+/**
+ * The entities of a {@link DataAccessObject}, held as an immutable
+ * {@link ListResult} that's handed out as is until the entities change.
+ * The snapshot is read from the {@link DataAccessObject} once, after that
+ * only the entities {@link #changed(String)} since the last read are
+ * fetched again, on the next {@link #get(DataAccessObject)} or
+ * {@link #find(DataAccessObject, String, String)}.
+ *
+ * When the {@link DataAccessObject} tracks versions, the accesses also
+ * check the version of the collection, at most once per staleness bound,
+ * so the entities written on another node are seen too.  The entities
+ * who's version changed are then fetched again.  The writes made on this
+ * node are {@link #changed(String)} by the events of the DataManager and
+ * of the storage.
+ *
+ * The entities are also indexed by the values of the
+ * {@link DataAccessObject#getIndexedProperties()}, and the indexes are kept
+ * up to date along with the snapshot.
+ */
+/* default */ final class CollectionSnapshot<T extends WithId<T>> {
+
+    private final Map<String, Function<T, ?>> indexedProperties;
+    private final long stalenessNanos;
+    // The ids to fetch again, tracked outside of the lock so writers never wait on a rebuild.
+    private final Set<String> changed = ConcurrentHashMap.newKeySet();
+    private volatile boolean invalid = true;
+    // The version of the collection the entities were read at, written after the result.
+    private volatile long version;
+    // When the version was last found current.
+    private volatile long checkedAt;
+    private volatile ListResult<T> result;
+    private Map<String, T> entities;
+    // The versions of the entities by id, null if the DataAccessObject doesn't track versions.
+    private Map<String, Long> versions;
+    // property -> value -> id -> entity, replaced as a whole when all the entities are read again.
+    private volatile Map<String, Map<String, Map<String, T>>> indexes = Collections.emptyMap();
+
+    /**
+     * @param staleness the milliseconds the version of the collection is trusted for, 0 checks it on every access.
+     */
+    /* default */ CollectionSnapshot(Map<String, Function<T, ?>> indexedProperties, long staleness) {
+        this.indexedProperties = indexedProperties;
+        this.stalenessNanos = TimeUnit.MILLISECONDS.toNanos(staleness);
+    }
+
+    /**
+     * @return the entities, the same instance for as long as they don't change.
+     */
+    /* default */ ListResult<T> get(DataAccessObject<T> dao) {
+        long seen = version;
+        ListResult<T> current = result;
+        if (current != null && isCurrent(dao, seen)) {
+            return current;
+        }
+        synchronized (this) {
+            update(dao);
+            if (result == null) {
+                result = ListResult.of(entities.values());
+            }
+            return result;
+        }
+    }
+
+    /* default */ boolean isIndexed(String property) {
+        return indexedProperties.containsKey(property);
+    }
+
+    /**
+     * @return the entities who's indexed property has the value, looked up in the time it takes to copy them.
+     */
+    /* default */ List<T> find(DataAccessObject<T> dao, String property, String value) {
+        if (!isIndexed(property)) {
+            throw new IllegalArgumentException("The property " + property + " of " + dao.getType().getSimpleName() + " isn't indexed");
+        }
+        if (!isCurrent(dao, version)) {
+            synchronized (this) {
+                update(dao);
+            }
+        }
+        Map<String, Map<String, T>> index = indexes.get(property);
+        Map<String, T> found = index == null ? null : index.get(value);
+        if (found == null) {
+            return Collections.emptyList();
+        }
+        return new ArrayList<>(found.values());
+    }
+
+    /**
+     * Fetches the entity again on the next {@link #get(DataAccessObject)}.
+     */
+    /* default */ void changed(String id) {
+        changed.add(id);
+    }
+
+    /**
+     * Reads all the entities again on the next {@link #get(DataAccessObject)}.
+     */
+    /* default */ void invalidate() {
+        invalid = true;
+    }
+
+    private boolean isCurrent(DataAccessObject<T> dao, long seen) {
+        if (invalid || !changed.isEmpty()) {
+            return false;
+        }
+        long now = System.nanoTime();
+        if (now - checkedAt < stalenessNanos) {
+            return true;
+        }
+        OptionalLong current = dao.fetchAllVersion();
+        if (current == null || !current.isPresent() || current.getAsLong() == seen) {
+            checkedAt = now;
+            return true;
+        }
+        return false;
+    }
+
+    // called holding the lock
+    private void update(DataAccessObject<T> dao) {
+        if (!invalid && System.nanoTime() - checkedAt < stalenessNanos) {
+            // the versions were read recently, only the entities changed on this node are fetched.
+            Set<String> ids = new LinkedHashSet<>(changed);
+            if (!ids.isEmpty()) {
+                fetch(dao, ids);
+            }
+            return;
+        }
+        // read before the entities, an entity written in between is fetched again the next time.
+        long now = System.nanoTime();
+        OptionalLong all = dao.fetchAllVersion();
+        Optional<Map<String, Long>> read = dao.fetchVersions();
+        Map<String, Long> readVersions = read == null ? null : read.orElse(null);
+        if (invalid) {
+            readAll(dao);
+        } else {
+            Set<String> ids = new LinkedHashSet<>(changed);
+            if (readVersions != null && versions != null) {
+                for (Map.Entry<String, Long> entityVersion : readVersions.entrySet()) {
+                    if (!entityVersion.getValue().equals(versions.get(entityVersion.getKey()))) {
+                        ids.add(entityVersion.getKey());
+                    }
+                }
+                // the deleted entities have no version anymore.
+                for (String id : versions.keySet()) {
+                    if (!readVersions.containsKey(id)) {
+                        ids.add(id);
+                    }
+                }
+            }
+            if (!ids.isEmpty()) {
+                fetch(dao, ids);
+            }
+        }
+        versions = readVersions;
+        version = all == null || !all.isPresent() ? 0 : all.getAsLong();
+        checkedAt = now;
+    }
+
+    private void readAll(DataAccessObject<T> dao) {
+        // cleared first, the changes made during the read are applied again the next time.
+        invalid = false;
+        changed.clear();
+        Map<String, T> read = new LinkedHashMap<>();
+        Map<String, Map<String, Map<String, T>>> readIndexes = new ConcurrentHashMap<>();
+        try {
+            for (T entity : dao.fetchAll().getItems()) {
+                entity.getId().ifPresent(id -> {
+                    read.put(id, entity);
+                    index(readIndexes, id, entity);
+                });
+            }
+        } catch (@SuppressWarnings("PMD.AvoidCatchingGenericException") RuntimeException e) {
+            invalid = true;
+            throw e;
+        }
+        entities = read;
+        indexes = readIndexes;
+        result = null;
+    }
+
+    private void fetch(DataAccessObject<T> dao, Set<String> ids) {
+        for (String id : ids) {
+            changed.remove(id);
+            T entity;
+            try {
+                entity = dao.fetch(id);
+            } catch (@SuppressWarnings("PMD.AvoidCatchingGenericException") RuntimeException e) {
+                changed.add(id);
+                throw e;
+            }
+            // an updated entity keeps its place, a created one goes last.
+            T previous = entity == null ? entities.remove(id) : entities.put(id, entity);
+            reindex(indexes, id, previous, entity);
+        }
+        result = null;
+    }
+
+    private void index(Map<String, Map<String, Map<String, T>>> into, String id, T entity) {
+        reindex(into, id, null, entity);
+    }
+
+    /**
+     * Moves the entity from the values of the previous version to the values
+     * of the current one, adding before removing so a value that didn't change
+     * always finds the entity.  Either version can be null.
+     */
+    private void reindex(Map<String, Map<String, Map<String, T>>> into, String id, T previous, T current) {
+        for (Map.Entry<String, Function<T, ?>> property : indexedProperties.entrySet()) {
+            Map<String, Map<String, T>> index = into.computeIfAbsent(property.getKey(), k -> new ConcurrentHashMap<>());
+            List<String> currentValues = current == null ? Collections.emptyList() : values(property.getValue().apply(current));
+            for (String value : currentValues) {
+                index.computeIfAbsent(value, v -> new ConcurrentHashMap<>()).put(id, current);
+            }
+            if (previous != null) {
+                for (String value : values(property.getValue().apply(previous))) {
+                    if (!currentValues.contains(value)) {
+                        index.computeIfPresent(value, (v, ids) -> {
+                            ids.remove(id);
+                            return ids.isEmpty() ? null : ids;
+                        });
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the values an entity is indexed under: none for a null or an empty
+     * {@link Optional}, each of the values of a {@link Collection}.
+     */
+    private static List<String> values(Object value) {
+        Object unwrapped = value instanceof Optional ? ((Optional<?>) value).orElse(null) : value;
+        if (unwrapped == null) {
+            return Collections.emptyList();
+        }
+        if (unwrapped instanceof Collection) {
+            List<String> values = new ArrayList<>();
+            for (Object item : (Collection<?>) unwrapped) {
+                values.addAll(values(item));
+            }
+            return values;
+        }
+        return Collections.singletonList(String.valueOf(unwrapped));
+    }
+}
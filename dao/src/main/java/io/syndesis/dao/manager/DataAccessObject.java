@@ -15,7 +15,14 @@
  */
 package io.syndesis.dao.manager;
 
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.OptionalLong;
 import java.util.Set;
+import java.util.function.Function;
 
 import io.syndesis.model.ListResult;
 import io.syndesis.model.WithId;
@@ -41,6 +48,70 @@ public interface DataAccessObject<T extends WithId<T>> {
      */
     T fetch(String id);
 
+    /**
+     * Fetches several entities, implementations can fetch them all at once.
+     * @param ids   The ids.
+     * @return      The entities that exist, by id.
+     */
+    default Map<String, T> fetchMany(Collection<String> ids) {
+        Map<String, T> result = new HashMap<>();
+        for (String id : ids) {
+            T entity = fetch(id);
+            if (entity != null) {
+                result.put(id, entity);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Fetches the version of an entity, which changes every time the entity is modified.
+     * @param id    The id.
+     * @return      The version, or empty if versions are not tracked.
+     */
+    default OptionalLong fetchVersion(String id) {
+        return OptionalLong.empty();
+    }
+
+    /**
+     * Fetches a version that changes every time any of the entities is modified.
+     * @return      The version, or empty if versions are not tracked.
+     */
+    default OptionalLong fetchAllVersion() {
+        return OptionalLong.empty();
+    }
+
+    /**
+     * Fetches the versions of all the entities, see {@link #fetchVersion(String)}.
+     * @return      The versions by id of the existing entities, or empty if versions are not tracked.
+     */
+    default Optional<Map<String, Long>> fetchVersions() {
+        return Optional.empty();
+    }
+
+    /**
+     * Tells which entity an event of the {@link io.syndesis.core.EventBus} changed,
+     * for the writes made to the storage without going through this object.
+     * @param event The type of the event.
+     * @param data  The data of the event.
+     * @return      The id of the changed entity, an empty string if any of them may have changed,
+     *              or null if the event didn't change the entities.
+     */
+    default String changedId(String event, String data) {
+        return null;
+    }
+
+    /**
+     * The properties {@link DataManager} keeps an in memory index of, see
+     * {@link DataManager#fetchAllByIndex(Class, String, String)}.  An entity is
+     * indexed under the value the function returns, under none for null or
+     * an empty Optional, and under each of the values of a Collection.
+     * @return      The functions that read the properties, by property name.
+     */
+    default Map<String, Function<T, ?>> getIndexedProperties() {
+        return Collections.emptyMap();
+    }
+
     /**
      * Fetches all ids that have the specified property with the given value.
      *
@@ -67,7 +138,7 @@ public interface DataAccessObject<T extends WithId<T>> {
     /**
      * Updates the specified entity.
      * @param entity    The entity.
-     * @return          The previous value or null.
+     * @return          The updated entity, or null when it didn't exist.
      */
     T update(T entity);
 
@@ -88,6 +159,23 @@ public interface DataAccessObject<T extends WithId<T>> {
     boolean delete(String id);
 
 
+    /**
+     * Runs the work so that the calls it makes to this object share a single
+     * transaction, for implementations that support transactions.
+     * @param work      The work.
+     */
+    default void inTransaction(Runnable work) {
+        work.run();
+    }
+
+    /**
+     * @return true if the current thread runs in a transaction of {@link #inTransaction(Runnable)},
+     *              who's writes the other threads don't see yet.
+     */
+    default boolean isInTransaction() {
+        return false;
+    }
+
     default void deleteAll() {
         ListResult<T> l = fetchAll();
         for (T entity : l.getItems()) {
@@ -16,12 +16,21 @@
 package io.syndesis.dao.manager;
 
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.OptionalLong;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.function.Function;
 
 import javax.annotation.PostConstruct;
@@ -39,6 +48,7 @@ import io.syndesis.model.ListResult;
 import io.syndesis.model.WithId;
 
 import org.infinispan.Cache;
+import org.infinispan.configuration.cache.StorageType;
 import org.infinispan.manager.CacheContainer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -47,10 +57,14 @@ import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
 @Service
+@SuppressWarnings("PMD.GodClass")
 public class DataManager implements DataAccessObjectRegistry {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(DataManager.class.getName());
 
+    // The most ids remembered as missing.
+    private static final int MAX_MISSING = 10_000;
+
     private final CacheContainer caches;
     private final EventBus eventBus;
     private final EncryptionComponent encryptionComponent;
@@ -61,9 +75,25 @@ public class DataManager implements DataAccessObjectRegistry {
     @SuppressWarnings("PMD.ImmutableField") // @Value cannot be applied to final properties
     @Value("${deployment.load-demo-data:true}")
     private boolean loadDemoData = true;
+    @SuppressWarnings("PMD.ImmutableField") // @Value cannot be applied to final properties
+    @Value("${dao.negative-cache-ttl:5000}")
+    private long negativeCacheTtl = 5000;
+    @SuppressWarnings("PMD.ImmutableField") // @Value cannot be applied to final properties
+    @Value("${dao.snapshot-staleness:1000}")
+    private long snapshotStaleness = 1000;
 
     private final List<DataAccessObject<?>> dataAccessObjects = new ArrayList<>();
     private final Map<Class<? extends WithId<?>>, DataAccessObject<?>> dataAccessObjectMapping = new ConcurrentHashMap<>();
+    // The fetchAll results of the kinds with a DataAccessObject, by model name.
+    private final Map<String, CollectionSnapshot<?>> snapshots = new ConcurrentHashMap<>();
+    // The caches of the kinds, wrapped once when they store their entries as bytes.
+    private final Map<Kind, Map<String, ?>> kindCaches = new ConcurrentHashMap<>();
+    // The loads of the fetches in progress, and when the ids known to be missing expire, by kind and id.
+    private final ConcurrentMap<String, CompletableFuture<Object>> loading = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Long> missing = new ConcurrentHashMap<>();
+    private final LongAdder creations = new LongAdder();
+    private final LongAdder coalescedLoads = new LongAdder();
+    private final LongAdder negativeHits = new LongAdder();
 
     // Inject mandatory via constructor injection.
     @Autowired
@@ -84,6 +114,9 @@ public class DataManager implements DataAccessObjectRegistry {
         for (DataAccessObject<?> dataAccessObject : dataAccessObjects) {
             registerDataAccessObject(dataAccessObject);
         }
+        if (eventBus != null) {
+            eventBus.subscribe(DataManager.class.getName(), this::onEvent);
+        }
     }
 
     public void resetDeploymentData() {
@@ -117,18 +150,16 @@ public class DataManager implements DataAccessObjectRegistry {
             if (!id.isPresent()) {
                 LOGGER.warn("Cannot load entity from file since it's missing an id: {}", modelData.toJson());
             } else {
-                WithId<?> prev = null;
-                try {
-                    prev = this.<T>fetch(kind.getModelClass(), id.get());
-                } catch (@SuppressWarnings("PMD.AvoidCatchingGenericException") RuntimeException e) {
-                    // Lets try to wipe out the previous record in case
-                    // we are running into something like a schema change.
-                    this.<T>delete(kind.getModelClass(), id.get());
-                }
-                if (prev == null) {
-                    create(entity);
+                // fetch and create or update in a single transaction
+                Class<T> model = kind.getModelClass();
+                DataAccessObject<T> dataAccessObject = getDataAccessObject(model);
+                Runnable work = () -> store(kind, entity, id.get());
+                if (dataAccessObject != null) {
+                    dataAccessObject.inTransaction(work);
+                    // a snapshot rebuilt before the commit missed the change.
+                    changed(kind.getModelName(), id.get());
                 } else {
-                    update(entity);
+                    work.run();
                 }
             }
         } catch (@SuppressWarnings("PMD.AvoidCatchingGenericException") Exception e) {
@@ -137,14 +168,30 @@ public class DataManager implements DataAccessObjectRegistry {
         }
     }
 
+    private <T extends WithId<T>> void store(Kind kind, T entity, String id) {
+        WithId<?> prev = null;
+        try {
+            prev = this.<T>fetch(kind.getModelClass(), id);
+        } catch (@SuppressWarnings("PMD.AvoidCatchingGenericException") RuntimeException e) {
+            // Lets try to wipe out the previous record in case
+            // we are running into something like a schema change.
+            this.<T>delete(kind.getModelClass(), id);
+        }
+        if (prev == null) {
+            create(entity);
+        } else {
+            update(entity);
+        }
+    }
+
     public <T extends WithId<T>> ListResult<T> fetchAll(Class<T> model, Function<ListResult<T>, ListResult<T>>... operators) {
 
         ListResult<T> result;
-        if( getDataAccessObject(model)!=null ) {
-            result = doWithDataAccessObject(model, d -> d.fetchAll());
+        DataAccessObject<T> dataAccessObject = getDataAccessObject(model);
+        if( dataAccessObject!=null ) {
+            result = snapshot(dataAccessObject).get(dataAccessObject);
         } else {
-            Kind kind = Kind.from(model);
-            Cache<String, T> cache = caches.getCache(kind.getModelName());
+            Map<String, T> cache = cache(Kind.from(model));
             result = ListResult.of(cache.values());
         }
 
@@ -154,18 +201,187 @@ public class DataManager implements DataAccessObjectRegistry {
         return result;
     }
 
+    /**
+     * Fetches the entity from the cache, or else from its {@link DataAccessObject}.
+     * Concurrent fetches of an entity that isn't cached share a single load,
+     * and the ids found missing are remembered for negativeCacheTtl milliseconds,
+     * or until the entity is created or an event tells it changed.  The loads
+     * made in a transaction see its uncommitted writes, so they're neither
+     * shared nor remembered.
+     */
+    @SuppressWarnings("unchecked")
     public <T extends WithId<T>> T fetch(Class<T> model, String id) {
         Kind kind = Kind.from(model);
-        Map<String, T> cache = caches.getCache(kind.getModelName());
+        Map<String, T> cache = cache(kind);
 
         T value = cache.get(id);
-        if ( value == null) {
-            value = this.<T, T>doWithDataAccessObject(model, d -> d.fetch(id));
+        if (value != null) {
+            return value;
+        }
+
+        DataAccessObject<T> dataAccessObject = getDataAccessObject(model);
+        if (dataAccessObject != null && dataAccessObject.isInTransaction()) {
+            return dataAccessObject.fetch(id);
+        }
+
+        String key = kind.getModelName() + ":" + id;
+        if (isKnownMissing(key)) {
+            negativeHits.increment();
+            return null;
+        }
+
+        CompletableFuture<Object> load = new CompletableFuture<>();
+        CompletableFuture<Object> running = loading.putIfAbsent(key, load);
+        if (running != null) {
+            coalescedLoads.increment();
+            try {
+                return (T) running.join();
+            } catch (CompletionException e) {
+                throw SyndesisServerException.launderThrowable(e.getCause());
+            }
+        }
+
+        try {
+            long createdBefore = creations.sum();
+            value = dataAccessObject == null ? null : dataAccessObject.fetch(id);
             if (value != null) {
                 cache.put(id, value);
+            } else if (createdBefore == creations.sum()) {
+                // not when it could have been created while it was read.
+                knownMissing(key);
+            }
+            load.complete(value);
+            return value;
+        } catch (@SuppressWarnings("PMD.AvoidCatchingGenericException") RuntimeException e) {
+            load.completeExceptionally(e);
+            throw e;
+        } finally {
+            loading.remove(key, load);
+        }
+    }
+
+    /**
+     * @return the number of fetches that waited for the load of another fetch of the same entity.
+     */
+    public long getCoalescedLoads() {
+        return coalescedLoads.sum();
+    }
+
+    /**
+     * @return the number of fetches answered by the ids known to be missing.
+     */
+    public long getNegativeHits() {
+        return negativeHits.sum();
+    }
+
+    private boolean isKnownMissing(String key) {
+        Long expires = missing.get(key);
+        if (expires == null) {
+            return false;
+        }
+        if (System.nanoTime() - expires < 0) {
+            return true;
+        }
+        missing.remove(key, expires);
+        return false;
+    }
+
+    private void knownMissing(String key) {
+        if (negativeCacheTtl <= 0) {
+            return;
+        }
+        if (missing.size() >= MAX_MISSING) {
+            long now = System.nanoTime();
+            missing.values().removeIf(expires -> now - expires >= 0);
+            if (missing.size() >= MAX_MISSING) {
+                return;
             }
         }
-        return value;
+        missing.put(key, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(negativeCacheTtl));
+    }
+
+    /**
+     * Fetches several entities, the ones that aren't cached, nor known to be
+     * missing, with a single call to the {@link DataAccessObject}.
+     *
+     * @return the entities in the order of the ids, empty for the ids that don't exist.
+     */
+    public <T extends WithId<T>> List<Optional<T>> fetchMany(Class<T> model, Collection<String> ids) {
+        Kind kind = Kind.from(model);
+        Map<String, T> cache = cache(kind);
+        DataAccessObject<T> dataAccessObject = getDataAccessObject(model);
+        boolean inTransaction = dataAccessObject != null && dataAccessObject.isInTransaction();
+
+        Map<String, T> found = new HashMap<>();
+        Set<String> misses = new LinkedHashSet<>();
+        for (String id : ids) {
+            T value = cache.get(id);
+            if (value != null) {
+                found.put(id, value);
+            } else if (!inTransaction && isKnownMissing(kind.getModelName() + ":" + id)) {
+                negativeHits.increment();
+            } else {
+                misses.add(id);
+            }
+        }
+        if (!misses.isEmpty()) {
+            long createdBefore = creations.sum();
+            Map<String, T> fetched = this.<T, Map<String, T>>doWithDataAccessObject(model, d -> d.fetchMany(misses));
+            if (fetched != null) {
+                if (!inTransaction) {
+                    cache.putAll(fetched);
+                }
+                found.putAll(fetched);
+            }
+            if (!inTransaction && createdBefore == creations.sum()) {
+                for (String id : misses) {
+                    if (!found.containsKey(id)) {
+                        knownMissing(kind.getModelName() + ":" + id);
+                    }
+                }
+            }
+        }
+
+        List<Optional<T>> result = new ArrayList<>(ids.size());
+        for (String id : ids) {
+            result.add(Optional.ofNullable(found.get(id)));
+        }
+        return result;
+    }
+
+    /**
+     * @return true if {@link #fetchAllByIndex(Class, String, String)} can look up the entities by the property.
+     */
+    public <T extends WithId<T>> boolean isIndexed(Class<T> model, String property) {
+        DataAccessObject<T> dataAccessObject = getDataAccessObject(model);
+        return dataAccessObject != null && snapshot(dataAccessObject).isIndexed(property);
+    }
+
+    /**
+     * Looks up the entities who's property has the value in an in memory index,
+     * in time proportional to the number of entities found.  The property has
+     * to be one of the {@link DataAccessObject#getIndexedProperties()}.
+     */
+    public <T extends WithId<T>> List<T> fetchAllByIndex(Class<T> model, String property, String value) {
+        DataAccessObject<T> dataAccessObject = getDataAccessObjectRequired(model);
+        return snapshot(dataAccessObject).find(dataAccessObject, property, value);
+    }
+
+    /**
+     * @return the version of the entity as tracked by its {@link DataAccessObject}, it
+     * changes every time the entity is modified.
+     */
+    public <T extends WithId<T>> OptionalLong fetchVersion(Class<T> model, String id) {
+        OptionalLong version = this.<T, OptionalLong>doWithDataAccessObject(model, d -> d.fetchVersion(id));
+        return version == null ? OptionalLong.empty() : version;
+    }
+
+    /**
+     * @return a version that changes every time any of the entities of the model is modified.
+     */
+    public <T extends WithId<T>> OptionalLong fetchAllVersion(Class<T> model) {
+        OptionalLong version = this.<T, OptionalLong>doWithDataAccessObject(model, DataAccessObject::fetchAllVersion);
+        return version == null ? OptionalLong.empty() : version;
     }
 
     public <T extends WithId<T>> Set<String> fetchIdsByPropertyValue(Class<T> model, String property, String value, String... additionalPropValues) {
@@ -197,7 +413,7 @@ public class DataManager implements DataAccessObjectRegistry {
 
     public <T extends WithId<T>> T create(final T entity) {
         Kind kind = entity.getKind();
-        Cache<String, T> cache = caches.getCache(kind.getModelName());
+        Map<String, T> cache = cache(kind);
         Optional<String> id = entity.getId();
         String idVal;
 
@@ -207,7 +423,7 @@ public class DataManager implements DataAccessObjectRegistry {
             entityToCreate = entity.withId(idVal);
         } else {
             idVal = id.get();
-            if (cache.keySet().contains(idVal)) {
+            if (cache.containsKey(idVal)) {
                 throw new EntityExistsException("There already exists a "
                     + kind + " with id " + idVal);
             }
@@ -215,6 +431,8 @@ public class DataManager implements DataAccessObjectRegistry {
         }
 
         this.<T, T>doWithDataAccessObject(kind.getModelClass(), d -> d.create(entityToCreate));
+        creations.increment();
+        missing.remove(kind.getModelName() + ":" + idVal);
         cache.put(idVal, entityToCreate);
         broadcast("created", kind.getModelName(), idVal);
         return entityToCreate;
@@ -229,10 +447,10 @@ public class DataManager implements DataAccessObjectRegistry {
         String idVal = id.get();
 
         Kind kind = entity.getKind();
-        T previous = this.<T, T>doWithDataAccessObject(kind.getModelClass(), d -> d.update(entity));
+        T updated = this.<T, T>doWithDataAccessObject(kind.getModelClass(), d -> d.update(entity));
 
-        Map<String, T> cache = caches.getCache(kind.getModelName());
-        if (!cache.containsKey(idVal) && previous==null) {
+        Map<String, T> cache = cache(kind);
+        if (!cache.containsKey(idVal) && updated==null) {
             throw new EntityNotFoundException("Can not find " + kind + " with id " + idVal);
         }
 
@@ -249,11 +467,10 @@ public class DataManager implements DataAccessObjectRegistry {
         }
 
         Kind kind = Kind.from(model);
-        Map<String, WithId<T>> cache = caches.getCache(kind.getModelName());
+        Map<String, T> cache = cache(kind);
 
         // Remove it out of the cache
-        WithId<T> entity = cache.remove(id);
-        boolean deletedInCache = entity != null;
+        boolean deletedInCache = cache.remove(id) != null;
 
         // And out of the DAO
         boolean deletedFromDAO = Boolean.TRUE.equals(doWithDataAccessObject(model, d -> d.delete(id)));
@@ -269,13 +486,16 @@ public class DataManager implements DataAccessObjectRegistry {
 
     public <T extends WithId<T>> void deleteAll(Class<T> model) {
         Kind kind = Kind.from(model);
-        Map<String, WithId<T>> cache = caches.getCache(kind.getModelName());
-        cache.clear();
+        cache(kind).clear();
 
         doWithDataAccessObject(model, d -> {
             d.deleteAll();
             return null;
         });
+        CollectionSnapshot<?> snapshot = snapshots.get(kind.getModelName());
+        if (snapshot != null) {
+            snapshot.invalidate();
+        }
     }
 
     @Override
@@ -283,6 +503,54 @@ public class DataManager implements DataAccessObjectRegistry {
         return dataAccessObjectMapping;
     }
 
+    @Override
+    public <T extends WithId<T>> void registerDataAccessObject(DataAccessObject<T> dataAccessObject) {
+        DataAccessObjectRegistry.super.registerDataAccessObject(dataAccessObject);
+        snapshots.put(Kind.from(dataAccessObject.getType()).getModelName(), new CollectionSnapshot<>(dataAccessObject.getIndexedProperties(), snapshotStaleness));
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T extends WithId<T>> CollectionSnapshot<T> snapshot(DataAccessObject<T> dataAccessObject) {
+        return (CollectionSnapshot<T>) snapshots.computeIfAbsent(Kind.from(dataAccessObject.getType()).getModelName(),
+            k -> new CollectionSnapshot<>(dataAccessObject.getIndexedProperties(), snapshotStaleness));
+    }
+
+    /**
+     * Marks the entities the events tell were written without going through
+     * the DataManager, like through the JsonDB REST API, as changed and no
+     * longer known to be missing.
+     */
+    private void onEvent(String event, String data) {
+        for (DataAccessObject<?> dataAccessObject : dataAccessObjectMapping.values()) {
+            String id = dataAccessObject.changedId(event, data);
+            if (id == null) {
+                continue;
+            }
+            String type = Kind.from(dataAccessObject.getType()).getModelName();
+            if (id.isEmpty()) {
+                missing.keySet().removeIf(key -> key.startsWith(type + ":"));
+            } else {
+                missing.remove(type + ":" + id);
+            }
+            CollectionSnapshot<?> snapshot = snapshots.get(type);
+            if (snapshot == null) {
+                continue;
+            }
+            if (id.isEmpty()) {
+                snapshot.invalidate();
+            } else {
+                snapshot.changed(id);
+            }
+        }
+    }
+
+    private void changed(String type, String id) {
+        CollectionSnapshot<?> snapshot = snapshots.get(type);
+        if (snapshot != null) {
+            snapshot.changed(id);
+        }
+    }
+
     /**
      * Perform a simple action if a {@link DataAccessObject} for the specified kind exists.
      * This is just a way to avoid, duplicating the dao lookup and checks, which are going to change.
@@ -300,15 +568,38 @@ public class DataManager implements DataAccessObjectRegistry {
     }
 
     private void broadcast(String event, String type, String id) {
+        changed(type, id);
         if( eventBus !=null ) {
             eventBus.broadcast("change-event", ChangeEvent.of(event, type, id).toJson());
         }
     }
 
+    /**
+     * @return the cache of the kind, read and written through a {@link JsonEntityCache}
+     * when it's configured to store its entries as bytes.
+     */
+    @SuppressWarnings("unchecked")
+    private <T extends WithId<T>> Map<String, T> cache(Kind kind) {
+        return (Map<String, T>) kindCaches.computeIfAbsent(kind, this::openCache);
+    }
+
+    private <T extends WithId<T>> Map<String, ?> openCache(Kind kind) {
+        Cache<String, T> cache = caches.getCache(kind.getModelName());
+        if (cache.getCacheConfiguration().memory().storageType() == StorageType.OBJECT) {
+            return cache;
+        }
+        Cache<String, byte[]> bytes = caches.getCache(kind.getModelName());
+        return new JsonEntityCache<T>(bytes, kind.getModelClass());
+    }
+
     public void clearCache() {
         for (Kind kind : Kind.values()) {
             caches.getCache(kind.modelName).clear();
         }
+        for (CollectionSnapshot<?> snapshot : snapshots.values()) {
+            snapshot.invalidate();
+        }
+        missing.clear();
     }
 
 }
@@ -0,0 +1,134 @@
+/**
+ * Copyright (C) 2016 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.syndesis.dao.manager;
+
+import java.io.IOException;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import io.syndesis.core.Json;
+import io.syndesis.core.SyndesisServerException;
+
+/**
+ * The entities of a cache that holds them as their JSON bytes, so the
+ * cache can weigh them by their size and keep them off the heap.  The
+ * entities are written on the way in and read again on every access, so
+ * two reads of the same entity don't return the same instance.
+ */
+/* default */ final class JsonEntityCache<T> extends AbstractMap<String, T> {
+
+    private final Map<String, byte[]> cache;
+    private final Class<T> type;
+
+    /* default */ JsonEntityCache(Map<String, byte[]> cache, Class<T> type) {
+        this.cache = cache;
+        this.type = type;
+    }
+
+    @Override
+    public T get(Object key) {
+        return read(cache.get(key));
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return cache.containsKey(key);
+    }
+
+    @Override
+    public T put(String key, T value) {
+        return read(cache.put(key, write(value)));
+    }
+
+    @Override
+    public void putAll(Map<? extends String, ? extends T> entities) {
+        Map<String, byte[]> written = new LinkedHashMap<>();
+        for (Map.Entry<? extends String, ? extends T> entity : entities.entrySet()) {
+            written.put(entity.getKey(), write(entity.getValue()));
+        }
+        cache.putAll(written);
+    }
+
+    @Override
+    public T remove(Object key) {
+        return read(cache.remove(key));
+    }
+
+    @Override
+    public void clear() {
+        cache.clear();
+    }
+
+    @Override
+    public int size() {
+        return cache.size();
+    }
+
+    @Override
+    public Set<Map.Entry<String, T>> entrySet() {
+        return new AbstractSet<Map.Entry<String, T>>() {
+            @Override
+            public Iterator<Map.Entry<String, T>> iterator() {
+                Iterator<Map.Entry<String, byte[]>> entries = cache.entrySet().iterator();
+                return new Iterator<Map.Entry<String, T>>() {
+                    @Override
+                    public boolean hasNext() {
+                        return entries.hasNext();
+                    }
+
+                    @Override
+                    public Map.Entry<String, T> next() {
+                        Map.Entry<String, byte[]> entry = entries.next();
+                        return new AbstractMap.SimpleImmutableEntry<>(entry.getKey(), read(entry.getValue()));
+                    }
+
+                    @Override
+                    public void remove() {
+                        entries.remove();
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return cache.size();
+            }
+        };
+    }
+
+    private T read(byte[] json) {
+        if (json == null) {
+            return null;
+        }
+        try {
+            return Json.mapper().readValue(json, type);
+        } catch (IOException e) {
+            throw SyndesisServerException.launderThrowable(e);
+        }
+    }
+
+    private byte[] write(T entity) {
+        try {
+            return Json.mapper().writeValueAsBytes(entity);
+        } catch (IOException e) {
+            throw SyndesisServerException.launderThrowable(e);
+        }
+    }
+}
@@ -15,6 +15,9 @@
  */
 package io.syndesis.dao.validation;
 
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import javax.validation.ConstraintValidator;
@@ -56,13 +59,28 @@ public class UniquePropertyValidator implements ConstraintValidator<UniqueProper
         @SuppressWarnings({"rawtypes", "unchecked"})
         final Class<WithId> modelClass = (Class) value.getKind().modelClass;
 
-        @SuppressWarnings("unchecked")
-        final Set<String> ids = dataManager.fetchIdsByPropertyValue(modelClass, property, propertyValue);
+        // the entities found in an index don't need to be fetched again.
+        final Map<String, WithId<?>> entities = new HashMap<>();
+        final Set<String> ids;
+        if (dataManager.isIndexed(modelClass, property)) {
+            @SuppressWarnings({"rawtypes", "unchecked"})
+            final List<WithId<?>> found = (List) dataManager.fetchAllByIndex(modelClass, property, propertyValue);
+            for (final WithId<?> entity : found) {
+                entity.getId().ifPresent(id -> entities.put(id, entity));
+            }
+            ids = entities.keySet();
+        } else {
+            @SuppressWarnings("unchecked")
+            final Set<String> fetched = dataManager.fetchIdsByPropertyValue(modelClass, property, propertyValue);
+            ids = fetched;
+        }
 
         final boolean isUnique = ids.isEmpty() || value.getId().map(id -> ids.contains(id)).orElse(false);
 
         if (!isUnique) {
-            if (ids.stream().allMatch(id -> consideredValidByException(modelClass, id))) {
+            if (ids.stream().allMatch(id -> entities.containsKey(id)
+                ? consideredValidByException(entities.get(id))
+                : consideredValidByException(modelClass, id))) {
                 return true;
             }
 
@@ -80,6 +98,10 @@ public class UniquePropertyValidator implements ConstraintValidator<UniqueProper
         @SuppressWarnings("unchecked")
         final WithId<?> modelInstance = dataManager.fetch(modelClass, id);
 
+        return consideredValidByException(modelInstance);
+    }
+
+    private static boolean consideredValidByException(final WithId<?> modelInstance) {
         // if we're looking at Integration then we need to make sure that
         // the Integration in question is not deleted
         if (modelInstance instanceof Integration) {
@@ -15,6 +15,7 @@
  */
 package io.syndesis.dao;
 
+import io.syndesis.core.EventBus;
 import io.syndesis.core.Json;
 import io.syndesis.dao.manager.DataAccessObject;
 import io.syndesis.dao.manager.DataManager;
@@ -25,21 +26,39 @@ import io.syndesis.model.connection.Connection;
 import io.syndesis.model.connection.Connector;
 import io.syndesis.model.extension.Extension;
 import io.syndesis.model.integration.Integration;
+import org.infinispan.configuration.cache.ConfigurationBuilder;
+import org.infinispan.configuration.cache.StorageType;
+import org.infinispan.configuration.global.GlobalConfigurationBuilder;
+import org.infinispan.eviction.EvictionType;
+import org.infinispan.manager.DefaultCacheManager;
+import org.infinispan.manager.EmbeddedCacheManager;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
 
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
 
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.junit.Assert.fail;
+import static org.mockito.Matchers.anyCollectionOf;
+import static org.mockito.Matchers.anyString;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 public class DataManagerTest {
@@ -137,6 +156,205 @@ public class DataManagerTest {
         assertThat(infinispan.getCaches().getCache(Kind.Connector.modelName).get("custom-id")).isSameAs(connector);
     }
 
+    @Test
+    public void shouldServeFetchAllFromSnapshot() {
+        @SuppressWarnings("unchecked")
+        final DataAccessObject<Connector> connectorDao = mock(DataAccessObject.class);
+        when(connectorDao.getType()).thenReturn(Connector.class);
+        final Connector a = new Connector.Builder().id("a").name("a").build();
+        final Connector b = new Connector.Builder().id("b").name("b").build();
+        when(connectorDao.fetchAll()).thenReturn(ListResult.of(Arrays.asList(a, b)));
+        dataManager.registerDataAccessObject(connectorDao);
+
+        final ListResult<Connector> connectors = dataManager.fetchAll(Connector.class);
+        assertThat(connectors.getItems()).containsExactly(a, b);
+        assertThat(dataManager.fetchAll(Connector.class)).isSameAs(connectors);
+
+        // only the changed entities are fetched again.
+        final Connector updated = new Connector.Builder().id("a").name("updated").build();
+        when(connectorDao.update(updated)).thenReturn(updated);
+        when(connectorDao.fetch("a")).thenReturn(updated);
+        dataManager.update(updated);
+        final Connector c = new Connector.Builder().id("c").name("c").build();
+        when(connectorDao.create(c)).thenReturn(c);
+        when(connectorDao.fetch("c")).thenReturn(c);
+        dataManager.create(c);
+        when(connectorDao.delete("b")).thenReturn(true);
+        dataManager.delete(Connector.class, "b");
+
+        assertThat(dataManager.fetchAll(Connector.class).getItems()).containsExactly(updated, c);
+        verify(connectorDao, times(1)).fetchAll();
+        verify(connectorDao, times(1)).fetch("a");
+    }
+
+    @Test
+    public void shouldLookUpEntitiesByIndex() {
+        @SuppressWarnings("unchecked")
+        final DataAccessObject<Connection> connectionDao = mock(DataAccessObject.class);
+        when(connectionDao.getType()).thenReturn(Connection.class);
+        when(connectionDao.getIndexedProperties())
+            .thenReturn(Collections.<String, Function<Connection, ?>>singletonMap("connectorId", Connection::getConnectorId));
+        final Connection a = new Connection.Builder().id("a").name("a").connectorId("twitter").build();
+        final Connection b = new Connection.Builder().id("b").name("b").connectorId("twitter").build();
+        final Connection c = new Connection.Builder().id("c").name("c").build();
+        when(connectionDao.fetchAll()).thenReturn(ListResult.of(Arrays.asList(a, b, c)));
+        dataManager.registerDataAccessObject(connectionDao);
+
+        assertThat(dataManager.isIndexed(Connection.class, "connectorId")).isTrue();
+        assertThat(dataManager.isIndexed(Connection.class, "name")).isFalse();
+        assertThat(dataManager.fetchAllByIndex(Connection.class, "connectorId", "twitter")).containsOnly(a, b);
+        assertThat(dataManager.fetchAllByIndex(Connection.class, "connectorId", "salesforce")).isEmpty();
+
+        final Connection moved = new Connection.Builder().createFrom(b).connectorId("salesforce").build();
+        when(connectionDao.update(moved)).thenReturn(moved);
+        when(connectionDao.fetch("b")).thenReturn(moved);
+        dataManager.update(moved);
+
+        assertThat(dataManager.fetchAllByIndex(Connection.class, "connectorId", "twitter")).containsOnly(a);
+        assertThat(dataManager.fetchAllByIndex(Connection.class, "connectorId", "salesforce")).containsOnly(moved);
+        verify(connectionDao, times(1)).fetchAll();
+
+        try {
+            dataManager.fetchAllByIndex(Connection.class, "name", "a");
+            fail("Expected IllegalArgumentException");
+        } catch (IllegalArgumentException expected) {
+            // expected
+        }
+    }
+
+    @Test
+    public void shouldFetchManyInInputOrder() {
+        @SuppressWarnings("unchecked")
+        final DataAccessObject<Connection> connectionDao = mock(DataAccessObject.class);
+        when(connectionDao.getType()).thenReturn(Connection.class);
+        dataManager.registerDataAccessObject(connectionDao);
+
+        final Connection fetched = new Connection.Builder().id("fetched").name("fetched").build();
+        when(connectionDao.fetchMany(new HashSet<>(Arrays.asList("fetched", "missing"))))
+            .thenReturn(Collections.singletonMap("fetched", fetched));
+
+        // "1" is cached by the deployment data.
+        final Connection cached = dataManager.fetch(Connection.class, "1");
+        assertThat(dataManager.fetchMany(Connection.class, Arrays.asList("missing", "1", "fetched")))
+            .containsExactly(Optional.empty(), Optional.of(cached), Optional.of(fetched));
+        verify(connectionDao, times(1)).fetchMany(anyCollectionOf(String.class));
+    }
+
+    @Test
+    public void shouldCoalesceFetchesAndRememberMissingIds() throws Exception {
+        @SuppressWarnings("unchecked")
+        final DataAccessObject<Connection> connectionDao = mock(DataAccessObject.class);
+        when(connectionDao.getType()).thenReturn(Connection.class);
+        dataManager.registerDataAccessObject(connectionDao);
+
+        final Connection slow = new Connection.Builder().id("slow").name("slow").build();
+        final CountDownLatch release = new CountDownLatch(1);
+        when(connectionDao.fetch("slow")).thenAnswer(invocation -> {
+            release.await();
+            return slow;
+        });
+        final ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            final List<Future<Connection>> fetches = new ArrayList<>();
+            for (int i = 0; i < 4; i++) {
+                fetches.add(executor.submit(() -> dataManager.fetch(Connection.class, "slow")));
+            }
+            // the first fetch loads, the others wait for it.
+            final long deadline = System.currentTimeMillis() + 10_000;
+            while (dataManager.getCoalescedLoads() < 3 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            release.countDown();
+            for (Future<Connection> fetch : fetches) {
+                assertThat(fetch.get(10, TimeUnit.SECONDS)).isSameAs(slow);
+            }
+        } finally {
+            executor.shutdown();
+        }
+        assertThat(dataManager.getCoalescedLoads()).isEqualTo(3);
+        verify(connectionDao, times(1)).fetch("slow");
+
+        assertThat(dataManager.fetch(Connection.class, "missing")).isNull();
+        assertThat(dataManager.fetch(Connection.class, "missing")).isNull();
+        verify(connectionDao, times(1)).fetch("missing");
+        assertThat(dataManager.getNegativeHits()).isEqualTo(1);
+
+        // creating the entity forgets it was missing.
+        final Connection created = new Connection.Builder().id("missing").name("missing").build();
+        when(connectionDao.create(created)).thenReturn(created);
+        dataManager.create(created);
+        infinispan.getCaches().getCache(Kind.Connection.modelName).remove("missing");
+        when(connectionDao.fetch("missing")).thenReturn(created);
+        assertThat(dataManager.fetch(Connection.class, "missing")).isSameAs(created);
+    }
+
+    @Test
+    public void shouldForgetMissingIdsOnChangeEvents() {
+        final EventBus eventBus = mock(EventBus.class);
+        @SuppressWarnings("unchecked")
+        final DataAccessObject<Connection> connectionDao = mock(DataAccessObject.class);
+        when(connectionDao.getType()).thenReturn(Connection.class);
+        when(connectionDao.changedId("jsondb-updated", "/connections/:missing")).thenReturn("missing");
+        final DataManager eventDataManager = new DataManager(infinispan.getCaches(), Collections.singletonList(connectionDao), eventBus, new EncryptionComponent(null));
+        eventDataManager.init();
+        final ArgumentCaptor<EventBus.Subscription> subscription = ArgumentCaptor.forClass(EventBus.Subscription.class);
+        verify(eventBus).subscribe(anyString(), subscription.capture());
+
+        assertThat(eventDataManager.fetch(Connection.class, "missing")).isNull();
+        assertThat(eventDataManager.fetch(Connection.class, "missing")).isNull();
+        verify(connectionDao, times(1)).fetch("missing");
+
+        // written without going through the DataManager.
+        final Connection created = new Connection.Builder().id("missing").name("missing").build();
+        when(connectionDao.fetch("missing")).thenReturn(created);
+        subscription.getValue().onEvent("jsondb-updated", "/connections/:missing");
+        assertThat(eventDataManager.fetch(Connection.class, "missing")).isSameAs(created);
+    }
+
+    @Test
+    public void shouldNotCacheFetchesInTransactions() {
+        @SuppressWarnings("unchecked")
+        final DataAccessObject<Connection> connectionDao = mock(DataAccessObject.class);
+        when(connectionDao.getType()).thenReturn(Connection.class);
+        when(connectionDao.isInTransaction()).thenReturn(true);
+        dataManager.registerDataAccessObject(connectionDao);
+
+        assertThat(dataManager.fetch(Connection.class, "missing")).isNull();
+        assertThat(dataManager.fetch(Connection.class, "missing")).isNull();
+        verify(connectionDao, times(2)).fetch("missing");
+        assertThat(dataManager.getNegativeHits()).isEqualTo(0);
+
+        final Connection uncommitted = new Connection.Builder().id("uncommitted").name("uncommitted").build();
+        when(connectionDao.fetch("uncommitted")).thenReturn(uncommitted);
+        assertThat(dataManager.fetch(Connection.class, "uncommitted")).isSameAs(uncommitted);
+        assertThat(infinispan.getCaches().getCache(Kind.Connection.modelName).get("uncommitted")).isNull();
+    }
+
+    @Test
+    public void shouldStoreEntitiesAsJsonInBinaryCaches() {
+        final EmbeddedCacheManager binaryCaches = new DefaultCacheManager(
+            new GlobalConfigurationBuilder().nonClusteredDefault().globalJmxStatistics().allowDuplicateDomains(true).build(),
+            new ConfigurationBuilder()
+            .memory().storageType(StorageType.BINARY).evictionType(EvictionType.MEMORY).size(1_000_000)
+            .build()
+        );
+        try {
+            final DataManager binaryDataManager = new DataManager(binaryCaches, new ArrayList<>(), null, new EncryptionComponent(null));
+            final Connector connector = new Connector.Builder().id("binary").name("binary").icon("my-icon").build();
+            binaryDataManager.create(connector);
+
+            assertThat(binaryCaches.getCache(Kind.Connector.modelName).get("binary")).isInstanceOf(byte[].class);
+            final Connector got = binaryDataManager.fetch(Connector.class, "binary");
+            assertThat(got).isEqualTo(connector).isNotSameAs(connector);
+            assertThat(binaryDataManager.fetchAll(Connector.class).getItems()).containsExactly(connector);
+
+            assertThat(binaryDataManager.delete(Connector.class, "binary")).isTrue();
+            assertThat(binaryDataManager.fetch(Connector.class, "binary")).isNull();
+        } finally {
+            binaryCaches.stop();
+        }
+    }
+
     @Test
     public void shouldFetchIdsByPropertyValuePairs() {
         @SuppressWarnings("unchecked")
@@ -42,6 +42,7 @@ import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
 import java.util.UUID;
+import java.util.function.Supplier;
 
 /**
  * Implementation of a {@code FileStore} backed by a SQL database.
@@ -55,10 +56,24 @@ public class SqlFileStore implements FileStore {
 
     private final DBI dbi;
 
+    private final Supplier<DBI> reads;
+
+    private final Runnable written;
+
     private DatabaseKind databaseKind;
 
     public SqlFileStore(DBI dbi) {
+        this(dbi, () -> dbi, () -> { });
+    }
+
+    /**
+     * @param reads gives the {@code DBI} of the reads, which can be a read replica
+     * @param written called once a write committed, so the next reads can see it
+     */
+    public SqlFileStore(DBI dbi, Supplier<DBI> reads, Runnable written) {
         this.dbi = dbi;
+        this.reads = reads;
+        this.written = written;
 
         this.databaseKind = dbi.inTransaction((h, s) -> {
             String dbName = h.getConnection().getMetaData().getDatabaseProductName();
@@ -108,6 +123,7 @@ public class SqlFileStore implements FileStore {
                 doWrite(h, path, file);
                 return true;
             });
+            written.run();
         } catch (CallbackFailedException ex) {
             throw new FileStoreException("Unable to write on path " + path, ex);
         }
@@ -118,11 +134,13 @@ public class SqlFileStore implements FileStore {
         Objects.requireNonNull(file, "file cannot be null");
 
         try {
-            return dbi.inTransaction((h, status) -> {
-                String path = newRandomTempFilePath();
-                doWrite(h, path, file);
-                return path;
+            String path = dbi.inTransaction((h, status) -> {
+                String tempPath = newRandomTempFilePath();
+                doWrite(h, tempPath, file);
+                return tempPath;
             });
+            written.run();
+            return path;
         } catch (CallbackFailedException ex) {
             throw new FileStoreException("Unable to write on temporary path", ex);
         }
@@ -132,13 +150,14 @@ public class SqlFileStore implements FileStore {
     public InputStream read(String path) {
         FileStoreSupport.checkValidPath(path);
 
+        DBI source = reads.get();
         try {
             if (databaseKind == DatabaseKind.PostgreSQL) {
-                return doReadPostgres(path);
+                return doReadPostgres(source, path);
             } else if (databaseKind == DatabaseKind.Apache_Derby) {
-                return doReadDerby(path);
+                return doReadDerby(source, path);
             } else {
-                return dbi.inTransaction((h, status) -> doReadStandard(h, path));
+                return source.inTransaction((h, status) -> doReadStandard(h, path));
             }
         } catch (CallbackFailedException ex) {
             throw new FileStoreException("Unable to read data from path " + path, ex);
@@ -150,7 +169,9 @@ public class SqlFileStore implements FileStore {
         FileStoreSupport.checkValidPath(path);
 
         try {
-            return dbi.inTransaction((h, status) -> doDelete(h, path));
+            boolean deleted = dbi.inTransaction((h, status) -> doDelete(h, path));
+            written.run();
+            return deleted;
         } catch (CallbackFailedException ex) {
             throw new FileStoreException("Unable to delete path " + path, ex);
         }
@@ -162,7 +183,7 @@ public class SqlFileStore implements FileStore {
         FileStoreSupport.checkValidPath(toPath);
 
         try {
-            return dbi.inTransaction((h, status) -> {
+            boolean moved = dbi.inTransaction((h, status) -> {
                 boolean existed = h.select("SELECT 1 from filestore WHERE path=?", fromPath).size() > 0;
                 if (existed) {
                     doDelete(h, toPath);
@@ -171,6 +192,8 @@ public class SqlFileStore implements FileStore {
 
                 return existed;
             });
+            written.run();
+            return moved;
         } catch (CallbackFailedException ex) {
             throw new FileStoreException("Unable to move file from path " + fromPath + " to path " + toPath, ex);
         }
@@ -247,8 +270,8 @@ public class SqlFileStore implements FileStore {
      * It also requires an outcome of commit/rollback.
      */
     @SuppressWarnings("PMD.EmptyCatchBlock")
-    private InputStream doReadDerby(String path) {
-        Handle h = dbi.open();
+    private InputStream doReadDerby(DBI source, String path) {
+        Handle h = source.open();
         try {
             h.getConnection().setAutoCommit(false);
 
@@ -283,8 +306,8 @@ public class SqlFileStore implements FileStore {
     /**
      * Postgres does not allow to read from the large object after the connection has been closed.
      */
-    private InputStream doReadPostgres(String path) {
-        Handle h = dbi.open();
+    private InputStream doReadPostgres(DBI source, String path) {
+        Handle h = source.open();
         try {
             h.getConnection().setAutoCommit(false);
 
@@ -34,6 +34,7 @@ import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
@@ -45,6 +46,8 @@ import static org.junit.Assert.assertTrue;
 @RunWith(Parameterized.class)
 public class SqlFileStoreTest {
 
+    private final DBI dbi;
+
     private SqlFileStore fileStore;
 
     @Parameterized.Parameters
@@ -72,12 +75,32 @@ public class SqlFileStoreTest {
     }
 
     public SqlFileStoreTest(DataSource ds) throws Exception {
-        DBI dbi = new DBI(ds);
+        this.dbi = new DBI(ds);
         this.fileStore = new SqlFileStore(dbi);
         this.fileStore.destroy();
         this.fileStore.init();
     }
 
+    @Test
+    public void testReadsAndWrittenCallback() throws IOException {
+        AtomicInteger reads = new AtomicInteger();
+        AtomicInteger written = new AtomicInteger();
+        fileStore = new SqlFileStore(dbi, () -> {
+            reads.incrementAndGet();
+            return dbi;
+        }, written::incrementAndGet);
+
+        write("/file", "content".getBytes(StandardCharsets.UTF_8));
+        assertEquals(1, written.get());
+        assertEquals("content", read("/file", StandardCharsets.UTF_8));
+        assertEquals(1, reads.get());
+        assertEquals(1, written.get());
+
+        assertTrue(fileStore.move("/file", "/moved"));
+        assertTrue(fileStore.delete("/moved"));
+        assertEquals(3, written.get());
+    }
+
     @Test
     public void testSmallFile() throws IOException {
         String path = "/file";
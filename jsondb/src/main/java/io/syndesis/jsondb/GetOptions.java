@@ -25,6 +25,12 @@ public class GetOptions implements ToJson, Cloneable {
     private boolean prettyPrint;
     private boolean shallow;
     private String callback;
+    private boolean orderByKey;
+    private String orderByChild;
+    private Object startAt;
+    private Object endAt;
+    private Integer limitToFirst;
+    private Integer limitToLast;
 
     public boolean prettyPrint() {
         return prettyPrint;
@@ -38,6 +44,37 @@ public class GetOptions implements ToJson, Cloneable {
         return callback;
     }
 
+    public boolean orderByKey() {
+        return orderByKey;
+    }
+
+    public String orderByChild() {
+        return orderByChild;
+    }
+
+    public Object startAt() {
+        return startAt;
+    }
+
+    public Object endAt() {
+        return endAt;
+    }
+
+    public Integer limitToFirst() {
+        return limitToFirst;
+    }
+
+    public Integer limitToLast() {
+        return limitToLast;
+    }
+
+    /**
+     * @return true if only a window of the children of the requested path should be returned.
+     */
+    public boolean isWindowed() {
+        return orderByKey || orderByChild != null || startAt != null || endAt != null || limitToFirst != null || limitToLast != null;
+    }
+
     public GetOptions prettyPrint(final boolean prettyPrint) {
         this.prettyPrint = prettyPrint;
         return this;
@@ -53,6 +90,51 @@ public class GetOptions implements ToJson, Cloneable {
         return this;
     }
 
+    /**
+     * Order the children by their key, which is the order they are stored in.
+     */
+    public GetOptions orderByKey(final boolean orderByKey) {
+        this.orderByKey = orderByKey;
+        return this;
+    }
+
+    /**
+     * Order the children by the value of the given child path. Children
+     * that don't hold a value at that path are not included in the result.
+     * The children are ordered in memory, so the query fails on more than
+     * 10,000 children holding the path.
+     */
+    public GetOptions orderByChild(final String orderByChild) {
+        this.orderByChild = orderByChild;
+        return this;
+    }
+
+    /**
+     * Only include the children starting at the given key or child value.
+     */
+    public GetOptions startAt(final Object startAt) {
+        this.startAt = startAt;
+        return this;
+    }
+
+    /**
+     * Only include the children up to and including the given key or child value.
+     */
+    public GetOptions endAt(final Object endAt) {
+        this.endAt = endAt;
+        return this;
+    }
+
+    public GetOptions limitToFirst(final Integer limitToFirst) {
+        this.limitToFirst = limitToFirst;
+        return this;
+    }
+
+    public GetOptions limitToLast(final Integer limitToLast) {
+        this.limitToLast = limitToLast;
+        return this;
+    }
+
     @Override
     public GetOptions clone() throws CloneNotSupportedException{
         return (GetOptions) super.clone();
@@ -20,8 +20,12 @@ import java.io.ByteArrayOutputStream;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.function.Consumer;
+import java.util.function.Function;
 
 /**
  * Provides a Java API to read/update a Key/Value database presented to the user a
@@ -49,6 +53,59 @@ public interface JsonDB {
      */
     Set<String> fetchIdsByPropertyValue(String collectionPath, String property, String value);
 
+    /**
+     * Gets the version of the entity holding the path, entities being the
+     * children of a collection like {@code /integrations/:<id>}.  The version
+     * is incremented by every write to the entity and never goes back, even
+     * when the entity is deleted.  For paths above the entities, like a
+     * collection, the version is the sum of the versions of the entities
+     * under it, which increases whenever one of them changes.
+     *
+     * @param path to the entity or to a value within it
+     * @return the version or 0 if the entity was never written.
+     */
+    long getVersion(String path);
+
+    /**
+     * Gets the versions of the entities of a collection, see {@link #getVersion(String)},
+     * by their paths in the form of {@code /<collection>/:<id>}.  The deleted
+     * entities are included, they keep their version.
+     *
+     * @param collectionPath the path to the collection
+     * @return the versions of the entities ever written
+     */
+    Map<String, Long> getVersions(String collectionPath);
+
+    /**
+     * Runs the work in a single transaction: all the calls made by the current
+     * thread while the work runs share one connection and are committed
+     * together when it returns, or rolled back if it throws.  Calling this
+     * method again from within the work joins the outer transaction, and the
+     * change events are only sent once the outer transaction commits.
+     *
+     * Streaming outputs obtained within the work must be consumed before it returns.
+     *
+     * @param work receives the database to work with, the result of the work is returned.
+     */
+    <T> T inTransaction(Function<JsonDB, T> work);
+
+    /**
+     * @return true if the current thread runs in a transaction of {@link #inTransaction(Function)}.
+     */
+    default boolean isInTransaction() {
+        return false;
+    }
+
+    /**
+     * Same as {@link #inTransaction(Function)} for work that does not return a result.
+     */
+    default void useTransaction(Consumer<JsonDB> work) {
+        inTransaction(tx -> {
+            work.accept(tx);
+            return null;
+        });
+    }
+
     /**
      * Generates a sortable unique id as described at:
      * https://firebase.googleblog.com/2015/02/the-2120-ways-to-ensure-unique_68.html
@@ -94,6 +151,41 @@ public interface JsonDB {
         set(path, json.getBytes(StandardCharsets.UTF_8));
     }
 
+    /**
+     * Sets the object or value at the given path only if nothing is stored at the path yet.
+     *
+     * @param path to the object or value to set
+     * @param json value to set it to, can be a json primitive or struct
+     * @return true if the value was set
+     */
+    default boolean createIfAbsent(String path, String json)  {
+        return createIfAbsent(path, json.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Replaces the object or value at the given path only if something is already stored at the path.
+     *
+     * @param path to the object or value to set
+     * @param json value to set it to, can be a json primitive or struct
+     * @return true if the value was replaced
+     */
+    default boolean replaceIfExists(String path, String json)  {
+        return replaceIfExists(path, json.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Sets the object or value at the given path only if the entity holding it
+     * is still at the expected version, see {@link #getVersion(String)}.
+     *
+     * @param path to the entity or to a value within it
+     * @param expectedVersion the version the entity must have, 0 if it must never have been written
+     * @param json value to set it to, can be a json primitive or struct
+     * @return true if the value was set
+     */
+    default boolean compareAndSet(String path, long expectedVersion, String json)  {
+        return compareAndSet(path, expectedVersion, json.getBytes(StandardCharsets.UTF_8));
+    }
+
     /**
      * @param path to the object or value to set
      * @param json value to set it to, can be a json primitive or struct
@@ -133,10 +225,35 @@ public interface JsonDB {
         return os.toByteArray();
     }
 
+    /**
+     * Reads several paths, implementations can read them all at once.
+     *
+     * @return the json of each of the paths, in the order of the paths, null for the paths that don't exist.
+     */
+    default List<byte[]> getAsByteArrays(List<String> paths) {
+        List<byte[]> result = new ArrayList<>(paths.size());
+        for (String path : paths) {
+            result.add(getAsByteArray(path));
+        }
+        return result;
+    }
+
     default void set(String path, byte[] json) {
         set(path, new ByteArrayInputStream(json));
     }
 
+    default boolean createIfAbsent(String path, byte[] json) {
+        return createIfAbsent(path, new ByteArrayInputStream(json));
+    }
+
+    default boolean replaceIfExists(String path, byte[] json) {
+        return replaceIfExists(path, new ByteArrayInputStream(json));
+    }
+
+    default boolean compareAndSet(String path, long expectedVersion, byte[] json) {
+        return compareAndSet(path, expectedVersion, new ByteArrayInputStream(json));
+    }
+
     default void update(String path, byte[] json) {
         update(path, new ByteArrayInputStream(json));
     }
@@ -180,8 +297,37 @@ public interface JsonDB {
 
     void set(String path, InputStream body);
 
+    /**
+     * Checks that nothing is stored at the path and sets it in a single transaction.
+     */
+    boolean createIfAbsent(String path, InputStream body);
+
+    /**
+     * Checks that something is stored at the path and replaces it in a single transaction.
+     */
+    boolean replaceIfExists(String path, InputStream body);
+
+    /**
+     * Checks the version of the entity holding the path and sets it in a single transaction.
+     */
+    boolean compareAndSet(String path, long expectedVersion, InputStream body);
+
+    /**
+     * Sets the children of the path to the values of the fields of the json
+     * object in the body, the field names can be paths like {@code a/b}.
+     * All the fields are written in a single transaction.
+     */
     void update(String path, InputStream body);
 
+    /**
+     * Applies all the operations of the batch in a single transaction, or
+     * none of them if one fails, and broadcasts a single change event for
+     * the closest parent of all the modified paths.
+     *
+     * @throws IllegalArgumentException if a path of the batch is the parent of another one.
+     */
+    void write(WriteBatch batch);
+
     String push(String path, InputStream body);
 
 }
@@ -0,0 +1,87 @@
+/**
+ * Copyright (C) 2016 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.syndesis.jsondb;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A list of set and delete operations on different paths that the
+ * {@link JsonDB#write(WriteBatch)} applies all or nothing.  The paths of
+ * a batch must not overlap, i.e. no path can be the parent of another one,
+ * since the result would otherwise depend on the order of the operations.
+ */
+public class WriteBatch {
+
+    private final List<Operation> operations = new ArrayList<>();
+
+    /**
+     * A set of the json value at the path, or a delete of the path when the json is null.
+     */
+    public static final class Operation {
+        private final String path;
+        private final byte[] json;
+
+        /* default */ Operation(String path, byte[] json) {
+            this.path = path;
+            this.json = json == null ? null : json.clone();
+        }
+
+        public String path() {
+            return path;
+        }
+
+        /**
+         * @return the json value to set, or null for a delete.
+         */
+        public InputStream json() {
+            return json == null ? null : new ByteArrayInputStream(json);
+        }
+
+        public boolean isDelete() {
+            return json == null;
+        }
+    }
+
+    public WriteBatch set(String path, String json) {
+        return set(path, json.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public WriteBatch set(String path, byte[] json) {
+        if (json == null) {
+            throw new IllegalArgumentException("json must not be null, use delete to remove a path");
+        }
+        operations.add(new Operation(path, json));
+        return this;
+    }
+
+    public WriteBatch delete(String path) {
+        operations.add(new Operation(path, null));
+        return this;
+    }
+
+    public List<Operation> operations() {
+        return Collections.unmodifiableList(operations);
+    }
+
+    public boolean isEmpty() {
+        return operations.isEmpty();
+    }
+}
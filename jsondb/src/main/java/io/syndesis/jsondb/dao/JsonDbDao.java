@@ -16,8 +16,15 @@
 package io.syndesis.jsondb.dao;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.OptionalLong;
 import java.util.Set;
 import java.util.stream.Collectors;
 
@@ -61,6 +68,32 @@ public abstract class JsonDbDao<T extends WithId<T>> implements DataAccessObject
         }
     }
 
+    /**
+     * Reads all the entities in a single query.
+     */
+    @Override
+    public Map<String, T> fetchMany(Collection<String> ids) {
+        try {
+            List<String> idList = new ArrayList<>(ids);
+            List<String> dbPaths = new ArrayList<>(idList.size());
+            for (String id : idList) {
+                dbPaths.add(getCollectionPath()+"/:"+id);
+            }
+            List<byte[]> json = jsondb.getAsByteArrays(dbPaths);
+
+            Map<String, T> result = new HashMap<>();
+            for (int i = 0; i < idList.size(); i++) {
+                byte[] entity = json.get(i);
+                if( entity!=null && entity.length > 0 ) {
+                    result.put(idList.get(i), Json.mapper().readValue(entity, getType()));
+                }
+            }
+            return result;
+        } catch (@SuppressWarnings("PMD.AvoidCatchingGenericException") RuntimeException|IOException e) {
+            throw SyndesisServerException.launderThrowable(e);
+        }
+    }
+
     @Override
     public ListResult<T> fetchAll() {
         try {
@@ -83,6 +116,46 @@ public abstract class JsonDbDao<T extends WithId<T>> implements DataAccessObject
         }
     }
 
+    @Override
+    public OptionalLong fetchVersion(String id) {
+        return OptionalLong.of(jsondb.getVersion(getCollectionPath()+"/:"+id));
+    }
+
+    @Override
+    public OptionalLong fetchAllVersion() {
+        return OptionalLong.of(jsondb.getVersion(getCollectionPath()));
+    }
+
+    @Override
+    public Optional<Map<String, Long>> fetchVersions() {
+        Map<String, Long> versions = new LinkedHashMap<>();
+        for (Map.Entry<String, Long> version : jsondb.getVersions(getCollectionPath()).entrySet()) {
+            String path = version.getKey();
+            versions.put(path.substring(path.indexOf(':') + 1), version.getValue());
+        }
+        return Optional.of(versions);
+    }
+
+    /**
+     * The {@link JsonDB} broadcasts the paths it writes in jsondb-updated and jsondb-deleted events.
+     */
+    @Override
+    public String changedId(String event, String data) {
+        if (!"jsondb-updated".equals(event) && !"jsondb-deleted".equals(event) || data == null) {
+            return null;
+        }
+        String collectionPath = getCollectionPath();
+        if ("/".equals(data) || collectionPath.equals(data) || data.equals(collectionPath + "/")) {
+            return "";
+        }
+        String entitiesPath = collectionPath + "/:";
+        if (!data.startsWith(entitiesPath)) {
+            return null;
+        }
+        int end = data.indexOf('/', entitiesPath.length());
+        return data.substring(entitiesPath.length(), end < 0 ? data.length() : end);
+    }
+
     @Override
     public Set<String> fetchIdsByPropertyValue(final String property, final String propertyValue) {
         return jsondb.fetchIdsByPropertyValue(getCollectionPath(), property.replace('.', '/'), propertyValue)
@@ -92,17 +165,13 @@ public abstract class JsonDbDao<T extends WithId<T>> implements DataAccessObject
     @Override
     public T create(T entity) {
         try {
-
             String dbPath = getCollectionPath()+"/:"+entity.getId().get();
+            byte[] json = Json.mapper().writeValueAsBytes(entity);
 
             // Only create if it did not exist.
-            if( jsondb.exists(dbPath) ) {
+            if( !jsondb.createIfAbsent(dbPath, json) ) {
                 return null;
             }
-
-            byte[] json = Json.mapper().writeValueAsBytes(entity);
-            jsondb.set(dbPath, json);
-
             return entity;
 
         } catch (@SuppressWarnings("PMD.AvoidCatchingGenericException") RuntimeException|IOException e) {
@@ -110,18 +179,20 @@ public abstract class JsonDbDao<T extends WithId<T>> implements DataAccessObject
         }
     }
 
+    /**
+     * Replaces the entity in a single statement, without reading it first.
+     */
     @Override
     public T update(T entity) {
         try {
-            T previousValue = this.fetch(entity.getId().get());
+            String dbPath = getCollectionPath()+"/:"+entity.getId().get();
+            byte[] json = Json.mapper().writeValueAsBytes(entity);
 
             // Only update if the entity existed.
-            if( previousValue !=null ) {
-                String dbPath = getCollectionPath()+"/:"+entity.getId().get();
-                byte[] json = Json.mapper().writeValueAsBytes(entity);
-                jsondb.set(dbPath, json);
+            if( !jsondb.replaceIfExists(dbPath, json) ) {
+                return null;
             }
-            return previousValue;
+            return entity;
 
         } catch (@SuppressWarnings("PMD.AvoidCatchingGenericException") RuntimeException|IOException e) {
             throw SyndesisServerException.launderThrowable(e);
@@ -146,6 +217,19 @@ public abstract class JsonDbDao<T extends WithId<T>> implements DataAccessObject
         }
     }
 
+    /**
+     * Joins the calls made by the work to the {@link JsonDB} in a single transaction.
+     */
+    @Override
+    public void inTransaction(Runnable work) {
+        jsondb.useTransaction(tx -> work.run());
+    }
+
+    @Override
+    public boolean isInTransaction() {
+        return jsondb.isInTransaction();
+    }
+
     @Override
     public void deleteAll() {
         try {
@@ -0,0 +1,442 @@
+/**
+ * Copyright (C) 2016 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.syndesis.jsondb.impl;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.TreeSet;
+
+import com.fasterxml.jackson.core.JsonTokenId;
+
+import io.syndesis.jsondb.GetOptions;
+import io.syndesis.jsondb.JsonDBException;
+
+import org.skife.jdbi.v2.ResultIterator;
+
+/**
+ * Selects a window of the children of a path as requested by the ordering,
+ * range and limit options of {@link GetOptions}.  The children are kept in
+ * path order in the jsondb table, which is the order of their keys except for
+ * the keys that start with another key followed by a character below '/':
+ * {@code a-b/} sorts before {@code a/} while the key {@code a} sorts before
+ * {@code a-b}.  So key based windows read a path range that's widened to those
+ * keys, check the keys of the children they read, and limits only read the
+ * children around the ones they select.
+ */
+@SuppressWarnings({"PMD.GodClass", "PMD.CyclomaticComplexity", "PMD.ModifiedCyclomaticComplexity", "PMD.StdCyclomaticComplexity", "PMD.NPathComplexity"})
+/* default */ final class ChildWindowQuery {
+
+    // Number of children fetched per query when selecting children by key.
+    private static final int KEYS_PER_QUERY = 64;
+    // Most children ordered by the value of a child.
+    /* default */ static final int MAX_ORDERED_CHILDREN = 10_000;
+
+    private final RecordSource source;
+    private final String baseDBPath;
+    private final GetOptions options;
+
+    /* default */ ChildWindowQuery(RecordSource source, String baseDBPath, GetOptions options) {
+        this.source = source;
+        this.baseDBPath = baseDBPath;
+        this.options = options;
+    }
+
+    /**
+     * @return the records of the selected children, in path order.
+     */
+    public ResultIterator<JsonRecord> execute() {
+        if (options.orderByChild() != null) {
+            return orderedByChild();
+        }
+        return orderedByKey();
+    }
+
+    private ResultIterator<JsonRecord> orderedByKey() {
+        String start = options.startAt() == null ? null : toDBKey(options.startAt());
+        String end = options.endAt() == null ? null : toDBKey(options.endAt());
+        String from = start == null ? baseDBPath : baseDBPath + start;
+        String to = end == null ? PathRange.upperBound(baseDBPath) : upperBound(end);
+
+        Integer first = options.limitToFirst();
+        Integer last = options.limitToLast();
+        if (first == null && last == null) {
+            ResultIterator<JsonRecord> records;
+            if (options.shallow()) {
+                records = new ShallowRecords(source, baseDBPath, from, to);
+            } else {
+                records = source.select(PathRange.of(from, to));
+            }
+            return new KeyWindow(records, start, end);
+        }
+
+        List<String> keys;
+        if (last != null) {
+            keys = lastKeys(from, to, start, end, last);
+        } else {
+            keys = firstKeys(from, to, start, end, first);
+        }
+        if (first != null && keys.size() > first) {
+            keys = keys.subList(0, first);
+        }
+        return childrenByKey(keys);
+    }
+
+    /**
+     * @return the keys of the first children in the window, sorted.
+     */
+    private List<String> firstKeys(String from, String to, String start, String end, int limit) {
+        List<String> read = new ArrayList<>();
+        try (ResultIterator<JsonRecord> children = new ShallowRecords(source, baseDBPath, from, to)) {
+            while (read.size() < limit && children.hasNext()) {
+                String key = childKey(children.next().getPath());
+                if (isInWindow(key, start, end)) {
+                    read.add(key);
+                }
+            }
+        }
+
+        // the keys with higher paths only sort before the keys read if they're a prefix of them.
+        TreeSet<String> keys = new TreeSet<>(read);
+        for (String key : read) {
+            for (int i = 1; i < key.length(); i++) {
+                String prefix = key.substring(0, i);
+                if (key.charAt(i) < '/' && isInWindow(prefix, start, end) && !keys.contains(prefix) &&
+                    source.first(PathRange.prefix(baseDBPath + prefix + "/")) != null) {
+                    keys.add(prefix);
+                }
+            }
+        }
+
+        List<String> result = new ArrayList<>(keys);
+        return result.subList(0, Math.min(limit, result.size()));
+    }
+
+    /**
+     * Walks backwards one child at a time to find the last children in the window.
+     *
+     * @return their keys, sorted.
+     */
+    private List<String> lastKeys(String from, String to, String start, String end, int limit) {
+        List<String> keys = new ArrayList<>();
+        // the keys read that the keys of lower paths may still sort after.
+        List<String> pending = new ArrayList<>();
+        int settled = 0;
+        String before = to;
+        while (settled < limit) {
+            String key = childKey(source.last(PathRange.of(from, before)));
+            if (key == null) {
+                break;
+            }
+            before = baseDBPath + key + "/";
+            // once all the paths that start with a key are read, the keys left sort before it.
+            for (Iterator<String> i = pending.iterator(); i.hasNext();) {
+                if ((baseDBPath + i.next()).compareTo(before) >= 0) {
+                    i.remove();
+                    settled++;
+                }
+            }
+            if (isInWindow(key, start, end)) {
+                keys.add(key);
+                pending.add(key);
+            }
+        }
+        Collections.sort(keys);
+        return keys.subList(Math.max(0, keys.size() - limit), keys.size());
+    }
+
+    /**
+     * @return the first path past the children with keys up to the given key,
+     * including the keys it starts with that are followed by a character below '/'.
+     */
+    private String upperBound(String endKey) {
+        for (int i = 1; i < endKey.length(); i++) {
+            if (endKey.charAt(i) < '/') {
+                return baseDBPath + endKey.substring(0, i) + '0';
+            }
+        }
+        return baseDBPath + endKey + '0';
+    }
+
+    private static boolean isInWindow(String key, String start, String end) {
+        return key != null && (start == null || key.compareTo(start) >= 0) && (end == null || key.compareTo(end) <= 0);
+    }
+
+    /**
+     * Orders the children by the value of their child in memory, which reads
+     * the child of every child: the ones past {@link #MAX_ORDERED_CHILDREN}
+     * fail the query, and only the children a limit selects are kept.
+     */
+    private ResultIterator<JsonRecord> orderedByChild() {
+        String childPath = JsonRecordSupport.convertToDBPath(options.orderByChild()).substring(1);
+        Child start = Child.bound(options.startAt());
+        Child end = Child.bound(options.endAt());
+        // limitToLast applies first when both limits are given.
+        Integer limit = options.limitToLast() != null ? options.limitToLast() : options.limitToFirst();
+
+        TreeSet<Child> children = new TreeSet<>(Child.VALUE_ORDER);
+        int read = 0;
+        try (ResultIterator<JsonRecord> records = source.selectWithChild(baseDBPath, childPath)) {
+
+            Child previous = null;
+            while (records.hasNext()) {
+                JsonRecord record = records.next();
+                String key = childKey(record.getPath());
+                if (key == null || previous != null && previous.key.equals(key)) {
+                    continue;
+                }
+                int valueStart = baseDBPath.length() + key.length() + 1;
+                if (!record.getPath().startsWith(childPath, valueStart)) {
+                    continue;
+                }
+                if (record.getPath().length() == valueStart + childPath.length()) {
+                    // large values are ordered by their value, not by their reference.
+                    JsonRecord value = source.resolve(record);
+                    previous = Child.of(key, value.getKind(), value.getValue());
+                } else {
+                    previous = new Child(key, Child.OBJECT, null);
+                }
+                if (++read > MAX_ORDERED_CHILDREN) {
+                    throw new JsonDBException("Can't order more than " + MAX_ORDERED_CHILDREN + " children by " + options.orderByChild() + ", order them by key instead");
+                }
+                if ((start == null || Child.VALUE_ORDER.compare(previous, start) >= 0) &&
+                    (end == null || Child.VALUE_ORDER.compare(previous, end) <= 0)) {
+                    children.add(previous);
+                    if (limit != null && children.size() > limit) {
+                        if (options.limitToLast() != null) {
+                            children.pollFirst();
+                        } else {
+                            children.pollLast();
+                        }
+                    }
+                }
+            }
+        }
+
+        List<String> keys = new ArrayList<>(children.size());
+        for (Child child : children) {
+            keys.add(child.key);
+        }
+        List<String> selected = keys;
+        if (options.limitToFirst() != null && selected.size() > options.limitToFirst()) {
+            selected = selected.subList(0, options.limitToFirst());
+        }
+
+        return childrenByKey(selected);
+    }
+
+    /**
+     * @return the records of the children, which are read in path order.
+     */
+    private ResultIterator<JsonRecord> childrenByKey(List<String> keys) {
+        List<String> sorted = new ArrayList<>(keys);
+        Collections.sort(sorted, (a, b) -> (a + "/").compareTo(b + "/"));
+        return new ChildrenByKey(sorted);
+    }
+
+    private String childKey(String path) {
+        if (path == null) {
+            return null;
+        }
+        int end = path.indexOf('/', baseDBPath.length());
+        if (end < 0) {
+            return null;
+        }
+        return path.substring(baseDBPath.length(), end);
+    }
+
+    private static String toDBKey(Object key) {
+        String dbPath = JsonRecordSupport.convertToDBPath(String.valueOf(key));
+        return dbPath.substring(1, dbPath.length() - 1);
+    }
+
+    /**
+     * Reads the records of a sorted list of children, a few children per query.
+     */
+    private final class ChildrenByKey implements ResultIterator<JsonRecord> {
+        private final List<String> keys;
+        private int nextKey;
+        private ResultIterator<JsonRecord> current;
+
+        /* default */ ChildrenByKey(List<String> keys) {
+            this.keys = keys;
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (current == null || !current.hasNext()) {
+                close();
+                if (nextKey >= keys.size()) {
+                    return false;
+                }
+                if (options.shallow()) {
+                    // only the first record of the child is needed.
+                    String childPath = baseDBPath + keys.get(nextKey) + "/";
+                    current = new ShallowRecords(source, baseDBPath, childPath, PathRange.upperBound(childPath));
+                    nextKey++;
+                } else {
+                    current = query(keys.subList(nextKey, Math.min(nextKey + KEYS_PER_QUERY, keys.size())));
+                    nextKey += KEYS_PER_QUERY;
+                }
+            }
+            return true;
+        }
+
+        private ResultIterator<JsonRecord> query(List<String> batch) {
+            List<PathRange> ranges = new ArrayList<>(batch.size());
+            for (String key : batch) {
+                ranges.add(PathRange.prefix(baseDBPath + key + "/"));
+            }
+            return source.select(ranges);
+        }
+
+        @Override
+        public JsonRecord next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return current.next();
+        }
+
+        @Override
+        public void close() {
+            if (current != null) {
+                current.close();
+                current = null;
+            }
+        }
+    }
+
+    /**
+     * Skips the records of the children with keys outside of the window.
+     */
+    private final class KeyWindow implements ResultIterator<JsonRecord> {
+        private final ResultIterator<JsonRecord> records;
+        private final String start;
+        private final String end;
+        private String key;
+        private boolean inWindow;
+        private JsonRecord next;
+
+        /* default */ KeyWindow(ResultIterator<JsonRecord> records, String start, String end) {
+            this.records = records;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (next == null && records.hasNext()) {
+                JsonRecord record = records.next();
+                String recordKey = childKey(record.getPath());
+                if (recordKey != null && !recordKey.equals(key)) {
+                    key = recordKey;
+                    inWindow = isInWindow(recordKey, start, end);
+                }
+                if (recordKey == null || inWindow) {
+                    next = record;
+                }
+            }
+            return next != null;
+        }
+
+        @Override
+        public JsonRecord next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            JsonRecord result = next;
+            next = null;
+            return result;
+        }
+
+        @Override
+        public void close() {
+            records.close();
+        }
+    }
+
+    /**
+     * A child and the value it's being ordered by.
+     */
+    private static final class Child {
+        // Rank of the value types, in the order Firebase sorts them
+        private static final int NULL = 0;
+        private static final int FALSE = 1;
+        private static final int TRUE = 2;
+        private static final int NUMBER = 3;
+        private static final int STRING = 4;
+        private static final int OBJECT = 5;
+
+        private static final Comparator<Child> VALUE_ORDER = (a, b) -> {
+            int rc = Integer.compare(a.rank, b.rank);
+            if (rc == 0 && a.value != null && b.value != null) {
+                if (a.rank == NUMBER) {
+                    rc = new BigDecimal(a.value).compareTo(new BigDecimal(b.value));
+                } else {
+                    rc = a.value.compareTo(b.value);
+                }
+            }
+            if (rc == 0 && a.key != null && b.key != null) {
+                rc = a.key.compareTo(b.key);
+            }
+            return rc;
+        };
+
+        private final String key;
+        private final int rank;
+        private final String value;
+
+        /* default */ Child(String key, int rank, String value) {
+            this.key = key;
+            this.rank = rank;
+            this.value = value;
+        }
+
+        /* default */ static Child of(String key, int kind, String value) {
+            switch (kind) {
+                case JsonTokenId.ID_FALSE:
+                    return new Child(key, FALSE, null);
+                case JsonTokenId.ID_TRUE:
+                    return new Child(key, TRUE, null);
+                case JsonTokenId.ID_NUMBER_INT:
+                case JsonTokenId.ID_NUMBER_FLOAT:
+                    return new Child(key, NUMBER, value);
+                case JsonTokenId.ID_STRING:
+                    return new Child(key, STRING, value);
+                default:
+                    return new Child(key, NULL, null);
+            }
+        }
+
+        /* default */ static Child bound(Object value) {
+            if (value == null) {
+                return null;
+            }
+            if (value instanceof Boolean) {
+                return new Child(null, (Boolean) value ? TRUE : FALSE, null);
+            }
+            if (value instanceof Number) {
+                return new Child(null, NUMBER, value.toString());
+            }
+            return new Child(null, STRING, value.toString());
+        }
+    }
+}
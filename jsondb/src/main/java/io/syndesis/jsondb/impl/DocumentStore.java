@@ -0,0 +1,443 @@
+/**
+ * Copyright (C) 2016 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.syndesis.jsondb.impl;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.function.Consumer;
+
+import io.syndesis.jsondb.GetOptions;
+import io.syndesis.jsondb.JsonDBException;
+
+import org.skife.jdbi.v2.Handle;
+import org.skife.jdbi.v2.ResultIterator;
+import org.skife.jdbi.v2.util.StringColumnMapper;
+
+/**
+ * Stores every entity of the document collections as a single json value
+ * in the {@code jsondb_document} table, keyed by the entity's db path like
+ * {@code /integrations/:<id>/}, instead of one row per leaf value in the
+ * {@code jsondb} table.  Reading an entity is then a single primary key
+ * lookup.  The documents are expanded back into records so they can be
+ * read, merged with the rows of the {@code jsondb} table, like any others.
+ *
+ * On PostgreSQL the documents are stored as {@code JSONB}, and the fields of
+ * the declared {@link Index indexes} get an expression index that
+ * {@link #fetchIds(Handle, Index, String)} queries.  Other databases store the
+ * documents as text and keep using the {@code jsondb_index} table.
+ */
+@SuppressWarnings("PMD.GodClass")
+/* default */ final class DocumentStore {
+
+    private static final String SELECT = "select path,value from jsondb_document where ";
+
+    // db paths of the document collections, like /integrations/
+    private final TreeSet<String> collections = new TreeSet<>();
+    private final boolean jsonb;
+    private final Upserts upserts;
+
+    /* default */ DocumentStore(Collection<String> collectionPaths, boolean jsonb, Upserts upserts) {
+        for (String path : collectionPaths) {
+            String dbPath = JsonRecordSupport.convertToDBPath(path);
+            if (dbPath.indexOf('/', 1) != dbPath.length() - 1) {
+                throw new IllegalArgumentException("Only top level collections can store documents: " + path);
+            }
+            collections.add(dbPath);
+        }
+        this.jsonb = jsonb;
+        this.upserts = upserts;
+    }
+
+    /* default */ boolean isEmpty() {
+        return collections.isEmpty();
+    }
+
+    /**
+     * @return true if the indexes of the document collections are expression indexes on the documents.
+     */
+    /* default */ boolean hasExpressionIndexes() {
+        return jsonb;
+    }
+
+    /* default */ boolean isDocumentCollection(String dbCollectionPath) {
+        return collections.contains(dbCollectionPath);
+    }
+
+    /**
+     * @return the db path of the document holding the db path, or null if the
+     * path is not stored in a document.
+     */
+    /* default */ String documentPath(String dbPath) {
+        String entityPath = EntityVersions.entityPath(dbPath);
+        if (entityPath == null || !collections.contains(entityPath.substring(0, entityPath.indexOf('/', 1) + 1))) {
+            return null;
+        }
+        return entityPath;
+    }
+
+    /**
+     * @return true if some of the paths of the range could be stored in documents.
+     */
+    /* default */ boolean overlaps(PathRange range) {
+        for (String collection : collections) {
+            if (collection.compareTo(range.to()) < 0 && PathRange.upperBound(collection).compareTo(range.from()) > 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the document holding all the paths of the range, or null if there is no such document.
+     */
+    /* default */ String containingDocument(PathRange range) {
+        String documentPath = documentPath(range.from());
+        if (documentPath != null && range.to().compareTo(PathRange.upperBound(documentPath)) <= 0) {
+            return documentPath;
+        }
+        return null;
+    }
+
+    /* default */ void createTable(Handle h) {
+        if (jsonb) {
+            h.update("CREATE TABLE jsondb_document (path VARCHAR COLLATE \"C\" PRIMARY KEY, value JSONB)");
+        } else {
+            h.update("CREATE TABLE jsondb_document (path VARCHAR PRIMARY KEY, value VARCHAR)");
+        }
+    }
+
+    /**
+     * Creates the expression indexes of the declared indexes on document collections.
+     */
+    /* default */ void createIndexes(Handle h, Collection<Index> indexes) {
+        if (!jsonb) {
+            return;
+        }
+        for (Index index : indexes) {
+            if (isDocumentCollection(index.getDBCollectionPath())) {
+                String name = "jsondb_document_" + index.getName().replaceAll("[^A-Za-z0-9]", "_");
+                h.update("CREATE INDEX IF NOT EXISTS " + name + " ON jsondb_document ((" + fieldExpression(index) + "))");
+            }
+        }
+    }
+
+    /**
+     * @return the sql expression extracting the indexed field from the documents, as text.
+     */
+    private static String fieldExpression(Index index) {
+        String fieldPath = index.getName().substring(index.getName().indexOf('#') + 1);
+        StringBuilder expression = new StringBuilder("value #>> '{");
+        int start = 0;
+        while (start < fieldPath.length()) {
+            int end = fieldPath.indexOf('/', start);
+            if (end < 0) {
+                end = fieldPath.length();
+            }
+            if (start > 0) {
+                expression.append(',');
+            }
+            String key = fieldPath.substring(start, end);
+            if (key.startsWith("[")) {
+                // arrays are indexed by position in json
+                key = Integer.toString(JsonRecordSupport.fromLexSortableStringToInt(key, '['));
+            }
+            expression.append('"').append(key.replace("'", "''").replace("\"", "\\\"")).append('"');
+            start = end + 1;
+        }
+        return expression.append("}'").toString();
+    }
+
+    /**
+     * @return the paths of the children of the collection who's indexed field has the value.
+     */
+    /* default */ Set<String> fetchIds(Handle h, Index index, String value) {
+        PathRange range = PathRange.prefix(index.getDBCollectionPath());
+        List<String> paths = h.createQuery("SELECT path from jsondb_document where " + PathRange.WHERE + " and " + fieldExpression(index) + " = :value")
+            .bind("from", range.from()).bind("to", range.to()).bind("value", value)
+            .map(StringColumnMapper.INSTANCE).list();
+
+        Set<String> result = new HashSet<>();
+        for (String path : paths) {
+            result.add(Strings.trimSuffix(path, "/"));
+        }
+        return result;
+    }
+
+    /**
+     * @return the records of the document sorted by path, or null if there is no such document.
+     */
+    /* default */ TreeMap<String, JsonRecord> load(Handle h, String documentPath) {
+        String value = h.createQuery("select value from jsondb_document where path = :path")
+            .bind("path", documentPath)
+            .map(StringColumnMapper.INSTANCE)
+            .first();
+        if (value == null) {
+            return null;
+        }
+        return toRecords(documentPath, value);
+    }
+
+    private static TreeMap<String, JsonRecord> toRecords(String documentPath, String value) {
+        TreeMap<String, JsonRecord> records = new TreeMap<>();
+        try {
+            JsonRecordSupport.jsonStreamToRecords(documentPath, new ByteArrayInputStream(value.getBytes(StandardCharsets.UTF_8)), r -> records.put(r.getPath(), r));
+        } catch (IOException e) {
+            throw new JsonDBException(e);
+        }
+        return records;
+    }
+
+    /**
+     * Replaces the document with the records, or deletes it when there are none.
+     */
+    /* default */ void store(Handle h, String documentPath, Collection<JsonRecord> records) {
+        if (records.isEmpty()) {
+            h.update("DELETE from jsondb_document where path = ?", documentPath);
+            return;
+        }
+
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        try {
+            Consumer<JsonRecord> toJson = JsonRecordSupport.recordsToJsonStream(documentPath, os, new GetOptions());
+            records.forEach(toJson);
+            toJson.accept(null);
+        } catch (IOException e) {
+            throw new JsonDBException(e);
+        }
+        String value = new String(os.toByteArray(), StandardCharsets.UTF_8);
+
+        String bind = jsonb ? "CAST(:value AS JSONB)" : ":value";
+        Map<String, Object> params = new HashMap<>();
+        params.put("path", documentPath);
+        params.put("value", value);
+        if (!upserts.upsert(h, "INSERT into jsondb_document (path, value) values (:path, " + bind + ")", "path",
+                "value = EXCLUDED.value", "UPDATE jsondb_document SET value = " + bind + " WHERE path = :path", params)) {
+            throw new JsonDBException("The document " + documentPath + " is being written concurrently");
+        }
+    }
+
+    /**
+     * @return the paths of the documents in the range.
+     */
+    /* default */ List<String> paths(Handle h, PathRange range) {
+        return h.createQuery("select path from jsondb_document where " + PathRange.WHERE + " order by path")
+            .bind("from", range.from()).bind("to", range.to())
+            .map(StringColumnMapper.INSTANCE).list();
+    }
+
+    /**
+     * Deletes the documents in the range.
+     *
+     * @return the number of deleted documents.
+     */
+    /* default */ int delete(Handle h, PathRange range) {
+        return h.createStatement("DELETE from jsondb_document where " + PathRange.WHERE)
+            .bind("from", range.from()).bind("to", range.to()).execute();
+    }
+
+    /**
+     * @return the records of the documents that are in the range, in path order.
+     */
+    /* default */ ResultIterator<JsonRecord> select(Handle h, PathRange range, int fetchSize) {
+        String documentPath = containingDocument(range);
+        if (documentPath != null) {
+            TreeMap<String, JsonRecord> records = load(h, documentPath);
+            if (records == null) {
+                return MapRecordSource.iterator(Collections.emptyIterator());
+            }
+            return MapRecordSource.iterator(within(records, range).values().iterator());
+        }
+
+        ResultIterator<Map<String, Object>> documents = h.createQuery(SELECT + PathRange.WHERE + " order by path")
+            .setFetchSize(fetchSize)
+            .bind("from", documentsFrom(range))
+            .bind("to", range.to())
+            .iterator();
+        return new DocumentRecords(documents, range);
+    }
+
+    /**
+     * @return the highest path of the document records in the range or null if there is none.
+     */
+    /* default */ String last(Handle h, PathRange range) {
+        try (ResultIterator<Map<String, Object>> documents = h.createQuery(SELECT + PathRange.WHERE + " order by path desc")
+            .bind("from", documentsFrom(range))
+            .bind("to", range.to())
+            .iterator()) {
+            while (documents.hasNext()) {
+                Map<String, Object> document = documents.next();
+                NavigableMap<String, JsonRecord> records = within(toRecords((String) document.get("path"), (String) document.get("value")), range);
+                if (!records.isEmpty()) {
+                    return records.lastKey();
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the lowest document path to look for records in the range, since
+     * the document holding the start of the range sorts before it.
+     */
+    private static String documentsFrom(PathRange range) {
+        String entityPath = EntityVersions.entityPath(range.from());
+        if (entityPath != null) {
+            return entityPath;
+        }
+        return range.from();
+    }
+
+    private static NavigableMap<String, JsonRecord> within(NavigableMap<String, JsonRecord> records, PathRange range) {
+        if (range.from().compareTo(range.to()) >= 0) {
+            return Collections.emptyNavigableMap();
+        }
+        return records.subMap(range.from(), true, range.to(), false);
+    }
+
+    /**
+     * Expands the documents into their records one document at a time.
+     */
+    private static final class DocumentRecords implements ResultIterator<JsonRecord> {
+        private final ResultIterator<Map<String, Object>> documents;
+        private final PathRange range;
+        private Iterator<JsonRecord> current = Collections.emptyIterator();
+
+        /* default */ DocumentRecords(ResultIterator<Map<String, Object>> documents, PathRange range) {
+            this.documents = documents;
+            this.range = range;
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (!current.hasNext() && documents.hasNext()) {
+                Map<String, Object> document = documents.next();
+                TreeMap<String, JsonRecord> records = toRecords((String) document.get("path"), (String) document.get("value"));
+                current = within(records, range).values().iterator();
+            }
+            return current.hasNext();
+        }
+
+        @Override
+        public JsonRecord next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return current.next();
+        }
+
+        @Override
+        public void close() {
+            documents.close();
+        }
+    }
+
+    /**
+     * Merges two iterators of records sorted by path.
+     */
+    /* default */ static final class MergedRecords implements ResultIterator<JsonRecord> {
+        private final ResultIterator<JsonRecord> left;
+        private final ResultIterator<JsonRecord> right;
+        private JsonRecord nextLeft;
+        private JsonRecord nextRight;
+
+        /* default */ MergedRecords(ResultIterator<JsonRecord> left, ResultIterator<JsonRecord> right) {
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (nextLeft == null && left.hasNext()) {
+                nextLeft = left.next();
+            }
+            if (nextRight == null && right.hasNext()) {
+                nextRight = right.next();
+            }
+            return nextLeft != null || nextRight != null;
+        }
+
+        @Override
+        public JsonRecord next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            JsonRecord result;
+            if (nextRight == null || nextLeft != null && nextLeft.getPath().compareTo(nextRight.getPath()) <= 0) {
+                result = nextLeft;
+                nextLeft = null;
+            } else {
+                result = nextRight;
+                nextRight = null;
+            }
+            return result;
+        }
+
+        @Override
+        public void close() {
+            try {
+                left.close();
+            } finally {
+                right.close();
+            }
+        }
+    }
+
+    /**
+     * Removes the records under the baseDBPath and the values stored at its parents.
+     *
+     * @return the number of records removed under the baseDBPath.
+     */
+    /* default */ static int removeRecords(NavigableMap<String, JsonRecord> records, String baseDBPath) {
+        PathRange range = PathRange.prefix(baseDBPath);
+        Map<String, JsonRecord> removed = records.subMap(range.from(), true, range.to(), false);
+        int count = removed.size();
+        removed.clear();
+        for (String parent : SqlJsonDB.getAllParentPaths(baseDBPath)) {
+            records.remove(parent);
+        }
+        return count;
+    }
+
+    /**
+     * @return the records of the maps that differ, the record of the first map being
+     * returned when a path is only in that one.
+     */
+    /* default */ static List<JsonRecord> changed(Map<String, JsonRecord> from, Map<String, JsonRecord> to) {
+        List<JsonRecord> result = new ArrayList<>();
+        for (JsonRecord r : from.values()) {
+            JsonRecord other = to.get(r.getPath());
+            if (other == null || other.getKind() != r.getKind() || !other.getValue().equals(r.getValue())) {
+                result.add(r);
+            }
+        }
+        return result;
+    }
+}
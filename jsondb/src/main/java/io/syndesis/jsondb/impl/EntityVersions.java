@@ -0,0 +1,200 @@
+/**
+ * Copyright (C) 2016 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.syndesis.jsondb.impl;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import io.syndesis.jsondb.JsonDBException;
+
+import org.skife.jdbi.v2.Handle;
+
+/**
+ * Maintains the {@code jsondb_version} table which holds a version number
+ * per entity, an entity being the child of a collection like
+ * {@code /integrations/:<id>}.  The version is incremented by every write
+ * that modifies the entity.  The row of a deleted entity is removed and its
+ * version added to the row of the collection, like {@code /integrations/},
+ * so the sum of the versions of the collection keeps increasing, and an
+ * entity created again starts above any version it had before.
+ *
+ * Incrementing the version of an entity at the start of a write also locks
+ * the entity's row for the rest of the transaction, which serializes
+ * concurrent writes to the same entity.
+ */
+/* default */ final class EntityVersions {
+
+    private static final String INSERT = "INSERT into jsondb_version (path, version) "
+        + "SELECT :path, COALESCE(MAX(version), 0) + 1 from jsondb_version where path = :collection";
+    private static final String INCREMENT = "version = jsondb_version.version + 1";
+    private static final String UPDATE = "UPDATE jsondb_version SET version = version + 1 WHERE path = :path";
+    private static final String ADD_INSERT = "INSERT into jsondb_version (path, version) values (:path, :version)";
+    private static final String ADD = "version = jsondb_version.version + :version";
+    private static final String ADD_UPDATE = "UPDATE jsondb_version SET version = version + :version WHERE path = :path";
+
+    private EntityVersions() {
+        // utility class
+    }
+
+    /**
+     * @return the db path of the entity holding the given db path, or null if
+     * the path is above the entities, like the root or a collection.
+     */
+    /* default */ static String entityPath(String dbPath) {
+        int collectionEnd = dbPath.indexOf('/', 1);
+        if (collectionEnd < 0) {
+            return null;
+        }
+        int entityEnd = dbPath.indexOf('/', collectionEnd + 1);
+        if (entityEnd < 0) {
+            return null;
+        }
+        return dbPath.substring(0, entityEnd + 1);
+    }
+
+    /**
+     * @return the db path of the collection holding the given db path.
+     */
+    /* default */ static String collectionPath(String dbPath) {
+        return dbPath.substring(0, dbPath.indexOf('/', 1) + 1);
+    }
+
+    /**
+     * @return the version of the entity or 0 if it was never written.
+     */
+    /* default */ static long get(Handle h, String entityPath) {
+        Long version = h.createQuery("SELECT version from jsondb_version where path = :path")
+            .bind("path", entityPath)
+            .mapTo(Long.class)
+            .first();
+        return version == null ? 0 : version;
+    }
+
+    /**
+     * @return the versions of all the entities in the range, by entity path.
+     */
+    /* default */ static Map<String, Long> all(Handle h, PathRange range) {
+        Map<String, Long> versions = new LinkedHashMap<>();
+        List<? extends Map.Entry<String, Long>> rows = h.createQuery("SELECT path, version from jsondb_version where " + PathRange.WHERE + " order by path")
+            .bind("from", range.from())
+            .bind("to", range.to())
+            .map((index, r, ctx) -> new AbstractMap.SimpleImmutableEntry<>(r.getString(1), r.getLong(2)))
+            .list();
+        for (Map.Entry<String, Long> row : rows) {
+            // skips the versions of the collections.
+            if (entityPath(row.getKey()) != null) {
+                versions.put(row.getKey(), row.getValue());
+            }
+        }
+        return versions;
+    }
+
+    /**
+     * @return the sum of the versions of all the entities in the range, which
+     * increases every time one of them is modified.
+     */
+    /* default */ static long sum(Handle h, PathRange range) {
+        Long version = h.createQuery("SELECT SUM(version) from jsondb_version where " + PathRange.WHERE)
+            .bind("from", range.from())
+            .bind("to", range.to())
+            .mapTo(Long.class)
+            .first();
+        return version == null ? 0 : version;
+    }
+
+    /**
+     * Increments the versions of the given entities, starting at 1 for the entities never written before.
+     *
+     * @throws JsonDBException if one of the entities is being written by another transaction the database can't wait for.
+     */
+    /* default */ static void increment(Handle h, Upserts upserts, Collection<String> entityPaths) {
+        List<Map<String, String>> rows = new ArrayList<>(entityPaths.size());
+        for (String path : entityPaths) {
+            rows.add(params(path));
+        }
+        if (!upserts.upsertAll(h, INSERT, "path", INCREMENT, UPDATE, rows)) {
+            throw new JsonDBException("An entity of " + entityPaths + " is being written concurrently");
+        }
+    }
+
+    /**
+     * Increments the version of the entity, which locks it until the transaction ends.
+     *
+     * @return false if the entity is being written by another transaction the database can't wait for.
+     */
+    /* default */ static boolean lock(Handle h, Upserts upserts, String entityPath) {
+        return upserts.upsert(h, INSERT, "path", INCREMENT, UPDATE, params(entityPath));
+    }
+
+    /**
+     * Removes the version of a deleted entity, adding it to the version of its collection.
+     *
+     * @throws JsonDBException if the collection is being written by another transaction the database can't wait for.
+     */
+    /* default */ static void remove(Handle h, Upserts upserts, String entityPath) {
+        long version = get(h, entityPath);
+        if (version == 0) {
+            return;
+        }
+        h.createStatement("DELETE from jsondb_version where path = :path")
+            .bind("path", entityPath)
+            .execute();
+        Map<String, Object> params = new HashMap<>();
+        params.put("path", collectionPath(entityPath));
+        params.put("version", version);
+        if (!upserts.upsert(h, ADD_INSERT, "path", ADD, ADD_UPDATE, params)) {
+            throw new JsonDBException("The collection of " + entityPath + " is being written concurrently");
+        }
+    }
+
+    /**
+     * Increments the versions of all the entities in the range.
+     */
+    /* default */ static void increment(Handle h, PathRange range) {
+        h.createStatement("UPDATE jsondb_version SET version = version + 1 WHERE " + PathRange.WHERE)
+            .bind("from", range.from())
+            .bind("to", range.to())
+            .execute();
+    }
+
+    private static Map<String, String> params(String path) {
+        Map<String, String> params = new HashMap<>();
+        params.put("path", path);
+        params.put("collection", collectionPath(path));
+        return params;
+    }
+
+    /**
+     * Increments the version of the entity only if it currently has the expected version.
+     *
+     * @return true if the version was incremented
+     */
+    /* default */ static boolean compareAndIncrement(Handle h, Upserts upserts, String entityPath, long expectedVersion) {
+        if (expectedVersion == 0) {
+            // never written: the insert fails if the entity was, or is being, written.
+            return upserts.insertIfAbsent(h, INSERT, "path", params(entityPath));
+        }
+        return h.createStatement("UPDATE jsondb_version SET version = version + 1 WHERE path = :path and version = :expected")
+            .bind("path", entityPath)
+            .bind("expected", expectedVersion)
+            .execute() > 0;
+    }
+}
@@ -0,0 +1,84 @@
+/**
+ * Copyright (C) 2016 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.syndesis.jsondb.impl;
+
+import java.util.List;
+
+import org.skife.jdbi.v2.Handle;
+import org.skife.jdbi.v2.util.StringColumnMapper;
+
+/**
+ * Maintains the {@code jsondb_expiry} table which holds the time at which
+ * the paths set with a time to live expire.  The table is indexed by the
+ * expiry time, so finding the expired paths never scans the jsondb table.
+ *
+ * Writing or deleting a path removes the expiries at and below it, so a
+ * value written without a time to live doesn't expire.
+ */
+/* default */ final class Expiries {
+
+    private Expiries() {
+        // utility class
+    }
+
+    /* default */ static void createTable(Handle h, boolean postgres) {
+        if (postgres) {
+            h.update("CREATE TABLE jsondb_expiry (path VARCHAR COLLATE \"C\" PRIMARY KEY, expires BIGINT)");
+        } else {
+            h.update("CREATE TABLE jsondb_expiry (path VARCHAR PRIMARY KEY, expires BIGINT)");
+        }
+        h.update("CREATE INDEX jsondb_expiry_expires ON jsondb_expiry (expires)");
+    }
+
+    /**
+     * Makes the db path expire at the given time, replacing any expiry at or below it.
+     */
+    /* default */ static void expire(Handle h, String dbPath, long expires) {
+        clear(h, PathRange.prefix(dbPath));
+        h.createStatement("INSERT INTO jsondb_expiry (path, expires) VALUES (:path, :expires)")
+            .bind("path", dbPath)
+            .bind("expires", expires)
+            .execute();
+    }
+
+    /**
+     * Removes the expiries of the paths in the range.
+     */
+    /* default */ static void clear(Handle h, PathRange range) {
+        h.createStatement("DELETE FROM jsondb_expiry WHERE " + PathRange.WHERE)
+            .bind("from", range.from())
+            .bind("to", range.to())
+            .execute();
+    }
+
+    /**
+     * @return true if any path has an expiry.
+     */
+    /* default */ static boolean exists(Handle h) {
+        return !h.createQuery("SELECT 1 FROM jsondb_expiry LIMIT 1").list().isEmpty();
+    }
+
+    /**
+     * @return the db paths that expired by the given time, the ones that expired first first.
+     */
+    /* default */ static List<String> expired(Handle h, long now, int limit) {
+        return h.createQuery("SELECT path FROM jsondb_expiry WHERE expires <= :now ORDER BY expires LIMIT :limit")
+            .bind("now", now)
+            .bind("limit", limit)
+            .map(StringColumnMapper.INSTANCE)
+            .list();
+    }
+}
@@ -0,0 +1,113 @@
+/**
+ * Copyright (C) 2016 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.syndesis.jsondb.impl;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Periodically deletes the paths of a {@link SqlJsonDB} who's time to live
+ * elapsed.  Every run deletes the expired paths in transactions of at most
+ * batchSize paths, and stops after maxBatches transactions so a large
+ * backlog gets worked off over several runs.
+ */
+public class ExpirySweeper {
+    private static final Logger LOG = LoggerFactory.getLogger(ExpirySweeper.class);
+
+    public static final int DEFAULT_BATCH_SIZE = 100;
+    public static final int DEFAULT_MAX_BATCHES = 10;
+
+    private final SqlJsonDB jsondb;
+    private final long periodMillis;
+    private final int batchSize;
+    private final int maxBatches;
+    private final LongAdder rowsRemoved = new LongAdder();
+    private ScheduledExecutorService scheduler;
+
+    public ExpirySweeper(SqlJsonDB jsondb, long periodMillis) {
+        this(jsondb, periodMillis, DEFAULT_BATCH_SIZE, DEFAULT_MAX_BATCHES);
+    }
+
+    public ExpirySweeper(SqlJsonDB jsondb, long periodMillis, int batchSize, int maxBatches) {
+        if (periodMillis <= 0 || batchSize <= 0 || maxBatches <= 0) {
+            throw new IllegalArgumentException("periodMillis, batchSize and maxBatches must be positive");
+        }
+        this.jsondb = jsondb;
+        this.periodMillis = periodMillis;
+        this.batchSize = batchSize;
+        this.maxBatches = maxBatches;
+    }
+
+    public synchronized void start() {
+        if (scheduler == null) {
+            scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "jsondb-expiry-sweeper");
+                thread.setDaemon(true);
+                return thread;
+            });
+            scheduler.scheduleWithFixedDelay(this::run, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    public synchronized void stop() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+    }
+
+    /**
+     * Deletes the expired paths.
+     *
+     * @return the number of records deleted.
+     */
+    public int sweep() {
+        int total = 0;
+        for (int i = 0; i < maxBatches; i++) {
+            int count = jsondb.deleteExpired(batchSize);
+            if (count == 0) {
+                break;
+            }
+            total += count;
+        }
+        rowsRemoved.add(total);
+        return total;
+    }
+
+    /**
+     * @return the number of records deleted by all the sweeps.
+     */
+    public long getRowsRemoved() {
+        return rowsRemoved.sum();
+    }
+
+    private void run() {
+        try {
+            int count = sweep();
+            if (count > 0) {
+                LOG.debug("Deleted {} expired records", count);
+            }
+        } catch (@SuppressWarnings("PMD.AvoidCatchingGenericException") RuntimeException e) {
+            // keep the sweeper scheduled, the next run tries again.
+            LOG.warn("Could not delete the expired records", e);
+        }
+    }
+}
@@ -0,0 +1,193 @@
+/**
+ * Copyright (C) 2016 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.syndesis.jsondb.impl;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Function;
+
+import io.syndesis.jsondb.JsonDBException;
+
+/**
+ * Collects the writes that concurrent threads make to a {@link SqlJsonDB}
+ * for up to maxDelayMillis, or until maxWrites writes are queued, and
+ * commits them all in a single transaction, so they share one commit and
+ * one batch of statements.  The futures of the writes complete once the
+ * transaction committed.
+ *
+ * The writes are parsed by the calling threads before they are queued, so
+ * a bad document only fails its own write.  If the transaction of a group
+ * fails, its writes are retried one transaction each, so only the writes
+ * that fail on their own report an error.
+ */
+/* default */ final class GroupCommitter {
+
+    // Queued by stop() after the last write.
+    private static final Write STOP = new Write(null);
+
+    private final BlockingQueue<Write> queue = new LinkedBlockingQueue<>();
+    private final Function<List<PathWrites>, boolean[]> groupWriter;
+    private final Function<PathWrites, Boolean> singleWriter;
+    private final long maxDelayMillis;
+    private final int maxWrites;
+    private final Thread thread;
+    // Held by submit() to queue, and by stop() to stop, so no write gets queued after the last drain.
+    private final ReadWriteLock stopLock = new ReentrantReadWriteLock();
+    private boolean stopped;
+
+    /* default */ static final class Write {
+        private final PathWrites writes;
+        private final CompletableFuture<Boolean> result = new CompletableFuture<>();
+
+        /* default */ Write(PathWrites writes) {
+            this.writes = writes;
+        }
+    }
+
+    /**
+     * @param groupWriter applies the writes of a group in one transaction, and returns which ones changed something.
+     * @param singleWriter applies a single write in its own transaction.
+     */
+    /* default */ GroupCommitter(Function<List<PathWrites>, boolean[]> groupWriter, Function<PathWrites, Boolean> singleWriter, long maxDelayMillis, int maxWrites) {
+        if (maxDelayMillis <= 0 || maxWrites <= 0) {
+            throw new IllegalArgumentException("maxDelayMillis and maxWrites must be positive");
+        }
+        this.groupWriter = groupWriter;
+        this.singleWriter = singleWriter;
+        this.maxDelayMillis = maxDelayMillis;
+        this.maxWrites = maxWrites;
+        this.thread = new Thread(this::run, "jsondb-group-commit");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * @return completes with whether the write changed something once it's committed.
+     */
+    /* default */ CompletableFuture<Boolean> submit(PathWrites writes) {
+        Write write = new Write(writes);
+        stopLock.readLock().lock();
+        try {
+            if (stopped) {
+                write.result.completeExceptionally(new JsonDBException("The group commit is stopped"));
+            } else {
+                queue.add(write);
+            }
+        } finally {
+            stopLock.readLock().unlock();
+        }
+        return write.result;
+    }
+
+    /**
+     * Waits for the write to be committed.
+     */
+    /* default */ boolean write(PathWrites writes) {
+        try {
+            return submit(writes).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new JsonDBException(e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new JsonDBException(e.getCause());
+        }
+    }
+
+    /**
+     * Commits the queued writes and stops the writer thread.
+     */
+    /* default */ void stop() {
+        stopLock.writeLock().lock();
+        try {
+            stopped = true;
+        } finally {
+            stopLock.writeLock().unlock();
+        }
+        // the thread isn't interrupted, that could abort the JDBC call it's in.
+        queue.add(STOP);
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        // the writes queued before stopped was set, behind STOP.
+        List<Write> left = new ArrayList<>();
+        queue.drainTo(left);
+        for (Write write : left) {
+            commit(Collections.singletonList(write));
+        }
+    }
+
+    private void run() {
+        List<Write> group = new ArrayList<>(maxWrites);
+        boolean stopping = false;
+        while (!stopping) {
+            try {
+                group.add(queue.take());
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(maxDelayMillis);
+                while (group.size() < maxWrites && group.get(group.size() - 1) != STOP) {
+                    Write next = queue.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                    if (next == null) {
+                        break;
+                    }
+                    group.add(next);
+                }
+            } catch (InterruptedException e) {
+                stopping = true;
+            }
+            stopping |= group.remove(STOP);
+            if (!group.isEmpty()) {
+                commit(group);
+                group.clear();
+            }
+        }
+    }
+
+    private void commit(List<Write> group) {
+        List<PathWrites> writes = new ArrayList<>(group.size());
+        for (Write write : group) {
+            writes.add(write.writes);
+        }
+        boolean[] changed;
+        try {
+            changed = groupWriter.apply(writes);
+        } catch (@SuppressWarnings("PMD.AvoidCatchingGenericException") RuntimeException e) {
+            // isolate the writes that fail.
+            for (Write write : group) {
+                try {
+                    write.result.complete(singleWriter.apply(write.writes));
+                } catch (@SuppressWarnings("PMD.AvoidCatchingGenericException") RuntimeException writeFailure) {
+                    write.result.completeExceptionally(writeFailure);
+                }
+            }
+            return;
+        }
+        for (int i = 0; i < group.size(); i++) {
+            group.get(i).result.complete(changed[i]);
+        }
+    }
+}
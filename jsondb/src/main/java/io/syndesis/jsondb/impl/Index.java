@@ -0,0 +1,105 @@
+/**
+ * Copyright (C) 2016 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.syndesis.jsondb.impl;
+
+/**
+ * Declares a secondary index on a field of the children of a collection,
+ * similar to the Firebase {@code .indexOn} rule.  For example
+ * {@code Index.of("/integrations", "name")} indexes the {@code name} field
+ * of every {@code /integrations/:<id>} object.
+ *
+ * The index entries are stored in the {@code jsondb_index} table and are
+ * kept up to date in the same transaction that modifies the indexed values.
+ */
+public final class Index {
+
+    private final String collectionPath;
+    private final String field;
+    private final String dbCollectionPath;
+    private final String dbFieldPath;
+    private final String name;
+
+    private Index(String collectionPath, String field) {
+        this.collectionPath = collectionPath;
+        this.field = field;
+        this.dbCollectionPath = JsonRecordSupport.convertToDBPath(collectionPath);
+        this.dbFieldPath = JsonRecordSupport.convertToDBPath(field).substring(1);
+        // '#' is not allowed in keys, so the name can't be ambiguous.
+        this.name = Strings.trimSuffix(dbCollectionPath, "/") + "#" + Strings.trimSuffix(dbFieldPath, "/");
+    }
+
+    public static Index of(String collectionPath, String field) {
+        return new Index(collectionPath, field);
+    }
+
+    public String getCollectionPath() {
+        return collectionPath;
+    }
+
+    public String getField() {
+        return field;
+    }
+
+    /**
+     * @return the value stored in the {@code idx} column of the index table.
+     */
+    public String getName() {
+        return name;
+    }
+
+    /* default */ String getDBCollectionPath() {
+        return dbCollectionPath;
+    }
+
+    /**
+     * @return true if the the db path is the path of the indexed field of one of
+     * the collection children.
+     */
+    /* default */ boolean matches(String dbPath) {
+        if (!dbPath.startsWith(dbCollectionPath)) {
+            return false;
+        }
+        int idEnd = dbPath.indexOf('/', dbCollectionPath.length());
+        if (idEnd <= dbCollectionPath.length()) {
+            return false;
+        }
+        int fieldStart = idEnd + 1;
+        return dbPath.length() - fieldStart == dbFieldPath.length() && dbPath.startsWith(dbFieldPath, fieldStart);
+    }
+
+    /**
+     * @return the path of the collection child that holds the field in the
+     * form of {@code /<collection>/:<id>}.
+     */
+    /* default */ String toChildPath(String dbPath) {
+        return dbPath.substring(0, dbPath.indexOf('/', dbCollectionPath.length()));
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof Index && name.equals(((Index) o).name);
+    }
+
+    @Override
+    public int hashCode() {
+        return name.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
@@ -0,0 +1,114 @@
+/**
+ * Copyright (C) 2016 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.syndesis.jsondb.impl;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.skife.jdbi.v2.Handle;
+import org.skife.jdbi.v2.PreparedBatch;
+import org.skife.jdbi.v2.util.StringColumnMapper;
+
+/**
+ * Collects the index entries for the records that are being written, and
+ * looks up the entities by the values of an index.
+ */
+/* default */ final class IndexBatch {
+
+    private final Handle dbi;
+    private final List<Index> indexes;
+    private PreparedBatch insertBatch;
+    private PreparedBatch deleteBatch;
+
+    /* default */ IndexBatch(Handle dbi, List<Index> indexes) {
+        this.dbi = dbi;
+        this.indexes = indexes;
+    }
+
+    public void remove(JsonRecord r) {
+        for (Index index : indexes) {
+            if (index.matches(r.getPath())) {
+                if (deleteBatch == null) {
+                    deleteBatch = dbi.prepareBatch("DELETE from jsondb_index WHERE path = :path");
+                }
+                deleteBatch.bind("path", r.getPath()).add();
+                return;
+            }
+        }
+    }
+
+    public void add(JsonRecord r) {
+        for (Index index : indexes) {
+            add(index, r);
+        }
+    }
+
+    public void add(Index index, JsonRecord r) {
+        if (index.matches(r.getPath())) {
+            if (insertBatch == null) {
+                insertBatch = dbi.prepareBatch("INSERT into jsondb_index (path, idx, value) values (:path, :idx, :value)");
+            }
+            insertBatch.bind("path", r.getPath())
+                .bind("idx", index.getName())
+                .bind("value", r.getValue())
+                .add();
+        }
+    }
+
+    public void flush() {
+        if (deleteBatch != null && deleteBatch.getSize() > 0) {
+            deleteBatch.execute();
+        }
+        if (insertBatch != null && insertBatch.getSize() > 0) {
+            insertBatch.execute();
+        }
+    }
+
+    /**
+     * @return the paths of the entities who's value of the index is the given value.
+     */
+    /* default */ static Set<String> fetchIds(Handle dbi, Index index, String value) {
+        final List<String> paths = dbi.createQuery("SELECT path from jsondb_index where idx = ? and value = ?")
+            .bind(0, index.getName()).bind(1, value)
+            .map(StringColumnMapper.INSTANCE).list();
+
+        Set<String> result = new HashSet<>();
+        for (String path : paths) {
+            result.add(index.toChildPath(path));
+        }
+        return result;
+    }
+
+    /**
+     * Finds the same paths as {@link #fetchIds(Handle, Index, String)} by scanning the
+     * rows of the index's collection, for the properties that are not indexed.
+     */
+    /* default */ static Set<String> scan(Handle dbi, Index index, String value) {
+        PathRange range = PathRange.prefix(index.getDBCollectionPath());
+        final List<String> paths = dbi.createQuery("SELECT path from jsondb where " + PathRange.WHERE + " and value = :value")
+            .bind("from", range.from()).bind("to", range.to()).bind("value", value)
+            .map(StringColumnMapper.INSTANCE).list();
+
+        Set<String> result = new HashSet<>();
+        for (String path : paths) {
+            if (index.matches(path)) {
+                result.add(index.toChildPath(path));
+            }
+        }
+        return result;
+    }
+}
@@ -20,14 +20,10 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.LinkedHashSet;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Set;
 import java.util.function.Consumer;
-import java.util.regex.Pattern;
-import java.util.stream.Collectors;
 
 import com.fasterxml.jackson.core.JsonFactory;
 import com.fasterxml.jackson.core.JsonGenerator;
@@ -52,7 +48,10 @@ import static com.fasterxml.jackson.core.JsonToken.VALUE_NULL;
 @SuppressWarnings({"PMD.GodClass", "PMD.CyclomaticComplexity", "PMD.ModifiedCyclomaticComplexity", "PMD.StdCyclomaticComplexity"})
 public final class JsonRecordSupport {
 
-    public static final Pattern INTEGER_PATTERN = Pattern.compile("^\\d+$");
+    private static final int MAX_KEY_LENGTH = 768;
+
+    // Factories are thread safe and expensive to create.
+    /* default */ static final JsonFactory JSON_FACTORY = new JsonFactory();
 
     /* default */ static class PathPart {
         private final String path;
@@ -90,7 +89,7 @@ public final class JsonRecordSupport {
     }
 
     public static void jsonStreamToRecords(String dbPath, InputStream is, Consumer<JsonRecord> consumer) throws IOException {
-        try (JsonParser jp = new JsonFactory().createParser(is)) {
+        try (JsonParser jp = JSON_FACTORY.createParser(is)) {
             jsonStreamToRecords(jp, dbPath, consumer);
 
             JsonToken jsonToken = jp.nextToken();
@@ -101,14 +100,92 @@ public final class JsonRecordSupport {
     }
 
     public static String convertToDBPath(String base) {
-        String value = Arrays.stream(base.split("/")).filter(x -> !x.isEmpty()).map(x ->
-            INTEGER_PATTERN.matcher(validateKey(x)).matches() ? toArrayIndexPath(Integer.parseInt(x)) : x
-        ).collect(Collectors.joining("/"));
-        return Strings.suffix(Strings.prefix(value, "/"), "/");
+        StringBuilder builder = new StringBuilder(base.length() + 8).append('/');
+        int length = base.length();
+        int start = 0;
+        while (start < length) {
+            int end = base.indexOf('/', start);
+            if (end < 0) {
+                end = length;
+            }
+            if (end > start) {
+                validateKey(base, start, end);
+                if (isInteger(base, start, end)) {
+                    appendLexSortable(builder, parseInt(base, start, end), '[');
+                } else {
+                    builder.append(base, start, end);
+                }
+                builder.append('/');
+            }
+            start = end + 1;
+        }
+        return builder.toString();
+    }
+
+    /**
+     * The reverse of {@link #convertToDBPath(String)}, e.g. {@code /list/[3/} becomes {@code /list/3}.
+     */
+    public static String convertFromDBPath(String dbPath) {
+        StringBuilder builder = new StringBuilder(dbPath.length());
+        int length = dbPath.length();
+        int start = 0;
+        while (start < length) {
+            int end = dbPath.indexOf('/', start);
+            if (end < 0) {
+                end = length;
+            }
+            if (end > start) {
+                builder.append('/');
+                if (dbPath.charAt(start) == '[') {
+                    builder.append(fromLexSortableStringToInt(dbPath, start, end, '['));
+                } else {
+                    builder.append(dbPath, start, end);
+                }
+            }
+            start = end + 1;
+        }
+        return builder.length() == 0 ? "/" : builder.toString();
+    }
+
+    private static boolean isInteger(String value, int start, int end) {
+        for (int i = start; i < end; i++) {
+            char c = value.charAt(i);
+            if (c < '0' || c > '9') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int parseInt(String value, int start, int end) {
+        long rc = 0;
+        for (int i = start; i < end; i++) {
+            rc = rc * 10 + value.charAt(i) - '0';
+            if (rc > Integer.MAX_VALUE) {
+                throw new NumberFormatException("For input string: \"" + value.substring(start, end) + "\"");
+            }
+        }
+        return (int) rc;
     }
 
     private static String validateKey(String key) {
-        if( key.chars().anyMatch(x -> { switch(x){
+        validateKey(key, 0, key.length());
+        return key;
+    }
+
+    private static void validateKey(CharSequence key, int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (isInvalidKeyChar(key.charAt(i))) {
+                throw new JsonDBException("Invalid key. Cannot contain ., %, $, #, [, ], /, or ASCII control characters 0-31 or 127. Key: "+key.subSequence(start, end));
+            }
+        }
+        if( end - start > MAX_KEY_LENGTH ) {
+            throw new JsonDBException("Invalid key. Key cannot ben longer than 768 characters. Key: "+key.subSequence(start, end));
+        }
+    }
+
+    private static boolean isInvalidKeyChar(char x) {
+        switch(x){
             case '.':
             case '%':
             case '$':
@@ -119,37 +196,40 @@ public final class JsonRecordSupport {
             case 127:
                 return true;
             default:
-                if( 0 < x &&  x < 32) {
-                    return true;
-                }
-                return false;
-        }})) {
-            throw new JsonDBException("Invalid key. Cannot contain ., %, $, #, [, ], /, or ASCII control characters 0-31 or 127. Key: "+key);
-        }
-        if( key.length() > 768 ) {
-            throw new JsonDBException("Invalid key. Key cannot ben longer than 768 characters. Key: "+key);
+                return 0 < x &&  x < 32;
         }
-        return key;
     }
 
     public static void jsonStreamToRecords(JsonParser jp, String path, Consumer<JsonRecord> consumer) throws IOException {
+        jsonStreamToRecords(jp, new StringBuilder(256).append(path), consumer);
+    }
+
+    /**
+     * The path builder is shared by all the nested calls, each call appends its
+     * key to it and truncates it back to its own path when done.
+     */
+    private static void jsonStreamToRecords(JsonParser jp, StringBuilder path, Consumer<JsonRecord> consumer) throws IOException {
+        int pathLength = path.length();
         boolean inArray = false;
         int arrayIndex = 0;
         while (true) {
             JsonToken nextToken = jp.nextToken();
 
-            String currentPath = path;
+            path.setLength(pathLength);
 
             if (nextToken == FIELD_NAME) {
                 if (inArray) {
-                    currentPath = path + toArrayIndexPath(arrayIndex) + "/";
+                    appendLexSortable(path, arrayIndex, '[').append('/');
                 }
-                jsonStreamToRecords(jp, currentPath + validateKey(jp.getCurrentName()) + "/", consumer);
+                String key = jp.getCurrentName();
+                validateKey(key);
+                path.append(key).append('/');
+                jsonStreamToRecords(jp, path, consumer);
             } else if (nextToken == VALUE_NULL) {
                 if (inArray) {
-                    currentPath = path + toArrayIndexPath(arrayIndex) + "/";
+                    appendLexSortable(path, arrayIndex, '[').append('/');
                 }
-                consumer.accept(JsonRecord.of(currentPath, "", nextToken.id()));
+                consumer.accept(JsonRecord.of(path.toString(), "", nextToken.id()));
                 if( inArray ) {
                     arrayIndex++;
                 } else {
@@ -157,9 +237,9 @@ public final class JsonRecordSupport {
                 }
             } else if (nextToken.isScalarValue()) {
                 if (inArray) {
-                    currentPath = path + toArrayIndexPath(arrayIndex) + "/";
+                    appendLexSortable(path, arrayIndex, '[').append('/');
                 }
-                consumer.accept(JsonRecord.of(currentPath, jp.getValueAsString(), nextToken.id()));
+                consumer.accept(JsonRecord.of(path.toString(), jp.getValueAsString(), nextToken.id()));
                 if( inArray ) {
                     arrayIndex++;
                 } else {
@@ -179,49 +259,69 @@ public final class JsonRecordSupport {
         }
     }
 
-    private static String toArrayIndexPath(int idx) {
-        // todo: encode the idx using something like http://www.zanopha.com/docs/elen.pdf
-        // so we get lexicographic ordering.
-        return toLexSortableString(idx, '[');
-    }
-
-    private static int toArrayIndex(String value) {
-        return fromLexSortableStringToInt(value, '[');
-    }
-
     /**
      * Based on:
      * http://www.zanopha.com/docs/elen.pdf
      */
     /* default */ static String toLexSortableString(int value, char marker) {
-        ArrayList<String> seqs = new ArrayList<String>();
+        return appendLexSortable(new StringBuilder(16), value, marker).toString();
+    }
 
-        String seq = Integer.toString(value);
-        seqs.add(seq);
-        while (seq.length() > 1) {
-            seq = Integer.toString(seq.length());
-            seqs.add(seq);
+    /**
+     * Appends the lexicographically sortable encoding of a non negative value: a
+     * marker per encoded number followed by the length of the length.. of the
+     * value, down to a single digit, and then the value itself.
+     */
+    /* default */ static StringBuilder appendLexSortable(StringBuilder builder, int value, char marker) {
+        int markers = 1;
+        for (int v = value; v > 9; v = digits(v)) {
+            markers++;
         }
-
-        StringBuilder builder = new StringBuilder();
-        for (int i = 0; i < seqs.size(); i++) {
+        for (int i = 0; i < markers; i++) {
             builder.append(marker);
         }
-        for (int i = seqs.size() - 1; i >= 0; i--) {
-            builder.append(seqs.get(i));
+        return appendLengthsAndValue(builder, value);
+    }
+
+    private static StringBuilder appendLengthsAndValue(StringBuilder builder, int value) {
+        if (value > 9) {
+            appendLengthsAndValue(builder, digits(value));
         }
-        return builder.toString();
+        return builder.append(value);
+    }
+
+    private static int digits(int value) {
+        int digits = 1;
+        for (int v = value; v > 9; v /= 10) {
+            digits++;
+        }
+        return digits;
     }
 
     /* default */ static int fromLexSortableStringToInt(String value, char marker) {
-        // Trim the initial markers.
-        String remaining = value.replaceFirst("^" + Pattern.quote(String.valueOf(marker)) + "+", "");
+        return fromLexSortableStringToInt(value, 0, value.length(), marker);
+    }
+
+    /**
+     * Decodes the value encoded between the start and end offsets of the given chars.
+     */
+    /* default */ static int fromLexSortableStringToInt(CharSequence value, int start, int end, char marker) {
+        // Skip over the initial markers.
+        int pos = start;
+        while (pos < end && value.charAt(pos) == marker) {
+            pos++;
+        }
 
         int rc = 1;
-        while (!remaining.isEmpty()) {
-            String x = remaining.substring(0, rc);
-            remaining = remaining.substring(rc);
-            rc = Integer.parseInt(x);
+        while (pos < end) {
+            int length = rc;
+            if (length > end - pos) {
+                throw new IllegalArgumentException("Not a lexicographically sortable value: " + value.subSequence(start, end));
+            }
+            rc = 0;
+            for (int i = 0; i < length; i++) {
+                rc = rc * 10 + Character.digit(value.charAt(pos++), 10);
+            }
         }
 
         return rc;
@@ -233,8 +333,11 @@ public final class JsonRecordSupport {
         private final JsonGenerator jg;
         private final OutputStream output;
         private final GetOptions options;
-        private final LinkedList<PathPart> currentPath = new LinkedList<>();
+        private final List<PathPart> currentPath = new ArrayList<>();
+        private final PathSegments newPath = new PathSegments();
         private final Set<String> shallowObjects = new LinkedHashSet<>();
+        private String lastShallowObject;
+        private boolean empty = true;
 
         /* default */ JsonRecordConsumer(String base, OutputStream output, GetOptions options) throws IOException {
             this.base = base;
@@ -249,7 +352,7 @@ public final class JsonRecordSupport {
                 String backack = this.options.callback() + "(";
                 output.write(backack.getBytes(StandardCharsets.UTF_8));
             }
-            this.jg = new JsonFactory().createGenerator(output);
+            this.jg = JSON_FACTORY.createGenerator(output);
             if( options.prettyPrint() ) {
                 jg.useDefaultPrettyPrinter();
             }
@@ -263,34 +366,32 @@ public final class JsonRecordSupport {
                     close();
                     return;
                 }
+                empty = false;
 
-                String path = record.getPath();
-                path = Strings.trimSuffix(path.substring(base.length()), "/");
-
-                // Lets see how much of the path we match compared to
-                // when we last got called.
-                List<String> newPath = new ArrayList<>(Arrays.asList(path.split("/")));
-                if (newPath.size() == 1 && newPath.get(0).isEmpty()) {
-                    newPath.clear();
-                }
+                newPath.reset(record.getPath(), base.length());
 
                 // should we skip over deep records?
                 if( this.options.shallow() && newPath.size() > 1 ) {
-                    shallowObjects.add(newPath.get(0));
+                    // the records are sorted so all the deep records of a child follow each other.
+                    if (lastShallowObject == null || !newPath.matches(0, lastShallowObject)) {
+                        lastShallowObject = newPath.get(0);
+                        shallowObjects.add(lastShallowObject);
+                    }
                     return;
                 }
 
-                int pathMatches = getPathMatches(newPath);
+                // Lets see how much of the path we match compared to
+                // when we last got called.
+                int pathMatches = getPathMatches();
 
                 // we might need to close objects down...
                 closeDownStructs(pathMatches);
                 // or open some new ones up...
-                openUpStructs(newPath, pathMatches);
+                openUpStructs(pathMatches);
 
                 if (!currentPath.isEmpty() && jg.getOutputContext().inArray()) {
-                    PathPart pathPart = currentPath.getLast();
-                    String last = newPath.get(newPath.size() - 1);
-                    int idx = toArrayIndex(last);
+                    PathPart pathPart = currentPath.get(currentPath.size() - 1);
+                    int idx = newPath.arrayIndex(newPath.size() - 1);
                     while (idx > pathPart.getIdx()) {
                         // to track the nulls that lead up to the next value.
                         pathPart.incrementIdx();
@@ -307,14 +408,14 @@ public final class JsonRecordSupport {
             }
         }
 
-        private void openUpStructs(List<String> newPath, int pathMatches) throws IOException {
+        private void openUpStructs(int pathMatches) throws IOException {
             int count;
 
             // we might need to open up objects...
             count = newPath.size();
             for (int i = pathMatches; i < count; i++) {
                 String part = newPath.get(i);
-                boolean array = part.startsWith("[");
+                boolean array = newPath.isArrayIndex(i);
 
                 if (array) {
                     if (jg.getOutputContext().inRoot()) {
@@ -328,16 +429,15 @@ public final class JsonRecordSupport {
                 }
 
                 if (i + 1 < count) {
-                    String nextPart = newPath.get(i + 1);
-                    boolean nextArray = nextPart.startsWith("[");
+                    boolean nextArray = newPath.isArrayIndex(i + 1);
 
                     PathPart pathPart = new PathPart(part, nextArray);
                     currentPath.add(pathPart);
 
-                    if (nextPart.startsWith("[")) {
+                    if (nextArray) {
                         jg.writeStartArray();
 
-                        int idx = toArrayIndex(nextPart);
+                        int idx = newPath.arrayIndex(i + 1);
                         while (idx > pathPart.getIdx()) {
                             pathPart.incrementIdx();
                             jg.writeNull();
@@ -353,7 +453,7 @@ public final class JsonRecordSupport {
         private void closeDownStructs(int pathMatches) throws IOException {
             int count = currentPath.size() - pathMatches;
             for (int i = 0; i < count; i++) {
-                if (currentPath.removeLast().isArray()) {
+                if (currentPath.remove(currentPath.size() - 1).isArray()) {
                     jg.writeEndArray();
                 } else {
                     jg.writeEndObject();
@@ -361,12 +461,12 @@ public final class JsonRecordSupport {
             }
         }
 
-        private int getPathMatches(List<String> newPath) {
+        private int getPathMatches() {
             int pathMatches = 0;
             for (int i = 0; i < currentPath.size() && i < newPath.size(); i++) {
                 PathPart lastPart = currentPath.get(i);
-                if (lastPart.getPath().equals(newPath.get(i)) ||
-                    (lastPart.isArray() && newPath.get(i).startsWith("["))) {
+                if (newPath.matches(i, lastPart.getPath()) ||
+                    (lastPart.isArray() && newPath.isArrayIndex(i))) {
                     pathMatches++;
                 } else {
                     break;
@@ -376,7 +476,15 @@ public final class JsonRecordSupport {
         }
 
         private void close() throws IOException {
+            if (empty) {
+                jg.writeStartObject();
+                jg.writeEndObject();
+            }
             if ( !shallowObjects.isEmpty() ) {
+                // all the children might have been objects.
+                if (jg.getOutputContext().inRoot()) {
+                    jg.writeStartObject();
+                }
                 for (String o : shallowObjects) {
                     jg.writeFieldName(o);
                     jg.writeBoolean(true);
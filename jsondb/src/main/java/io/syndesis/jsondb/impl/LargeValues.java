@@ -0,0 +1,239 @@
+/**
+ * Copyright (C) 2016 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.syndesis.jsondb.impl;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import com.fasterxml.jackson.core.JsonTokenId;
+
+import io.syndesis.jsondb.GetOptions;
+import io.syndesis.jsondb.JsonDBException;
+
+import org.skife.jdbi.v2.Handle;
+import org.skife.jdbi.v2.PreparedBatch;
+import org.skife.jdbi.v2.Query;
+import org.skife.jdbi.v2.util.ByteArrayColumnMapper;
+import org.skife.jdbi.v2.util.StringColumnMapper;
+
+/**
+ * Stores the string values longer than a threshold, like the specifications
+ * of swagger connectors, out of line: the value is compressed into the
+ * {@code jsondb_blob} table keyed by the SHA-256 hash of its content, and
+ * the {@code jsondb} row just holds the hash with the {@link #KIND} kind.
+ * Equal values are stored once, the blob counts the rows referencing it and
+ * is deleted with its last reference.
+ *
+ * The references are only resolved when their value is written out, so the
+ * reads that skip the value, like shallow reads, never load the blob.
+ */
+/* default */ final class LargeValues {
+
+    /**
+     * The kind of the jsondb records that reference a value in the jsondb_blob table.
+     */
+    /* default */ static final int KIND = 100;
+
+    /* default */ static final int DEFAULT_THRESHOLD = 32 * 1024;
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private int threshold = DEFAULT_THRESHOLD;
+
+    /* default */ static void createTable(Handle h) {
+        h.update("CREATE TABLE jsondb_blob (hash VARCHAR PRIMARY KEY, refs INT, value BYTEA)");
+    }
+
+    /* default */ int getThreshold() {
+        return threshold;
+    }
+
+    /* default */ void setThreshold(int threshold) {
+        if (threshold <= 0) {
+            throw new IllegalArgumentException("threshold must be positive");
+        }
+        this.threshold = threshold;
+    }
+
+    /* default */ static boolean isReference(JsonRecord r) {
+        return r.getKind() == KIND;
+    }
+
+    /**
+     * @return the record as it gets stored in the jsondb table: a reference
+     * to the value if it's a string over the threshold, otherwise the record itself.
+     */
+    /* default */ JsonRecord stored(JsonRecord r) {
+        if (r.getKind() != JsonTokenId.ID_STRING || r.getValue().length() <= threshold) {
+            return r;
+        }
+        return JsonRecord.of(r.getPath(), hash(r.getValue()), KIND);
+    }
+
+    /**
+     * @return the value compared with the value column of the jsondb table when looking up a value.
+     */
+    /* default */ String storedValue(String value) {
+        return value.length() <= threshold ? value : hash(value);
+    }
+
+    /**
+     * Adds a reference to the value of the record, storing the value if it's
+     * not yet stored.  Concurrent writes of the same value add their
+     * references to the same blob.
+     *
+     * @param stored the reference to the value of the record, as returned by {@link #stored(JsonRecord)}.
+     */
+    /* default */ static void retain(Handle h, Upserts upserts, JsonRecord r, JsonRecord stored) {
+        Map<String, Object> params = new HashMap<>();
+        params.put("hash", stored.getValue());
+        params.put("value", compress(r.getValue()));
+        if (!upserts.upsert(h, "INSERT INTO jsondb_blob (hash, refs, value) VALUES (:hash, 1, :value)", "hash",
+                "refs = jsondb_blob.refs + 1", "UPDATE jsondb_blob SET refs = refs + 1 WHERE hash = :hash", params)) {
+            throw new JsonDBException("The value of " + r.getPath() + " is being stored concurrently");
+        }
+    }
+
+    /**
+     * Removes references to values, deleting the values that are no longer referenced.
+     */
+    /* default */ static void release(Handle h, Collection<String> hashes) {
+        if (hashes.isEmpty()) {
+            return;
+        }
+        PreparedBatch decrement = h.prepareBatch("UPDATE jsondb_blob SET refs = refs - 1 WHERE hash = :hash");
+        PreparedBatch delete = h.prepareBatch("DELETE FROM jsondb_blob WHERE hash = :hash AND refs <= 0");
+        for (String hash : hashes) {
+            decrement.bind("hash", hash).add();
+            delete.bind("hash", hash).add();
+        }
+        decrement.execute();
+        delete.execute();
+    }
+
+    /* default */ static void release(Handle h, String hash) {
+        release(h, Collections.singletonList(hash));
+    }
+
+    /**
+     * Removes the references held by the rows of the range, before the rows get deleted.
+     */
+    /* default */ static void release(Handle h, PathRange range) {
+        release(h, h.createQuery("SELECT value FROM jsondb WHERE " + PathRange.WHERE + " AND kind = :kind")
+            .bind("from", range.from())
+            .bind("to", range.to())
+            .bind("kind", KIND)
+            .map(StringColumnMapper.INSTANCE)
+            .list());
+    }
+
+    /**
+     * Removes the references held by the rows of the paths, before the rows get deleted.
+     */
+    /* default */ static void release(Handle h, List<String> paths, String placeholders) {
+        Query<String> query = h.createQuery("SELECT value FROM jsondb WHERE path in ( " + placeholders + " ) AND kind = ?")
+            .map(StringColumnMapper.INSTANCE);
+        for (int i = 0; i < paths.size(); i++) {
+            query.bind(i, paths.get(i));
+        }
+        release(h, query.bind(paths.size(), KIND).list());
+    }
+
+    /**
+     * @return the record with its value loaded if it's a reference.
+     */
+    /* default */ static JsonRecord resolve(Handle h, JsonRecord r) {
+        if (r == null || !isReference(r)) {
+            return r;
+        }
+        byte[] value = h.createQuery("SELECT value FROM jsondb_blob WHERE hash = :hash")
+            .bind("hash", r.getValue())
+            .map(ByteArrayColumnMapper.INSTANCE)
+            .first();
+        if (value == null) {
+            throw new JsonDBException("The value of " + r.getPath() + " is missing");
+        }
+        return JsonRecord.of(r.getPath(), decompress(value), JsonTokenId.ID_STRING);
+    }
+
+    /**
+     * Wraps a consumer that writes the records as json so it loads the values
+     * of the references it writes.  The deep records of shallow reads only
+     * mark their child as an object, their values are not loaded.
+     */
+    /* default */ static Consumer<JsonRecord> resolving(Handle h, String baseDBPath, GetOptions options, Consumer<JsonRecord> toJson) {
+        return r -> {
+            if (r == null || !isReference(r) || options.shallow() && r.getPath().indexOf('/', baseDBPath.length()) < r.getPath().length() - 1) {
+                toJson.accept(r);
+            } else {
+                toJson.accept(resolve(h, r));
+            }
+        };
+    }
+
+    /* default */ static String hash(String value) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(value.getBytes(StandardCharsets.UTF_8));
+            char[] hex = new char[digest.length * 2];
+            for (int i = 0; i < digest.length; i++) {
+                hex[i * 2] = HEX[(digest[i] >> 4) & 0xF];
+                hex[i * 2 + 1] = HEX[digest[i] & 0xF];
+            }
+            return new String(hex);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static byte[] compress(String value) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(value.length() / 4);
+        try (OutputStream output = new GZIPOutputStream(bytes)) {
+            output.write(value.getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            throw new JsonDBException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static String decompress(byte[] value) {
+        try (InputStream input = new GZIPInputStream(new ByteArrayInputStream(value))) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(value.length * 4);
+            byte[] buffer = new byte[8 * 1024];
+            int count = input.read(buffer);
+            while (count >= 0) {
+                bytes.write(buffer, 0, count);
+                count = input.read(buffer);
+            }
+            return new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            throw new JsonDBException(e);
+        }
+    }
+}
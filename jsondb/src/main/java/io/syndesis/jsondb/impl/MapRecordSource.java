@@ -0,0 +1,134 @@
+/**
+ * Copyright (C) 2016 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.syndesis.jsondb.impl;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NoSuchElementException;
+import java.util.function.Function;
+
+import org.skife.jdbi.v2.ResultIterator;
+
+/**
+ * Reads the records from a map sorted by path, like the records of the
+ * {@link MemoryJsonDB}.
+ */
+/* default */ final class MapRecordSource implements RecordSource {
+
+    private final NavigableMap<String, JsonRecord> records;
+
+    /* default */ MapRecordSource(NavigableMap<String, JsonRecord> records) {
+        this.records = records;
+    }
+
+    private NavigableMap<String, JsonRecord> range(PathRange range) {
+        if (range.from().compareTo(range.to()) >= 0) {
+            return Collections.emptyNavigableMap();
+        }
+        return records.subMap(range.from(), true, range.to(), false);
+    }
+
+    @Override
+    public ResultIterator<JsonRecord> select(PathRange range) {
+        return iterator(range(range).values().iterator());
+    }
+
+    @Override
+    public ResultIterator<JsonRecord> select(List<PathRange> ranges) {
+        return new Concatenated(ranges, this::select);
+    }
+
+    @Override
+    public ResultIterator<JsonRecord> selectWithChild(String baseDBPath, String childPath) {
+        return select(PathRange.prefix(baseDBPath));
+    }
+
+    @Override
+    public JsonRecord first(PathRange range) {
+        Map.Entry<String, JsonRecord> entry = range(range).firstEntry();
+        return entry == null ? null : entry.getValue();
+    }
+
+    @Override
+    public String last(PathRange range) {
+        Map.Entry<String, JsonRecord> entry = range(range).lastEntry();
+        return entry == null ? null : entry.getKey();
+    }
+
+    @Override
+    public JsonRecord resolve(JsonRecord record) {
+        // the values are kept as they are.
+        return record;
+    }
+
+    /* default */ static ResultIterator<JsonRecord> iterator(Iterator<JsonRecord> iterator) {
+        return new ResultIterator<JsonRecord>() {
+            @Override
+            public boolean hasNext() {
+                return iterator.hasNext();
+            }
+
+            @Override
+            public JsonRecord next() {
+                return iterator.next();
+            }
+
+            @Override
+            public void close() {
+                // nothing to release
+            }
+        };
+    }
+
+    /**
+     * Iterates the records of disjoint sorted ranges one range after the other.
+     */
+    /* default */ static final class Concatenated implements ResultIterator<JsonRecord> {
+        private final Iterator<PathRange> remaining;
+        private final Function<PathRange, ResultIterator<JsonRecord>> select;
+        private ResultIterator<JsonRecord> current = iterator(Collections.emptyIterator());
+
+        /* default */ Concatenated(List<PathRange> ranges, Function<PathRange, ResultIterator<JsonRecord>> select) {
+            this.remaining = ranges.iterator();
+            this.select = select;
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (!current.hasNext() && remaining.hasNext()) {
+                current.close();
+                current = select.apply(remaining.next());
+            }
+            return current.hasNext();
+        }
+
+        @Override
+        public JsonRecord next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return current.next();
+        }
+
+        @Override
+        public void close() {
+            current.close();
+        }
+    }
+}
@@ -0,0 +1,684 @@
+/**
+ * Copyright (C) 2016 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.syndesis.jsondb.impl;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+import io.syndesis.core.EventBus;
+import io.syndesis.core.KeyGenerator;
+import io.syndesis.jsondb.GetOptions;
+import io.syndesis.jsondb.JsonDB;
+import io.syndesis.jsondb.JsonDBException;
+import io.syndesis.jsondb.WriteBatch;
+
+import org.skife.jdbi.v2.ResultIterator;
+
+/**
+ * Implements the JsonDB with the records held in memory, sorted by path
+ * just like the rows of the {@link SqlJsonDB}, so both share the code that
+ * turns records into json and the semantics of every operation, versions
+ * and change events included.
+ *
+ * Writes are serialized by a write lock held for the whole of a
+ * transaction, reads only wait for the writes in progress.  When created
+ * with a directory the committed changes are appended to a memory mapped
+ * journal which gets compacted into a snapshot as it grows, see
+ * {@link SnapshotLog}, and the records are recovered from those files on
+ * startup.
+ */
+@SuppressWarnings({"PMD.GodClass", "PMD.TooManyMethods", "PMD.CyclomaticComplexity", "PMD.ModifiedCyclomaticComplexity", "PMD.StdCyclomaticComplexity"})
+public class MemoryJsonDB implements JsonDB, Closeable {
+
+    /**
+     * Size of the journal past which it gets compacted into a snapshot.
+     */
+    public static final long DEFAULT_COMPACTION_THRESHOLD = 64 * 1024 * 1024;
+
+    private final ConcurrentSkipListMap<String, JsonRecord> records = new ConcurrentSkipListMap<>();
+    private final ConcurrentSkipListMap<String, Long> versions = new ConcurrentSkipListMap<>();
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final EventBus bus;
+    private final SnapshotLog log;
+
+    // The transaction the current thread runs in, see inTransaction.
+    private final ThreadLocal<Transaction> transaction = new ThreadLocal<>();
+
+    /**
+     * Creates a database that is not persisted.
+     */
+    public MemoryJsonDB(EventBus bus) {
+        this.bus = bus;
+        this.log = null;
+    }
+
+    public MemoryJsonDB(EventBus bus, File directory) throws IOException {
+        this(bus, directory, DEFAULT_COMPACTION_THRESHOLD);
+    }
+
+    /**
+     * Creates a database persisted in the directory, loading the records
+     * already stored there.
+     */
+    public MemoryJsonDB(EventBus bus, File directory, long compactionThreshold) throws IOException {
+        this.bus = bus;
+        this.log = new SnapshotLog(directory, compactionThreshold);
+        log.recover(records, versions);
+    }
+
+    /**
+     * Forces the journal to disk on every commit.  Otherwise the changes are
+     * written to the disk by the operating system, so they survive the
+     * process crashing but not the machine.
+     */
+    public void setSyncOnCommit(boolean syncOnCommit) {
+        if (log != null) {
+            log.setSyncOnCommit(syncOnCommit);
+        }
+    }
+
+    /**
+     * Writes a snapshot of all the records and starts a new journal.
+     */
+    public void snapshot() {
+        if (log != null) {
+            compact();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (log != null) {
+            lock.writeLock().lock();
+            try {
+                log.close();
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+    }
+
+    @Override
+    public String createKey() {
+        return KeyGenerator.createKey();
+    }
+
+    @Override
+    public Consumer<OutputStream> getAsStreamingOutput(String path, GetOptions options) {
+        GetOptions o;
+        if (options != null) {
+            o = options;
+        } else {
+            o = new GetOptions();
+        }
+
+        String baseDBPath = JsonRecordSupport.convertToDBPath(path);
+        PathRange range = PathRange.prefix(baseDBPath);
+        RecordSource source = new MapRecordSource(records);
+
+        // The records are copied so the output can be streamed without holding the lock.
+        List<JsonRecord> selected = new ArrayList<>();
+        boolean exists;
+        lock.readLock().lock();
+        try {
+            ResultIterator<JsonRecord> iterator;
+            if (o.isWindowed()) {
+                iterator = new ChildWindowQuery(source, baseDBPath, o).execute();
+            } else if (o.shallow()) {
+                iterator = new ShallowRecords(source, baseDBPath);
+            } else {
+                iterator = source.select(range);
+            }
+            try {
+                iterator.forEachRemaining(selected::add);
+            } finally {
+                iterator.close();
+            }
+            // an empty window of an existing path results in an empty object.
+            exists = !selected.isEmpty() || o.isWindowed() && source.first(range) != null;
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        if (!exists) {
+            return null;
+        }
+        return output -> {
+            try {
+                Consumer<JsonRecord> toJson = JsonRecordSupport.recordsToJsonStream(baseDBPath, output, o);
+                selected.forEach(toJson);
+                toJson.accept(null);
+            } catch (IOException e) {
+                throw new JsonDBException(e);
+            }
+        };
+    }
+
+    @Override
+    public boolean exists(String path) {
+        PathRange range = PathRange.prefix(JsonRecordSupport.convertToDBPath(path));
+        lock.readLock().lock();
+        try {
+            return new MapRecordSource(records).first(range) != null;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public Set<String> fetchIdsByPropertyValue(String collectionPath, String property, String value) {
+        Index index = Index.of(collectionPath, property);
+        Set<String> result = new HashSet<>();
+        lock.readLock().lock();
+        try {
+            try (ResultIterator<JsonRecord> iterator = new MapRecordSource(records).select(PathRange.prefix(index.getDBCollectionPath()))) {
+                iterator.forEachRemaining(r -> {
+                    if (index.matches(r.getPath()) && r.getValue().equals(value)) {
+                        result.add(index.toChildPath(r.getPath()));
+                    }
+                });
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return result;
+    }
+
+    @Override
+    public long getVersion(String path) {
+        String baseDBPath = JsonRecordSupport.convertToDBPath(path);
+        String entityPath = EntityVersions.entityPath(baseDBPath);
+        lock.readLock().lock();
+        try {
+            if (entityPath != null) {
+                return versions.getOrDefault(entityPath, 0L);
+            }
+            PathRange range = PathRange.prefix(baseDBPath);
+            long sum = 0;
+            for (Long version : versions.subMap(range.from(), range.to()).values()) {
+                sum += version;
+            }
+            return sum;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public Map<String, Long> getVersions(String collectionPath) {
+        PathRange range = PathRange.prefix(JsonRecordSupport.convertToDBPath(collectionPath));
+        Map<String, Long> result = new LinkedHashMap<>();
+        lock.readLock().lock();
+        try {
+            for (Map.Entry<String, Long> version : versions.subMap(range.from(), range.to()).entrySet()) {
+                // skips the versions of the collections.
+                if (EntityVersions.entityPath(version.getKey()) != null) {
+                    result.put(JsonRecordSupport.convertFromDBPath(version.getKey()), version.getValue());
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return result;
+    }
+
+    @Override
+    public boolean delete(String path) {
+        String baseDBPath = JsonRecordSupport.convertToDBPath(path);
+        boolean rc = write(tx -> tx.delete(baseDBPath) > 0);
+        if (rc) {
+            broadcast("jsondb-deleted", path);
+        }
+        return rc;
+    }
+
+    @Override
+    public void set(String path, InputStream body) {
+        String baseDBPath = JsonRecordSupport.convertToDBPath(path);
+        SortedRecords parsed = SortedRecords.parse(baseDBPath, body);
+        write(tx -> {
+            tx.setRecords(baseDBPath, parsed.values(), new HashSet<>());
+            return null;
+        });
+        broadcastUpdated(path);
+    }
+
+    @Override
+    public String push(String path, InputStream body) {
+        String key = createKey();
+        set(Strings.suffix(Strings.prefix(path, "/"), "/") + key + "/", body);
+        return key;
+    }
+
+    @Override
+    public boolean createIfAbsent(String path, InputStream body) {
+        String baseDBPath = JsonRecordSupport.convertToDBPath(path);
+        PathRange range = PathRange.prefix(baseDBPath);
+        return setIf(path, body, tx -> {
+            if (new MapRecordSource(records).first(range) != null) {
+                return false;
+            }
+            tx.incrementEntity(baseDBPath);
+            return true;
+        });
+    }
+
+    @Override
+    public boolean replaceIfExists(String path, InputStream body) {
+        String baseDBPath = JsonRecordSupport.convertToDBPath(path);
+        PathRange range = PathRange.prefix(baseDBPath);
+        return setIf(path, body, tx -> {
+            if (new MapRecordSource(records).first(range) == null) {
+                return false;
+            }
+            tx.incrementEntity(baseDBPath);
+            return true;
+        });
+    }
+
+    @Override
+    public boolean compareAndSet(String path, long expectedVersion, InputStream body) {
+        String entityPath = EntityVersions.entityPath(JsonRecordSupport.convertToDBPath(path));
+        if (entityPath == null) {
+            throw new IllegalArgumentException("Versions are only kept for the entities of a collection, not for: " + path);
+        }
+        return setIf(path, body, tx -> {
+            if (versions.getOrDefault(entityPath, 0L) != expectedVersion) {
+                return false;
+            }
+            tx.incrementEntity(entityPath);
+            return true;
+        });
+    }
+
+    /**
+     * Sets the path if the condition holds, the condition is responsible for
+     * incrementing the version of the entity holding the path.  Conditions
+     * check before they change anything, so nothing needs to be rolled back
+     * when they fail.
+     */
+    private boolean setIf(String path, InputStream body, Function<Transaction, Boolean> condition) {
+        String baseDBPath = JsonRecordSupport.convertToDBPath(path);
+        SortedRecords parsed = SortedRecords.parse(baseDBPath, body);
+        boolean rc = write(tx -> {
+            if (!condition.apply(tx)) {
+                return false;
+            }
+            Set<String> versioned = new HashSet<>();
+            String entityPath = EntityVersions.entityPath(baseDBPath);
+            if (entityPath != null) {
+                versioned.add(entityPath);
+            }
+            tx.setRecords(baseDBPath, parsed.values(), versioned);
+            return true;
+        });
+        if (rc) {
+            broadcastUpdated(path);
+        }
+        return rc;
+    }
+
+    @Override
+    public void update(String path, InputStream is) {
+        write(PathWrites.parseUpdate(path, is));
+    }
+
+    @Override
+    public void write(WriteBatch batch) {
+        write(PathWrites.of(batch));
+    }
+
+    private void write(PathWrites writes) {
+        if (writes.isEmpty()) {
+            return;
+        }
+        write(tx -> {
+            Set<String> versioned = new HashSet<>();
+            for (Map.Entry<String, SortedRecords> write : writes.entries()) {
+                if (write.getValue() == null) {
+                    tx.delete(write.getKey());
+                } else {
+                    tx.setRecords(write.getKey(), write.getValue().values(), versioned);
+                }
+            }
+            return null;
+        });
+        broadcastUpdated(writes.parentPath());
+    }
+
+    @Override
+    public boolean isInTransaction() {
+        return transaction.get() != null;
+    }
+
+    @Override
+    public <T> T inTransaction(Function<JsonDB, T> work) {
+        return write(tx -> work.apply(this));
+    }
+
+    /**
+     * Runs the work in the transaction of the current thread, or in a new one
+     * holding the write lock until it commits.
+     */
+    private <T> T write(Function<Transaction, T> work) {
+        Transaction tx = transaction.get();
+        if (tx != null) {
+            return work.apply(tx);
+        }
+
+        tx = new Transaction();
+        T result;
+        lock.writeLock().lock();
+        try {
+            transaction.set(tx);
+            try {
+                result = work.apply(tx);
+                tx.commit();
+            } catch (@SuppressWarnings("PMD.AvoidCatchingGenericException") RuntimeException e) {
+                tx.rollback();
+                throw e;
+            } finally {
+                transaction.remove();
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+
+        if (bus != null) {
+            for (Map.Entry<String, String> event : tx.events) {
+                bus.broadcast(event.getKey(), event.getValue());
+            }
+        }
+        if (log != null && log.shouldCompact()) {
+            compact();
+        }
+        return result;
+    }
+
+    /**
+     * Compacting only keeps the writes out, the reads can go on.
+     */
+    private void compact() {
+        lock.readLock().lock();
+        try {
+            synchronized (log) {
+                log.compact(records.values(), versions);
+            }
+        } catch (IOException e) {
+            throw new JsonDBException(e);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private void broadcastUpdated(String path) {
+        broadcast("jsondb-updated", path);
+    }
+
+    /**
+     * Events of writes done in a transaction are only sent once it commits.
+     */
+    private void broadcast(String event, String path) {
+        if (bus != null) {
+            String data = Strings.prefix(Strings.trimSuffix(path, "/"), "/");
+            Transaction tx = transaction.get();
+            if (tx == null) {
+                bus.broadcast(event, data);
+            } else {
+                tx.events.add(new AbstractMap.SimpleImmutableEntry<>(event, data));
+            }
+        }
+    }
+
+    /**
+     * Makes the changes of a thread, remembering the previous values of the
+     * records and versions it changed so they can be restored on rollback or
+     * journaled on commit.
+     */
+    private final class Transaction {
+        private final Map<String, JsonRecord> previousRecords = new HashMap<>();
+        private final Map<String, Long> previousVersions = new HashMap<>();
+        private final Set<Map.Entry<String, String>> events = new LinkedHashSet<>();
+
+        /**
+         * Replaces the records stored under the baseDBPath with the supplied records.
+         *
+         * @param versioned the entities who's version was already incremented by the current operation
+         */
+        /* default */ void setRecords(String baseDBPath, Collection<JsonRecord> updates, Set<String> versioned) {
+            String entityPath = EntityVersions.entityPath(baseDBPath);
+            if (entityPath != null && versioned.add(entityPath)) {
+                increment(entityPath);
+            }
+            deleteParentRecords(baseDBPath);
+
+            // Merge the two path ordered sets of records, the map is only
+            // changed once the merge is done.
+            List<String> deletes = new ArrayList<>();
+            List<JsonRecord> puts = new ArrayList<>();
+            PathRange range = PathRange.prefix(baseDBPath);
+            Iterator<JsonRecord> existing = records.subMap(range.from(), range.to()).values().iterator();
+            Iterator<JsonRecord> updated = updates.iterator();
+            JsonRecord current = next(existing);
+            JsonRecord update = next(updated);
+            while (current != null || update != null) {
+                int cmp;
+                if (current == null) {
+                    cmp = 1;
+                } else if (update == null) {
+                    cmp = -1;
+                } else {
+                    cmp = current.getPath().compareTo(update.getPath());
+                }
+
+                if (cmp < 0) {
+                    deletes.add(current.getPath());
+                    current = next(existing);
+                } else if (cmp > 0) {
+                    puts.add(update);
+                    update = next(updated);
+                } else {
+                    if (current.getKind() != update.getKind() || !current.getValue().equals(update.getValue())) {
+                        puts.add(update);
+                    }
+                    current = next(existing);
+                    update = next(updated);
+                }
+            }
+
+            apply(deletes, puts, versioned);
+        }
+
+        private void apply(List<String> deletes, List<JsonRecord> puts, Set<String> versioned) {
+            Set<String> modified = new LinkedHashSet<>();
+            for (String path : deletes) {
+                remove(path);
+                modified(path, versioned, modified);
+            }
+            for (JsonRecord r : puts) {
+                put(r);
+                modified(r.getPath(), versioned, modified);
+            }
+            for (String path : modified) {
+                increment(path);
+            }
+            versioned.addAll(modified);
+        }
+
+        private JsonRecord next(Iterator<JsonRecord> iterator) {
+            if (iterator.hasNext()) {
+                return iterator.next();
+            }
+            return null;
+        }
+
+        /**
+         * Values stored above the entities are versioned by their own path.
+         */
+        private void modified(String path, Set<String> versioned, Set<String> modified) {
+            String entityPath = EntityVersions.entityPath(path);
+            if (entityPath == null) {
+                entityPath = path;
+            }
+            if (!versioned.contains(entityPath)) {
+                modified.add(entityPath);
+            }
+        }
+
+        /* default */ int delete(String baseDBPath) {
+            PathRange range = PathRange.prefix(baseDBPath);
+            List<String> paths = new ArrayList<>(records.subMap(range.from(), range.to()).keySet());
+            // deleting a missing path changes nothing, not even the versions.
+            if (deleteParentRecords(baseDBPath) == 0 && paths.isEmpty()) {
+                return 0;
+            }
+            String entityPath = EntityVersions.entityPath(baseDBPath);
+            if (entityPath != null) {
+                increment(entityPath);
+            } else {
+                for (String path : new ArrayList<>(versions.subMap(range.from(), range.to()).keySet())) {
+                    increment(path);
+                }
+            }
+            for (String path : paths) {
+                remove(path);
+            }
+            if (baseDBPath.equals(entityPath)) {
+                removeVersion(entityPath);
+            }
+            return paths.size();
+        }
+
+        private int deleteParentRecords(String baseDBPath) {
+            int count = 0;
+            for (String path : SqlJsonDB.getAllParentPaths(baseDBPath)) {
+                if (records.containsKey(path)) {
+                    remove(path);
+                    count++;
+                }
+            }
+            return count;
+        }
+
+        /* default */ void incrementEntity(String baseDBPath) {
+            String entityPath = EntityVersions.entityPath(baseDBPath);
+            if (entityPath != null) {
+                increment(entityPath);
+            }
+        }
+
+        /**
+         * Increments the version, an entity never written starts above the version of its collection.
+         */
+        private void increment(String path) {
+            Long previous = versions.get(path);
+            if (previous == null) {
+                setVersion(path, versions.getOrDefault(EntityVersions.collectionPath(path), 0L) + 1);
+            } else {
+                setVersion(path, previous + 1);
+            }
+        }
+
+        /**
+         * Removes the version of a deleted entity, adding it to the version of its collection.
+         */
+        private void removeVersion(String entityPath) {
+            Long version = versions.get(entityPath);
+            if (version == null) {
+                return;
+            }
+            setVersion(entityPath, null);
+            String collectionPath = EntityVersions.collectionPath(entityPath);
+            setVersion(collectionPath, versions.getOrDefault(collectionPath, 0L) + version);
+        }
+
+        private void setVersion(String path, Long version) {
+            Long previous = version == null ? versions.remove(path) : versions.put(path, version);
+            if (!previousVersions.containsKey(path)) {
+                previousVersions.put(path, previous);
+            }
+        }
+
+        private void put(JsonRecord r) {
+            JsonRecord previous = records.put(r.getPath(), r);
+            if (!previousRecords.containsKey(r.getPath())) {
+                previousRecords.put(r.getPath(), previous);
+            }
+        }
+
+        private void remove(String path) {
+            JsonRecord previous = records.remove(path);
+            if (!previousRecords.containsKey(path)) {
+                previousRecords.put(path, previous);
+            }
+        }
+
+        /* default */ void commit() {
+            if (log == null) {
+                return;
+            }
+            SnapshotLog.Changes changes = new SnapshotLog.Changes();
+            for (String path : previousRecords.keySet()) {
+                JsonRecord r = records.get(path);
+                if (r == null) {
+                    changes.remove(path);
+                } else {
+                    changes.put(r);
+                }
+            }
+            for (String path : previousVersions.keySet()) {
+                // a removed version is journaled as 0, which no version has.
+                changes.version(path, versions.getOrDefault(path, 0L));
+            }
+            log.append(changes);
+        }
+
+        /* default */ void rollback() {
+            restore(records, previousRecords);
+            restore(versions, previousVersions);
+        }
+
+        private <V> void restore(NavigableMap<String, V> map, Map<String, V> previous) {
+            for (Map.Entry<String, V> entry : previous.entrySet()) {
+                if (entry.getValue() == null) {
+                    map.remove(entry.getKey());
+                } else {
+                    map.put(entry.getKey(), entry.getValue());
+                }
+            }
+        }
+    }
+}
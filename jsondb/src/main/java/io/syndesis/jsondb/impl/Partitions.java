@@ -0,0 +1,87 @@
+/**
+ * Copyright (C) 2016 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.syndesis.jsondb.impl;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Splits the tables keyed by path into a PostgreSQL declarative partition
+ * per top level collection, like {@code /integrations}, and a default
+ * partition for all the other paths.  Each partition has its own primary
+ * key index and is vacuumed on its own, so a busy collection doesn't slow
+ * down the others.  The partitions are ranges of paths, so the queries
+ * don't change: the range scans of a collection only read its partition, and
+ * the reads across collections get the partitions merged in path order.
+ *
+ * Needs PostgreSQL 11 or later, and is only applied when the tables get created.
+ */
+/* default */ final class Partitions {
+
+    private final List<String> collections = new ArrayList<>();
+
+    /**
+     * @param collections the top level collections, like {@code /integrations}, that get their own partition.
+     */
+    /* default */ Partitions(Collection<String> collections) {
+        Set<String> names = new HashSet<>();
+        names.add("default");
+        for (String collection : collections) {
+            String dbPath = JsonRecordSupport.convertToDBPath(collection);
+            if (dbPath.length() < 2 || dbPath.indexOf('/', 1) != dbPath.length() - 1) {
+                throw new IllegalArgumentException("Only top level collections can be partitioned: " + collection);
+            }
+            if (!names.add(name(dbPath))) {
+                throw new IllegalArgumentException("The partition of " + collection + " has the same name as another one");
+            }
+            this.collections.add(dbPath);
+        }
+    }
+
+    /* default */ boolean isEmpty() {
+        return collections.isEmpty();
+    }
+
+    /**
+     * @param columns the column definitions of the table, the path being its primary key.
+     * @return the statements that create the table and its partitions.
+     */
+    /* default */ List<String> createTable(String table, String columns) {
+        List<String> statements = new ArrayList<>();
+        statements.add("CREATE TABLE " + table + " (" + columns + ", PRIMARY KEY (path)) PARTITION BY RANGE (path)");
+        for (String dbPath : collections) {
+            statements.add("CREATE TABLE " + table + "_p_" + name(dbPath) + " PARTITION OF " + table
+                + " FOR VALUES FROM (" + literal(dbPath) + ") TO (" + literal(PathRange.upperBound(dbPath)) + ")");
+        }
+        statements.add("CREATE TABLE " + table + "_p_default PARTITION OF " + table + " DEFAULT");
+        return statements;
+    }
+
+    /**
+     * @return the name of the partition of the collection, made of the characters allowed in an unquoted identifier.
+     */
+    private static String name(String dbPath) {
+        return dbPath.substring(1, dbPath.length() - 1).toLowerCase(Locale.ROOT).replaceAll("[^a-z0-9_]", "_");
+    }
+
+    private static String literal(String value) {
+        return "'" + value.replace("'", "''") + "'";
+    }
+}
@@ -0,0 +1,73 @@
+/**
+ * Copyright (C) 2016 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.syndesis.jsondb.impl;
+
+/**
+ * A half open range of db paths: {@code from <= path < to}.
+ *
+ * Every db path ends with a '/' and '0' is the character that follows '/',
+ * so all the paths that start with a prefix sort before the prefix with
+ * its trailing '/' replaced by '0'.  That lets prefix queries
+ * use a range scan of the primary key instead of a {@code LIKE 'prefix%'}
+ * which many databases can't use an index for when the pattern is bound as
+ * a parameter.  It also avoids treating '_' in keys as a wildcard.
+ */
+/* default */ final class PathRange {
+
+    /**
+     * Predicate selecting the paths in the range, binds the {@code from} and {@code to} parameters.
+     */
+    public static final String WHERE = "path >= :from and path < :to";
+
+    private final String from;
+    private final String to;
+
+    private PathRange(String from, String to) {
+        this.from = from;
+        this.to = to;
+    }
+
+    /**
+     * @return the range of all the paths starting with the given db path.
+     */
+    public static PathRange prefix(String dbPath) {
+        return new PathRange(dbPath, upperBound(dbPath));
+    }
+
+    public static PathRange of(String from, String to) {
+        return new PathRange(from, to);
+    }
+
+    /**
+     * @return the first path that sorts after all the paths that start with the given db path.
+     */
+    public static String upperBound(String dbPath) {
+        return dbPath.substring(0, dbPath.length() - 1) + '0';
+    }
+
+    public String from() {
+        return from;
+    }
+
+    public String to() {
+        return to;
+    }
+
+    @Override
+    public String toString() {
+        return "[" + from + ", " + to + ")";
+    }
+}
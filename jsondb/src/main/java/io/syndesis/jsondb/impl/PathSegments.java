@@ -0,0 +1,90 @@
+/**
+ * Copyright (C) 2016 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.syndesis.jsondb.impl;
+
+import java.util.Arrays;
+
+/**
+ * Splits a db path into its '/' separated segments by recording the offsets
+ * of the segments instead of creating a string per segment.  An instance is
+ * meant to be reused for every path of a stream of records, so tokenizing a
+ * path does not allocate once the offset arrays are large enough.
+ */
+/* default */ final class PathSegments {
+
+    private String path = "";
+    private int[] starts = new int[16];
+    private int[] ends = new int[16];
+    private int size;
+
+    /**
+     * Tokenizes the part of the path starting at the given offset, empty segments are skipped.
+     */
+    /* default */ PathSegments reset(String path, int from) {
+        this.path = path;
+        this.size = 0;
+        int start = from;
+        int length = path.length();
+        while (start < length) {
+            int end = path.indexOf('/', start);
+            if (end < 0) {
+                end = length;
+            }
+            if (end > start) {
+                add(start, end);
+            }
+            start = end + 1;
+        }
+        return this;
+    }
+
+    private void add(int start, int end) {
+        if (size == starts.length) {
+            starts = Arrays.copyOf(starts, size * 2);
+            ends = Arrays.copyOf(ends, size * 2);
+        }
+        starts[size] = start;
+        ends[size] = end;
+        size++;
+    }
+
+    /* default */ int size() {
+        return size;
+    }
+
+    /**
+     * @return true if the segment is the same as the given value.
+     */
+    /* default */ boolean matches(int i, String value) {
+        int length = ends[i] - starts[i];
+        return value.length() == length && path.regionMatches(starts[i], value, 0, length);
+    }
+
+    /* default */ boolean isArrayIndex(int i) {
+        return path.charAt(starts[i]) == '[';
+    }
+
+    /**
+     * @return the decoded index of an array index segment.
+     */
+    /* default */ int arrayIndex(int i) {
+        return JsonRecordSupport.fromLexSortableStringToInt(path, starts[i], ends[i], '[');
+    }
+
+    /* default */ String get(int i) {
+        return path.substring(starts[i], ends[i]);
+    }
+}
@@ -0,0 +1,198 @@
+/**
+ * Copyright (C) 2016 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.syndesis.jsondb.impl;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import io.syndesis.jsondb.JsonDBException;
+import io.syndesis.jsondb.WriteBatch;
+
+/**
+ * The parsed writes of a multi-path update: the records to set, or null to
+ * delete, per db path.  The values are all parsed up front, so that a bad
+ * document is rejected before anything is written, and the paths are checked
+ * not to overlap, so that the writes can be applied in any order.
+ */
+/* default */ final class PathWrites {
+
+    private final TreeMap<String, SortedRecords> writes = new TreeMap<>();
+    private final String parentPath;
+    private boolean delete;
+
+    private PathWrites(String parentPath) {
+        this.parentPath = parentPath;
+    }
+
+    /**
+     * Parses a json object who's field names are paths relative to the given path.
+     */
+    /* default */ static PathWrites parseUpdate(String path, InputStream is) {
+        PathWrites result = new PathWrites(path);
+        try (JsonParser jp = JsonRecordSupport.JSON_FACTORY.createParser(is)) {
+            JsonToken nextToken = jp.nextToken();
+            if (nextToken != JsonToken.START_OBJECT ) {
+                throw new JsonParseException(jp, "Update did not contain a json object");
+            }
+
+            while(true) {
+
+                nextToken = jp.nextToken();
+                if (nextToken == JsonToken.END_OBJECT ) {
+                    break;
+                }
+                if (nextToken != JsonToken.FIELD_NAME ) {
+                    throw new JsonParseException(jp, "Expected a field name");
+                }
+
+                String key = Strings.suffix(path, "/")+jp.getCurrentName();
+                String baseDBPath = JsonRecordSupport.convertToDBPath(key);
+
+                SortedRecords records = new SortedRecords();
+                JsonRecordSupport.jsonStreamToRecords(jp, baseDBPath, records);
+                result.add(baseDBPath, records);
+            }
+
+            nextToken = jp.nextToken();
+            if (nextToken != null) {
+                throw new JsonParseException(jp, "Document did not terminate as expected.");
+            }
+        } catch (IOException e) {
+            throw new JsonDBException(e);
+        }
+        result.checkDisjoint();
+        return result;
+    }
+
+    /* default */ static PathWrites of(WriteBatch batch) {
+        List<String> paths = new ArrayList<>();
+        for (WriteBatch.Operation operation : batch.operations()) {
+            paths.add(operation.path());
+        }
+
+        PathWrites result = new PathWrites(getParentPath(paths));
+        for (WriteBatch.Operation operation : batch.operations()) {
+            String baseDBPath = JsonRecordSupport.convertToDBPath(operation.path());
+            SortedRecords records = null;
+            if (!operation.isDelete()) {
+                records = SortedRecords.parse(baseDBPath, operation.json());
+            }
+            result.add(baseDBPath, records);
+        }
+        result.checkDisjoint();
+        return result;
+    }
+
+    /**
+     * @return the set of a single path, or its delete when the records are null.
+     */
+    /* default */ static PathWrites single(String path, String baseDBPath, SortedRecords records) {
+        PathWrites result = new PathWrites(path);
+        result.add(baseDBPath, records);
+        result.delete = records == null;
+        return result;
+    }
+
+    private void add(String baseDBPath, SortedRecords records) {
+        if (writes.containsKey(baseDBPath)) {
+            throw new IllegalArgumentException("Path is written more than once: " + baseDBPath);
+        }
+        writes.put(baseDBPath, records);
+    }
+
+    private void checkDisjoint() {
+        String previous = null;
+        for (String baseDBPath : writes.keySet()) {
+            // sorted, so a parent comes right before the first of its children.
+            if (previous != null && baseDBPath.startsWith(previous)) {
+                throw new IllegalArgumentException("Path " + previous + " overlaps with path " + baseDBPath);
+            }
+            previous = baseDBPath;
+        }
+    }
+
+    public boolean isEmpty() {
+        return writes.isEmpty();
+    }
+
+    /**
+     * @return true if this is the delete of a single path, see {@link #single(String, String, SortedRecords)}.
+     */
+    public boolean isDelete() {
+        return delete;
+    }
+
+    /**
+     * @return true if any of the written paths is a parent or a child of, or the same as, one of the given db paths.
+     */
+    public boolean overlaps(Collection<String> dbPaths) {
+        for (String baseDBPath : writes.keySet()) {
+            for (String dbPath : dbPaths) {
+                if (baseDBPath.startsWith(dbPath) || dbPath.startsWith(baseDBPath)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the records to write per db path, in path order, the records are null for deletes.
+     */
+    public Set<Map.Entry<String, SortedRecords>> entries() {
+        return writes.entrySet();
+    }
+
+    /**
+     * @return the closest common parent of all the written paths.
+     */
+    public String parentPath() {
+        return parentPath;
+    }
+
+    /**
+     * @return the closest common parent of the paths.
+     */
+    /* default */ static String getParentPath(List<String> paths) {
+        String parent = null;
+        for (String path : paths) {
+            String normalized = Strings.suffix(Strings.prefix(path, "/"), "/");
+            if (parent == null) {
+                parent = normalized;
+            } else {
+                int end = 0;
+                int length = Math.min(parent.length(), normalized.length());
+                for (int i = 0; i < length && parent.charAt(i) == normalized.charAt(i); i++) {
+                    if (parent.charAt(i) == '/') {
+                        end = i;
+                    }
+                }
+                parent = parent.substring(0, end + 1);
+            }
+        }
+        return parent == null ? "/" : parent;
+    }
+}
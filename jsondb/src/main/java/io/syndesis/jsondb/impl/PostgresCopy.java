@@ -0,0 +1,57 @@
+/**
+ * Copyright (C) 2016 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.syndesis.jsondb.impl;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.sql.Connection;
+import java.sql.SQLException;
+
+import org.postgresql.PGConnection;
+import org.postgresql.copy.CopyIn;
+
+/**
+ * Runs the {@code COPY} statements of the {@link Snapshots} with the copy
+ * API of the PostgreSQL driver.  The driver is an optional dependency of the
+ * JsonDB, this is the only class using it and it's only loaded when the
+ * database is PostgreSQL, which brings its driver along.
+ */
+/* default */ final class PostgresCopy {
+
+    private PostgresCopy() {
+        // utility class
+    }
+
+    /**
+     * @return the number of rows copied to the output.
+     */
+    /* default */ static long copyOut(Connection connection, String sql, OutputStream output) throws SQLException, IOException {
+        return postgres(connection).getCopyAPI().copyOut(sql, output);
+    }
+
+    /* default */ static void copyIn(Connection connection, String sql, byte[] data) throws SQLException {
+        CopyIn in = postgres(connection).getCopyAPI().copyIn(sql);
+        in.writeToCopy(data, 0, data.length);
+        in.endCopy();
+    }
+
+    private static PGConnection postgres(Connection connection) throws SQLException {
+        if (connection instanceof PGConnection) {
+            return PGConnection.class.cast(connection);
+        }
+        return connection.unwrap(PGConnection.class);
+    }
+}
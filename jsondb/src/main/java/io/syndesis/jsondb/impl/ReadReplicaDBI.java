@@ -0,0 +1,115 @@
+/**
+ * Copyright (C) 2016 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.syndesis.jsondb.impl;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.sql.DataSource;
+
+import org.skife.jdbi.v2.DBI;
+
+/**
+ * A {@link DBI} on the primary database that also knows about read only
+ * replicas of it.  The handles it opens go to the primary, the stores get
+ * the {@link DBI} to use for the reads that can be served by a replica
+ * from {@link #reads(DBI)}, which hands out the replicas round robin.
+ *
+ * A thread that committed a write on the primary, and reported it with
+ * {@link #written()}, reads from the primary for the next stickyMillis, so a
+ * request sees its own writes even when the replicas lag behind.
+ * {@link #endRequest()} ends that stickiness, so a pooled thread doesn't
+ * carry it over to its next request.
+ */
+public class ReadReplicaDBI extends DBI {
+
+    private final DBI primaryReads;
+    private final List<DBI> replicas = new ArrayList<>();
+    private final long stickyNanos;
+    private final AtomicInteger next = new AtomicInteger();
+    private final ThreadLocal<Long> stickyUntil = new ThreadLocal<>();
+
+    public ReadReplicaDBI(DataSource primary, Collection<DataSource> replicas, long stickyMillis) {
+        super(primary);
+        this.primaryReads = new DBI(primary);
+        for (DataSource replica : replicas) {
+            this.replicas.add(new DBI(replica));
+        }
+        this.stickyNanos = TimeUnit.MILLISECONDS.toNanos(stickyMillis);
+    }
+
+    /**
+     * @return the dbi to read from, the primary when the given dbi isn't a {@link ReadReplicaDBI}.
+     */
+    public static DBI reads(DBI dbi) {
+        if (dbi instanceof ReadReplicaDBI) {
+            return ((ReadReplicaDBI) dbi).reads();
+        }
+        return dbi;
+    }
+
+    /**
+     * @return the next replica, or the primary when there are no replicas or the current thread recently used the primary.
+     */
+    public DBI reads() {
+        if (replicas.isEmpty() || isSticky()) {
+            return primaryReads;
+        }
+        return replicas.get(Math.floorMod(next.getAndIncrement(), replicas.size()));
+    }
+
+    /**
+     * Same as {@link #written()} when the dbi is a {@link ReadReplicaDBI}.
+     */
+    public static void written(DBI dbi) {
+        if (dbi instanceof ReadReplicaDBI) {
+            ((ReadReplicaDBI) dbi).written();
+        }
+    }
+
+    /**
+     * Sends the reads of the current thread to the primary for the next
+     * stickyMillis, to be called once a write on the primary committed.
+     */
+    public void written() {
+        stickyUntil.set(System.nanoTime() + stickyNanos);
+    }
+
+    /**
+     * @return true if the reads of the current thread go to the primary.
+     */
+    public boolean isSticky() {
+        Long until = stickyUntil.get();
+        if (until == null) {
+            return false;
+        }
+        if (System.nanoTime() - until < 0) {
+            return true;
+        }
+        stickyUntil.remove();
+        return false;
+    }
+
+    /**
+     * Sends the next reads of the current thread to the replicas again.
+     */
+    public void endRequest() {
+        stickyUntil.remove();
+    }
+}
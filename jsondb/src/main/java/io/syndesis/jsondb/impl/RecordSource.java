@@ -0,0 +1,62 @@
+/**
+ * Copyright (C) 2016 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.syndesis.jsondb.impl;
+
+import java.util.List;
+
+import org.skife.jdbi.v2.ResultIterator;
+
+/**
+ * The lookups the reads do on the records kept in path order, so that the
+ * window and shallow reads work the same on the jsondb table and on the
+ * in memory records of the {@link MemoryJsonDB}.
+ */
+/* default */ interface RecordSource {
+
+    /**
+     * @return the records in the range, in path order.
+     */
+    ResultIterator<JsonRecord> select(PathRange range);
+
+    /**
+     * @return the records of the disjoint ranges, in path order.
+     */
+    ResultIterator<JsonRecord> select(List<PathRange> ranges);
+
+    /**
+     * Selects the records that may hold the given child path in the children
+     * of the base path.  Sources are free to return more records than those,
+     * callers must check the paths of the returned records.
+     *
+     * @return the records in path order.
+     */
+    ResultIterator<JsonRecord> selectWithChild(String baseDBPath, String childPath);
+
+    /**
+     * @return the record with the lowest path in the range or null if the range is empty.
+     */
+    JsonRecord first(PathRange range);
+
+    /**
+     * @return the highest path in the range or null if the range is empty.
+     */
+    String last(PathRange range);
+
+    /**
+     * @return the record with its value loaded if it's a reference to a large value, see {@link LargeValues}.
+     */
+    JsonRecord resolve(JsonRecord record);
+}
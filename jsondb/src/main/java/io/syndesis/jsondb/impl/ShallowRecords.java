@@ -0,0 +1,93 @@
+/**
+ * Copyright (C) 2016 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.syndesis.jsondb.impl;
+
+import java.util.NoSuchElementException;
+
+import org.skife.jdbi.v2.ResultIterator;
+
+/**
+ * Iterates the first record of every direct child of a path, which is all a
+ * shallow read needs.  Since the records are stored in path order, once a
+ * child's first record is found the query can skip past all the remaining
+ * records of the child (a loose index scan), so listing the children costs
+ * one index seek per child instead of reading the whole subtree.
+ */
+/* default */ final class ShallowRecords implements ResultIterator<JsonRecord> {
+
+    private final RecordSource source;
+    private final String baseDBPath;
+    private final String to;
+    private String from;
+    private JsonRecord next;
+    private boolean done;
+
+    /**
+     * @param baseDBPath the path who's children are iterated
+     * @param from the lowest path to consider
+     * @param to the first path past the paths to consider
+     */
+    /* default */ ShallowRecords(RecordSource source, String baseDBPath, String from, String to) {
+        this.source = source;
+        this.baseDBPath = baseDBPath;
+        this.from = from;
+        this.to = to;
+    }
+
+    /* default */ ShallowRecords(RecordSource source, String baseDBPath) {
+        this(source, baseDBPath, baseDBPath, PathRange.upperBound(baseDBPath));
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (next != null) {
+            return true;
+        }
+        if (done) {
+            return false;
+        }
+
+        next = source.first(PathRange.of(from, to));
+        if (next == null) {
+            done = true;
+            return false;
+        }
+
+        int end = next.getPath().indexOf('/', baseDBPath.length());
+        if (end < 0) {
+            // the base path holds a value, it has no children.
+            done = true;
+        } else {
+            from = PathRange.upperBound(next.getPath().substring(0, end + 1));
+        }
+        return true;
+    }
+
+    @Override
+    public JsonRecord next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        JsonRecord result = next;
+        next = null;
+        return result;
+    }
+
+    @Override
+    public void close() {
+        done = true;
+    }
+}
@@ -0,0 +1,392 @@
+/**
+ * Copyright (C) 2016 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.syndesis.jsondb.impl;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+import io.syndesis.jsondb.JsonDBException;
+
+/**
+ * Persists the records and versions of a {@link MemoryJsonDB} in a directory
+ * holding a {@code snapshot} file, with all the records as of the last
+ * compaction, and a {@code journal-<generation>} file, a memory mapped append
+ * only log of the changes committed since.
+ *
+ * Both files hold frames of {@code [length][crc32][changes]}, every change
+ * holding the new value of a record or version rather than a delta, so
+ * replaying a change twice is harmless.  Recovery loads the snapshot and
+ * replays the journals of its generation and later up to the first frame that
+ * is incomplete or fails its checksum, i.e. the commit a crash interrupted.
+ *
+ * Compaction starts the journal of the next generation, then writes the
+ * snapshot of that generation to a temporary file that atomically replaces the
+ * previous snapshot once synced, and finally deletes the previous journal.  A
+ * crash at any point leaves a snapshot and journals that recover to the
+ * last commit.
+ */
+@SuppressWarnings("PMD.GodClass")
+/* default */ final class SnapshotLog implements Closeable {
+
+    private static final int SNAPSHOT_MAGIC = 0x4a53444e; // "JSDN"
+    private static final String SNAPSHOT = "snapshot";
+    private static final String JOURNAL = "journal-";
+    private static final int FRAME_HEADER = 8;
+    private static final int MIN_JOURNAL_CAPACITY = 1024 * 1024;
+    // Number of changes per frame of the snapshot.
+    private static final int SNAPSHOT_FRAME_CHANGES = 1024;
+
+    private static final byte PUT = 1;
+    private static final byte REMOVE = 2;
+    private static final byte VERSION = 3;
+
+    private final File directory;
+    private final long compactionThreshold;
+    private boolean syncOnCommit;
+
+    private long generation;
+    private FileChannel journal;
+    private MappedByteBuffer buffer;
+    private int position;
+
+    /**
+     * @param compactionThreshold size of the journal past which {@link #shouldCompact()} is true.
+     */
+    /* default */ SnapshotLog(File directory, long compactionThreshold) {
+        this.directory = directory;
+        this.compactionThreshold = compactionThreshold;
+    }
+
+    /* default */ void setSyncOnCommit(boolean syncOnCommit) {
+        this.syncOnCommit = syncOnCommit;
+    }
+
+    /**
+     * Loads the persisted records and versions and opens the journal for appending.
+     */
+    /* default */ void recover(Map<String, JsonRecord> records, Map<String, Long> versions) throws IOException {
+        Files.createDirectories(directory.toPath());
+
+        File snapshot = new File(directory, SNAPSHOT);
+        if (snapshot.exists()) {
+            try (DataInputStream in = new DataInputStream(Files.newInputStream(snapshot.toPath()))) {
+                if (in.readInt() != SNAPSHOT_MAGIC) {
+                    throw new IOException("Not a jsondb snapshot: " + snapshot);
+                }
+                generation = in.readLong();
+                while (true) {
+                    byte[] changes = readFrame(in, snapshot.length());
+                    if (changes == null) {
+                        break;
+                    }
+                    apply(changes, records, versions);
+                }
+            }
+        }
+
+        TreeMap<Long, File> journals = new TreeMap<>();
+        File[] files = directory.listFiles((dir, name) -> name.startsWith(JOURNAL));
+        if (files != null) {
+            for (File file : files) {
+                journals.put(Long.parseLong(file.getName().substring(JOURNAL.length())), file);
+            }
+        }
+        for (Map.Entry<Long, File> entry : journals.entrySet()) {
+            if (entry.getKey() < generation) {
+                // left over by a compaction that did not get to delete it.
+                Files.delete(entry.getValue().toPath());
+            } else {
+                generation = entry.getKey();
+                position = replay(entry.getValue(), records, versions);
+            }
+        }
+
+        openJournal(generation, position);
+    }
+
+    /**
+     * Replays the frames of a journal.
+     *
+     * @return the length of the valid frames.
+     */
+    private static int replay(File file, Map<String, JsonRecord> records, Map<String, Long> versions) throws IOException {
+        int valid = 0;
+        try (DataInputStream in = new DataInputStream(Files.newInputStream(file.toPath()))) {
+            while (true) {
+                byte[] changes = readFrame(in, file.length());
+                if (changes == null) {
+                    break;
+                }
+                apply(changes, records, versions);
+                valid += FRAME_HEADER + changes.length;
+            }
+        }
+        return valid;
+    }
+
+    /**
+     * @param fileLength bounds the length of a frame, so a torn length is not mistaken for a huge frame.
+     * @return the changes of the next frame, or null at the end of the valid frames.
+     */
+    private static byte[] readFrame(DataInputStream input, long fileLength) throws IOException {
+        try {
+            int length = input.readInt();
+            if (length <= 0 || length > fileLength) {
+                return null;
+            }
+            int crc = input.readInt();
+            byte[] changes = new byte[length];
+            input.readFully(changes);
+            if (crc(changes) != crc) {
+                return null;
+            }
+            return changes;
+        } catch (EOFException ignored) {
+            return null;
+        }
+    }
+
+    private static int crc(byte[] data) {
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, data.length);
+        return (int) crc.getValue();
+    }
+
+    private static void apply(byte[] changes, Map<String, JsonRecord> records, Map<String, Long> versions) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(changes));
+        while (in.available() > 0) {
+            byte type = in.readByte();
+            String path = readString(in);
+            switch (type) {
+                case PUT:
+                    int kind = in.readInt();
+                    records.put(path, JsonRecord.of(path, readString(in), kind));
+                    break;
+                case REMOVE:
+                    records.remove(path);
+                    break;
+                case VERSION:
+                    long version = in.readLong();
+                    if (version == 0) {
+                        versions.remove(path);
+                    } else {
+                        versions.put(path, version);
+                    }
+                    break;
+                default:
+                    throw new IOException("Unknown change type: " + type);
+            }
+        }
+    }
+
+    private static String readString(DataInputStream input) throws IOException {
+        byte[] data = new byte[input.readInt()];
+        input.readFully(data);
+        return new String(data, StandardCharsets.UTF_8);
+    }
+
+    private void openJournal(long generation, int position) throws IOException {
+        File file = new File(directory, JOURNAL + generation);
+        journal = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        // drop the frame torn by a crash, if any.
+        journal.truncate(position);
+        this.generation = generation;
+        this.position = position;
+        map(Math.max(MIN_JOURNAL_CAPACITY, position));
+    }
+
+    private void map(int capacity) throws IOException {
+        buffer = journal.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+    }
+
+    /**
+     * Appends the changes of a commit to the journal.
+     */
+    /* default */ void append(Changes changes) {
+        if (changes.isEmpty()) {
+            return;
+        }
+        byte[] data = changes.toByteArray();
+        try {
+            int needed = position + FRAME_HEADER + data.length;
+            if (needed > buffer.capacity()) {
+                map(Math.max(needed, buffer.capacity() * 2));
+            }
+            // the length goes in last, a frame is only read once it's set.
+            buffer.position(position + 4);
+            buffer.putInt(crc(data));
+            buffer.put(data);
+            buffer.putInt(position, data.length);
+            position = needed;
+            if (syncOnCommit) {
+                buffer.force();
+            }
+        } catch (IOException e) {
+            throw new JsonDBException(e);
+        }
+    }
+
+    /**
+     * @return true once the journal grew past the compaction threshold.
+     */
+    /* default */ boolean shouldCompact() {
+        return position > compactionThreshold;
+    }
+
+    /**
+     * Replaces the snapshot with the given records and versions and starts a new journal.
+     * The records and versions must not change while compacting.
+     */
+    /* default */ void compact(Iterable<JsonRecord> records, Map<String, Long> versions) throws IOException {
+        long previous = generation;
+        buffer.force();
+        journal.close();
+        openJournal(previous + 1, 0);
+
+        File tmp = new File(directory, SNAPSHOT + ".tmp");
+        try (FileChannel channel = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            OutputStream os = new BufferedOutputStream(Channels.newOutputStream(channel), 64 * 1024);
+            DataOutputStream out = new DataOutputStream(os);
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeLong(generation);
+
+            Changes changes = new Changes();
+            for (JsonRecord record : records) {
+                changes.put(record);
+                if (changes.size() >= SNAPSHOT_FRAME_CHANGES) {
+                    writeFrame(out, changes.toByteArray());
+                    changes = new Changes();
+                }
+            }
+            for (Map.Entry<String, Long> version : versions.entrySet()) {
+                changes.version(version.getKey(), version.getValue());
+                if (changes.size() >= SNAPSHOT_FRAME_CHANGES) {
+                    writeFrame(out, changes.toByteArray());
+                    changes = new Changes();
+                }
+            }
+            if (!changes.isEmpty()) {
+                writeFrame(out, changes.toByteArray());
+            }
+            out.flush();
+            channel.force(true);
+        }
+        Files.move(tmp.toPath(), new File(directory, SNAPSHOT).toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        Files.deleteIfExists(new File(directory, JOURNAL + previous).toPath());
+    }
+
+    private static void writeFrame(DataOutputStream output, byte[] data) throws IOException {
+        output.writeInt(data.length);
+        output.writeInt(crc(data));
+        output.write(data);
+    }
+
+    /* default */ long getGeneration() {
+        return generation;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (journal != null) {
+            buffer.force();
+            // drop the room mapped ahead for the next frames.
+            journal.truncate(position);
+            journal.close();
+            journal = null;
+        }
+    }
+
+    /**
+     * The changes made by a commit, encoded the way they are stored in a frame.
+     */
+    /* default */ static final class Changes {
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private final DataOutputStream out = new DataOutputStream(bytes);
+        private int size;
+
+        /* default */ Changes put(JsonRecord record) {
+            try {
+                out.writeByte(PUT);
+                writeString(record.getPath());
+                out.writeInt(record.getKind());
+                writeString(record.getValue());
+            } catch (IOException e) {
+                throw new JsonDBException(e);
+            }
+            size++;
+            return this;
+        }
+
+        /* default */ Changes remove(String path) {
+            try {
+                out.writeByte(REMOVE);
+                writeString(path);
+            } catch (IOException e) {
+                throw new JsonDBException(e);
+            }
+            size++;
+            return this;
+        }
+
+        /* default */ Changes version(String path, long version) {
+            try {
+                out.writeByte(VERSION);
+                writeString(path);
+                out.writeLong(version);
+            } catch (IOException e) {
+                throw new JsonDBException(e);
+            }
+            size++;
+            return this;
+        }
+
+        private void writeString(String value) throws IOException {
+            byte[] data = value.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(data.length);
+            out.write(data);
+        }
+
+        /* default */ int size() {
+            return size;
+        }
+
+        /* default */ boolean isEmpty() {
+            return size == 0;
+        }
+
+        /* default */ byte[] toByteArray() {
+            return bytes.toByteArray();
+        }
+    }
+}
@@ -0,0 +1,408 @@
+/**
+ * Copyright (C) 2016 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.syndesis.jsondb.impl;
+
+import java.io.BufferedReader;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.LongConsumer;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import io.syndesis.jsondb.JsonDBException;
+
+import org.skife.jdbi.v2.DBI;
+import org.skife.jdbi.v2.Handle;
+import org.skife.jdbi.v2.PreparedBatch;
+import org.skife.jdbi.v2.PreparedBatchPart;
+import org.skife.jdbi.v2.ResultIterator;
+import org.skife.jdbi.v2.TransactionIsolationLevel;
+
+/**
+ * Exports and imports the tables holding the JsonDB values as a single gzip
+ * compressed file.  The file holds a {@link #MAGIC} line followed by the rows
+ * of every table in the PostgreSQL {@code COPY} text format, each table
+ * starting with a {@code TABLE <name>} line and ending with a {@code \.} line,
+ * so PostgreSQL copies the rows straight to and from the file, and the other
+ * databases read and write the same format with plain queries and batched
+ * inserts.
+ *
+ * The import commits every {@link #CHUNK_ROWS} rows and reports how many rows
+ * of the file it committed, an interrupted import restarts by skipping those
+ * rows.  The jsondb_index entries are not part of the file, they are rebuilt
+ * after the import, and the entity versions are left alone.
+ */
+/* default */ final class Snapshots {
+
+    private static final String MAGIC = "JSONDB SNAPSHOT 1";
+    private static final String TABLE = "TABLE ";
+    private static final String END_OF_TABLE = "\\.";
+    private static final String NULL = "\\N";
+    private static final int CHUNK_ROWS = 1000;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private enum Type {
+        STRING(Types.VARCHAR), INT(Types.INTEGER), LONG(Types.BIGINT), BYTES(Types.BINARY);
+
+        private final int sqlType;
+
+        Type(int sqlType) {
+            this.sqlType = sqlType;
+        }
+    }
+
+    private static final class Table {
+        private final String name;
+        private final String columns;
+        private final Type[] types;
+
+        /* default */ Table(String name, String columns, Type... types) {
+            this.name = name;
+            this.columns = columns;
+            this.types = types;
+        }
+
+        /* default */ String select() {
+            // ordered by the primary key, which is the first column.
+            return "SELECT " + columns + " FROM " + name + " ORDER BY " + columns.substring(0, columns.indexOf(','));
+        }
+    }
+
+    // The tables in the order they are written to the file.
+    private static final List<Table> TABLES = Arrays.asList(
+        new Table("jsondb", "path, value, kind", Type.STRING, Type.STRING, Type.INT),
+        new Table("jsondb_blob", "hash, refs, value", Type.STRING, Type.INT, Type.BYTES),
+        new Table("jsondb_document", "path, value", Type.STRING, Type.STRING),
+        new Table("jsondb_expiry", "path, expires", Type.STRING, Type.LONG)
+    );
+
+    private Snapshots() {
+        // utility class
+    }
+
+    /**
+     * Writes the rows of all the tables, as of a single transaction, to the output.
+     *
+     * @return the number of rows written.
+     */
+    /* default */ static long export(DBI dbi, boolean copy, OutputStream output) {
+        try (Handle h = dbi.open()) {
+            TransactionIsolationLevel isolation = h.getTransactionIsolationLevel();
+            h.setTransactionIsolation(TransactionIsolationLevel.REPEATABLE_READ);
+            try {
+                h.begin();
+                try {
+                    return export(h, copy, output);
+                } finally {
+                    h.rollback();
+                }
+            } finally {
+                h.setTransactionIsolation(isolation);
+            }
+        }
+    }
+
+    private static long export(Handle h, boolean copy, OutputStream output) {
+        try {
+            // the caller closes the output, the gzip stream is just finished.
+            GZIPOutputStream gzip = new GZIPOutputStream(new FilterOutputStream(output) {
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    out.write(b, off, len);
+                }
+
+                @Override
+                public void close() throws IOException {
+                    flush();
+                }
+            }, BUFFER_SIZE);
+            writeLine(gzip, MAGIC);
+            long rows = 0;
+            for (Table table : TABLES) {
+                writeLine(gzip, TABLE + table.name);
+                if (copy) {
+                    rows += PostgresCopy.copyOut(h.getConnection(), "COPY (" + table.select() + ") TO STDOUT", gzip);
+                } else {
+                    try (ResultIterator<String> lines = h.createQuery(table.select())
+                        .setFetchSize(CHUNK_ROWS)
+                        .map((index, r, ctx) -> toLine(table, r))
+                        .iterator()) {
+                        while (lines.hasNext()) {
+                            writeLine(gzip, lines.next());
+                            rows++;
+                        }
+                    }
+                }
+                writeLine(gzip, END_OF_TABLE);
+            }
+            gzip.finish();
+            gzip.flush();
+            return rows;
+        } catch (IOException | SQLException e) {
+            throw new JsonDBException(e);
+        }
+    }
+
+    /**
+     * Deletes the current rows of the tables, and the index entries.
+     */
+    /* default */ static void clear(Handle h) {
+        h.update("DELETE FROM jsondb_index");
+        for (Table table : TABLES) {
+            h.update("DELETE FROM " + table.name);
+        }
+    }
+
+    /**
+     * Inserts the rows of the input, skipping the given number of rows
+     * committed by a previous import of the same input.
+     *
+     * @param committed called with the number of rows of the input committed so far.
+     * @return the number of rows inserted.
+     */
+    /* default */ static long importRows(DBI dbi, boolean copy, InputStream input, long skipRows, LongConsumer committed) {
+        try {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(new GZIPInputStream(input, BUFFER_SIZE), StandardCharsets.UTF_8), BUFFER_SIZE);
+            if (!MAGIC.equals(reader.readLine())) {
+                throw new JsonDBException("Not a jsondb snapshot");
+            }
+            long rows = 0;
+            List<String> chunk = new ArrayList<>(CHUNK_ROWS);
+            String line = reader.readLine();
+            while (line != null) {
+                Table table = table(line);
+                line = reader.readLine();
+                while (!END_OF_TABLE.equals(line)) {
+                    if (line == null) {
+                        throw new JsonDBException("The snapshot is truncated");
+                    }
+                    rows++;
+                    if (rows > skipRows) {
+                        chunk.add(line);
+                        if (chunk.size() == CHUNK_ROWS) {
+                            load(dbi, copy, table, chunk);
+                            committed.accept(rows);
+                        }
+                    }
+                    line = reader.readLine();
+                }
+                if (!chunk.isEmpty()) {
+                    load(dbi, copy, table, chunk);
+                    committed.accept(rows);
+                }
+                line = reader.readLine();
+            }
+            return Math.max(0, rows - skipRows);
+        } catch (IOException e) {
+            throw new JsonDBException(e);
+        }
+    }
+
+    private static Table table(String line) {
+        if (line.startsWith(TABLE)) {
+            String name = line.substring(TABLE.length());
+            for (Table table : TABLES) {
+                if (table.name.equals(name)) {
+                    return table;
+                }
+            }
+        }
+        throw new JsonDBException("Unexpected line in the snapshot: " + line);
+    }
+
+    /**
+     * Inserts and clears the chunk of rows in its own transaction.
+     */
+    private static void load(DBI dbi, boolean copy, Table table, List<String> chunk) {
+        dbi.inTransaction((h, status) -> {
+            if (copy) {
+                StringBuilder data = new StringBuilder(chunk.size() * 128);
+                for (String line : chunk) {
+                    data.append(line).append('\n');
+                }
+                byte[] bytes = data.toString().getBytes(StandardCharsets.UTF_8);
+                PostgresCopy.copyIn(h.getConnection(), "COPY " + table.name + " (" + table.columns + ") FROM STDIN", bytes);
+            } else {
+                String placeholders = String.join(", ", Collections.nCopies(table.types.length, "?"));
+                PreparedBatch batch = h.prepareBatch("INSERT INTO " + table.name + " (" + table.columns + ") VALUES (" + placeholders + ")");
+                for (String line : chunk) {
+                    bind(batch.add(), table, line);
+                }
+                batch.execute();
+            }
+            return null;
+        });
+        chunk.clear();
+    }
+
+    private static void bind(PreparedBatchPart part, Table table, String line) {
+        List<String> fields = fromLine(line);
+        if (fields.size() != table.types.length) {
+            throw new JsonDBException("Unexpected row of " + table.name + " in the snapshot: " + line);
+        }
+        for (int i = 0; i < fields.size(); i++) {
+            String value = fields.get(i);
+            Type type = table.types[i];
+            if (value == null) {
+                part.bindNull(i, type.sqlType);
+            } else if (type == Type.INT) {
+                part.bind(i, Integer.parseInt(value));
+            } else if (type == Type.LONG) {
+                part.bind(i, Long.parseLong(value));
+            } else if (type == Type.BYTES) {
+                part.bind(i, fromHex(value));
+            } else {
+                part.bind(i, value);
+            }
+        }
+    }
+
+    /**
+     * @return the row as a line of the COPY text format, binary values being hex encoded like PostgreSQL does.
+     */
+    private static String toLine(Table table, ResultSet r) throws SQLException {
+        StringBuilder line = new StringBuilder(128);
+        for (int i = 0; i < table.types.length; i++) {
+            if (i > 0) {
+                line.append('\t');
+            }
+            String value;
+            if (table.types[i] == Type.BYTES) {
+                byte[] bytes = r.getBytes(i + 1);
+                value = bytes == null ? null : toHex(bytes);
+            } else {
+                value = r.getString(i + 1);
+            }
+            if (value == null) {
+                line.append(NULL);
+            } else {
+                escape(line, value);
+            }
+        }
+        return line.toString();
+    }
+
+    private static void escape(StringBuilder line, String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '\\':
+                    line.append("\\\\");
+                    break;
+                case '\n':
+                    line.append("\\n");
+                    break;
+                case '\r':
+                    line.append("\\r");
+                    break;
+                case '\t':
+                    line.append("\\t");
+                    break;
+                default:
+                    line.append(c);
+            }
+        }
+    }
+
+    /**
+     * @return the unescaped fields of a line of the COPY text format, null for {@code \N}.
+     */
+    /* default */ static List<String> fromLine(String line) {
+        List<String> fields = new ArrayList<>(4);
+        StringBuilder field = new StringBuilder(line.length());
+        boolean isNull = false;
+        int i = 0;
+        while (i <= line.length()) {
+            char c = i < line.length() ? line.charAt(i) : '\t';
+            if (c == '\t') {
+                fields.add(isNull ? null : field.toString());
+                field.setLength(0);
+                isNull = false;
+            } else if (c == '\\' && i + 1 < line.length()) {
+                i++;
+                char escaped = line.charAt(i);
+                switch (escaped) {
+                    case 'N':
+                        isNull = true;
+                        break;
+                    case 'b':
+                        field.append('\b');
+                        break;
+                    case 'f':
+                        field.append('\f');
+                        break;
+                    case 'n':
+                        field.append('\n');
+                        break;
+                    case 'r':
+                        field.append('\r');
+                        break;
+                    case 't':
+                        field.append('\t');
+                        break;
+                    case 'v':
+                        field.append('\u000b');
+                        break;
+                    default:
+                        field.append(escaped);
+                }
+            } else {
+                field.append(c);
+            }
+            i++;
+        }
+        return fields;
+    }
+
+    private static String toHex(byte[] bytes) {
+        char[] hex = new char[2 + bytes.length * 2];
+        hex[0] = '\\';
+        hex[1] = 'x';
+        for (int i = 0; i < bytes.length; i++) {
+            hex[2 + i * 2] = HEX[(bytes[i] >> 4) & 0xF];
+            hex[3 + i * 2] = HEX[bytes[i] & 0xF];
+        }
+        return new String(hex);
+    }
+
+    private static byte[] fromHex(String value) {
+        if (!value.startsWith("\\x") || value.length() % 2 != 0) {
+            throw new JsonDBException("Not a hex encoded binary value: " + value);
+        }
+        byte[] bytes = new byte[(value.length() - 2) / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) (Character.digit(value.charAt(2 + i * 2), 16) << 4 | Character.digit(value.charAt(3 + i * 2), 16));
+        }
+        return bytes;
+    }
+
+    private static void writeLine(OutputStream output, String line) throws IOException {
+        output.write(line.getBytes(StandardCharsets.UTF_8));
+        output.write('\n');
+    }
+}
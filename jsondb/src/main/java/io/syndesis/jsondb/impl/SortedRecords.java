@@ -0,0 +1,53 @@
+/**
+ * Copyright (C) 2016 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.syndesis.jsondb.impl;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collection;
+import java.util.TreeMap;
+import java.util.function.Consumer;
+
+import io.syndesis.jsondb.JsonDBException;
+
+/**
+ * Collects records sorted by path, since documents are not parsed in path order.
+ */
+/* default */ final class SortedRecords implements Consumer<JsonRecord> {
+    private final TreeMap<String, JsonRecord> records = new TreeMap<>();
+
+    /**
+     * @return the records of the json document stored at the db path.
+     */
+    /* default */ static SortedRecords parse(String baseDBPath, InputStream body) {
+        SortedRecords records = new SortedRecords();
+        try {
+            JsonRecordSupport.jsonStreamToRecords(baseDBPath, body, records);
+        } catch (IOException e) {
+            throw new JsonDBException(e);
+        }
+        return records;
+    }
+
+    @Override
+    public void accept(JsonRecord r) {
+        records.put(r.getPath(), r);
+    }
+
+    public Collection<JsonRecord> values() {
+        return records.values();
+    }
+}
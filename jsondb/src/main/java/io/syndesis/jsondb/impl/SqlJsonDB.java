@@ -15,39 +15,43 @@
  */
 package io.syndesis.jsondb.impl;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.sql.ResultSet;
-import java.sql.SQLException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.AbstractMap;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashSet;
-import java.util.LinkedList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Consumer;
-import java.util.regex.Pattern;
-
-import com.fasterxml.jackson.core.JsonFactory;
-import com.fasterxml.jackson.core.JsonParseException;
-import com.fasterxml.jackson.core.JsonParser;
-import com.fasterxml.jackson.core.JsonToken;
+import java.util.function.Function;
+import java.util.function.LongConsumer;
+import java.util.function.Predicate;
 
 import io.syndesis.core.EventBus;
 import io.syndesis.core.KeyGenerator;
 import io.syndesis.jsondb.GetOptions;
 import io.syndesis.jsondb.JsonDB;
 import io.syndesis.jsondb.JsonDBException;
+import io.syndesis.jsondb.WriteBatch;
 
 import org.skife.jdbi.v2.DBI;
 import org.skife.jdbi.v2.Handle;
 import org.skife.jdbi.v2.PreparedBatch;
 import org.skife.jdbi.v2.ResultIterator;
-import org.skife.jdbi.v2.StatementContext;
-import org.skife.jdbi.v2.tweak.ResultSetMapper;
-import org.skife.jdbi.v2.util.IntegerColumnMapper;
 import org.skife.jdbi.v2.util.StringColumnMapper;
 
 /**
@@ -63,19 +67,56 @@ public class SqlJsonDB implements JsonDB {
         PostgreSQL, SQLite, H2, CockroachDB
     }
 
+    public static final int DEFAULT_FETCH_SIZE = 1000;
+
+    private static final String SET_IF_SAVEPOINT = "jsondb_set_if";
+
+    // How often the writes check whether there are expiries left to clear.
+    private static final long EXPIRIES_CHECK_MILLIS = 1000;
+
     private final DBI dbi;
     private final EventBus bus;
+    private final List<Index> indexes;
+    private final DocumentStore documents;
+    private final Upserts upserts;
+    private final WriteStatistics writeStatistics = new WriteStatistics();
+    private final LargeValues largeValues = new LargeValues();
+    private Partitions partitions = new Partitions(Collections.emptyList());
+    private volatile GroupCommitter groupCommitter;
+
+    // Whether jsondb_expiry may have rows, so the writes without a time to live can skip clearing it.
+    private volatile boolean expiries = true;
+    private volatile long expiriesCheckedAt;
+    private final AtomicLong expiriesWritten = new AtomicLong();
+
+    // Number of rows the JDBC driver reads ahead when streaming records.
+    private int fetchSize = DEFAULT_FETCH_SIZE;
+
+    // The transaction the current thread runs in, see inTransaction.
+    private final ThreadLocal<Transaction> transaction = new ThreadLocal<>();
 
     // These values are used to compute a seq key
     private DatabaseKind databaseKind = DatabaseKind.PostgreSQL;
 
     public SqlJsonDB(DBI dbi, EventBus bus) {
+        this(dbi, bus, Collections.emptyList());
+    }
+
+    public SqlJsonDB(DBI dbi, EventBus bus, Collection<Index> indexes) {
+        this(dbi, bus, indexes, Collections.emptyList());
+    }
+
+    /**
+     * @param documentCollections the top level collections, like {@code /integrations},
+     * who's entities are each stored as a single json document instead of a row per value.
+     */
+    public SqlJsonDB(DBI dbi, EventBus bus, Collection<Index> indexes, Collection<String> documentCollections) {
         this.dbi = dbi;
         this.bus = bus;
-
+        this.indexes = new ArrayList<>(new LinkedHashSet<>(indexes));
 
         // Lets find out the type of DB we are working with.
-        withTransaction(x -> {
+        withReadTransaction(x -> {
             try {
                 String dbName = x.getConnection().getMetaData().getDatabaseProductName();
                 databaseKind = DatabaseKind.valueOf(dbName);
@@ -91,24 +132,241 @@ public class SqlJsonDB implements JsonDB {
                 throw new IllegalStateException("Could not determine the database type", e);
             }
         });
+        this.upserts = new Upserts(databaseKind == DatabaseKind.PostgreSQL || databaseKind == DatabaseKind.CockroachDB);
+        this.documents = new DocumentStore(documentCollections, databaseKind == DatabaseKind.PostgreSQL, upserts);
     }
 
     public void createTables() {
         withTransaction(dbi -> {
-            if(databaseKind == DatabaseKind.PostgreSQL) {
+            if(databaseKind == DatabaseKind.PostgreSQL && !partitions.isEmpty()) {
+                partitions.createTable("jsondb", "path VARCHAR COLLATE \"C\", value VARCHAR, kind INT").forEach(dbi::update);
+                partitions.createTable("jsondb_index", "path VARCHAR COLLATE \"C\", idx VARCHAR, value VARCHAR").forEach(dbi::update);
+                dbi.update("CREATE TABLE jsondb_version (path VARCHAR COLLATE \"C\" PRIMARY KEY, version BIGINT)");
+            } else if(databaseKind == DatabaseKind.PostgreSQL) {
                 dbi.update("CREATE TABLE jsondb (path VARCHAR COLLATE \"C\" PRIMARY KEY, value VARCHAR, kind INT)");
+                dbi.update("CREATE TABLE jsondb_index (path VARCHAR COLLATE \"C\" PRIMARY KEY, idx VARCHAR, value VARCHAR)");
+                dbi.update("CREATE TABLE jsondb_version (path VARCHAR COLLATE \"C\" PRIMARY KEY, version BIGINT)");
             } else {
                 dbi.update("CREATE TABLE jsondb (path VARCHAR PRIMARY KEY, value VARCHAR, kind INT)");
+                dbi.update("CREATE TABLE jsondb_index (path VARCHAR PRIMARY KEY, idx VARCHAR, value VARCHAR)");
+                dbi.update("CREATE TABLE jsondb_version (path VARCHAR PRIMARY KEY, version BIGINT)");
             }
+            dbi.update("CREATE INDEX jsondb_index_idx_value ON jsondb_index (idx, value)");
+            LargeValues.createTable(dbi);
+            Expiries.createTable(dbi, databaseKind == DatabaseKind.PostgreSQL);
+            documents.createTable(dbi);
+            documents.createIndexes(dbi, indexes);
         });
     }
 
     public void dropTables() {
         withTransaction(dbi -> {
+            dbi.update("DROP TABLE IF EXISTS jsondb_expiry");
+            dbi.update("DROP TABLE IF EXISTS jsondb_blob");
+            dbi.update("DROP TABLE IF EXISTS jsondb_document");
+            dbi.update("DROP TABLE IF EXISTS jsondb_version");
+            dbi.update("DROP TABLE IF EXISTS jsondb_index");
             dbi.update("DROP TABLE jsondb");
         });
     }
 
+    /**
+     * Recreates the entries of all the configured indexes from the values
+     * currently stored in the database.  Use this after declaring a new
+     * {@link Index} on a database that already holds data.
+     */
+    public void rebuildIndexes() {
+        withTransaction(dbi -> {
+            dbi.update("DELETE from jsondb_index");
+            documents.createIndexes(dbi, indexes);
+            for (Index index : indexes) {
+                if (isExpressionIndex(index)) {
+                    continue;
+                }
+                try (ResultIterator<JsonRecord> iterator = new SqlRecordSource(dbi, fetchSize, documents).select(PathRange.prefix(index.getDBCollectionPath()))) {
+
+                    IndexBatch batch = new IndexBatch(dbi, indexes);
+                    iterator.forEachRemaining(r -> {
+                        if (index.matches(r.getPath())) {
+                            batch.add(index, LargeValues.resolve(dbi, r));
+                        }
+                    });
+                    batch.flush();
+                }
+            }
+        });
+    }
+
+    /**
+     * @return true if the index is an expression index on the documents rather than entries of the jsondb_index table.
+     */
+    private boolean isExpressionIndex(Index index) {
+        return documents.hasExpressionIndexes() && documents.isDocumentCollection(index.getDBCollectionPath());
+    }
+
+    /**
+     * Writes a compressed snapshot of all the values to the output, see {@link Snapshots}.
+     * PostgreSQL streams the rows with {@code COPY ... TO STDOUT}.
+     *
+     * @return the number of rows written.
+     */
+    public long exportSnapshot(OutputStream output) {
+        return Snapshots.export(dbi, databaseKind == DatabaseKind.PostgreSQL, output);
+    }
+
+    /**
+     * Replaces all the values with the ones of a snapshot written by {@link #exportSnapshot(OutputStream)}.
+     *
+     * @return the number of rows imported.
+     */
+    public long importSnapshot(InputStream input) {
+        return importSnapshot(input, 0, rows -> {});
+    }
+
+    /**
+     * Imports a snapshot in transactions of a bounded number of rows,
+     * PostgreSQL loads them with {@code COPY ... FROM STDIN}.  An import
+     * that got interrupted restarts from the last number of rows reported
+     * as committed, the values are only cleared when starting from 0.
+     *
+     * @param skipRows the number of rows of the snapshot a previous import committed.
+     * @param committed called with the number of rows of the snapshot committed so far.
+     * @return the number of rows imported.
+     */
+    public long importSnapshot(InputStream input, long skipRows, LongConsumer committed) {
+        if (skipRows == 0) {
+            withTransaction(dbi -> {
+                Snapshots.clear(dbi);
+                // the restored entities must not match the versions clients have seen.
+                EntityVersions.increment(dbi, PathRange.prefix("/"));
+            });
+        }
+        // the snapshot may hold expiries.
+        expiriesWritten();
+        long count = Snapshots.importRows(dbi, databaseKind == DatabaseKind.PostgreSQL, input, skipRows, committed);
+        expiriesWritten();
+        rebuildIndexes();
+        broadcastUpdated("/");
+        return count;
+    }
+
+    /**
+     * @return counters that track how many rows the writes actually touched.
+     */
+    public WriteStatistics getWriteStatistics() {
+        return writeStatistics;
+    }
+
+    public int getFetchSize() {
+        return fetchSize;
+    }
+
+    /**
+     * Sets how many rows are read from the database at a time when streaming
+     * the records of a read, which bounds the heap used by large reads.
+     */
+    public void setFetchSize(int fetchSize) {
+        if (fetchSize <= 0) {
+            throw new IllegalArgumentException("fetchSize must be positive");
+        }
+        this.fetchSize = fetchSize;
+    }
+
+    /**
+     * Gives the top level collections, like {@code /integrations}, their own
+     * PostgreSQL partition of the jsondb tables when they get created, see
+     * {@link Partitions}.  The other databases keep a single table.
+     */
+    public void setPartitionedCollections(Collection<String> collections) {
+        this.partitions = new Partitions(collections);
+    }
+
+    /**
+     * Makes the set, update, delete and write calls made concurrently, outside
+     * of {@link #inTransaction(Function)}, wait up to maxDelayMillis for other
+     * writes, and commit up to maxWrites of them in one transaction, see {@link GroupCommitter}.
+     */
+    public synchronized void enableGroupCommit(long maxDelayMillis, int maxWrites) {
+        disableGroupCommit();
+        groupCommitter = new GroupCommitter(this::writeGroup, writes -> writeGroup(Collections.singletonList(writes))[0], maxDelayMillis, maxWrites);
+    }
+
+    /**
+     * Commits the writes waiting for a group commit, and goes back to a transaction per write.
+     */
+    public synchronized void disableGroupCommit() {
+        GroupCommitter committer = groupCommitter;
+        if (committer != null) {
+            groupCommitter = null;
+            committer.stop();
+        }
+    }
+
+    /**
+     * @return the group committer if the calls of the current thread go through it.
+     */
+    private GroupCommitter groupCommitter() {
+        GroupCommitter committer = groupCommitter;
+        if (committer == null || transaction.get() != null) {
+            return null;
+        }
+        return committer;
+    }
+
+    /**
+     * Applies the writes of a group commit in a single transaction.  The
+     * records of all the writes are sent in one batch, unless a write
+     * overlaps the path of a previous write of the group, which first needs
+     * the batched records of the previous writes to be written.
+     *
+     * @return whether each of the writes changed something.
+     */
+    private boolean[] writeGroup(List<PathWrites> group) {
+        boolean[] changed = new boolean[group.size()];
+        withTransaction(dbi -> {
+            BatchManager mb = new BatchManager(dbi);
+            List<String> batched = new ArrayList<>();
+            for (int i = 0; i < group.size(); i++) {
+                PathWrites writes = group.get(i);
+                if (writes.overlaps(batched)) {
+                    mb.flush();
+                    batched.clear();
+                }
+                for (Map.Entry<String, SortedRecords> write : writes.entries()) {
+                    if (write.getValue() == null) {
+                        changed[i] |= deleteJsonRecords(dbi, write.getKey()) > 0;
+                    } else {
+                        mb.setRecords(write.getKey(), write.getValue().values());
+                        batched.add(write.getKey());
+                        changed[i] = true;
+                    }
+                }
+            }
+            mb.flush();
+        });
+        for (int i = 0; i < group.size(); i++) {
+            PathWrites writes = group.get(i);
+            if (!writes.isDelete()) {
+                broadcastUpdated(writes.parentPath());
+            } else if (changed[i]) {
+                broadcast("jsondb-deleted", writes.parentPath());
+            }
+        }
+        return changed;
+    }
+
+    public int getLargeValueThreshold() {
+        return largeValues.getThreshold();
+    }
+
+    /**
+     * Sets the length over which string values are compressed and stored
+     * once per distinct value in a side table, see {@link LargeValues}.
+     */
+    public void setLargeValueThreshold(int threshold) {
+        largeValues.setThreshold(threshold);
+    }
+
     @Override
     public String createKey() {
         return KeyGenerator.createKey();
@@ -126,30 +384,49 @@ public class SqlJsonDB implements JsonDB {
 
         // Lets normalize the path a bit
         String baseDBPath = JsonRecordSupport.convertToDBPath(path);
-        String like = baseDBPath + "%";
+        PathRange range = PathRange.prefix(baseDBPath);
 
         Consumer<OutputStream> result = null;
-        final Handle h = dbi.open();
+        final Transaction tx = transaction.get();
+        final Handle h;
+        if (tx == null) {
+            h = ReadReplicaDBI.reads(dbi).open();
+            // Drivers like PostgreSQL only honor the fetch size and use a cursor
+            // when auto commit is off, otherwise the whole result set is
+            // buffered in memory before the first record is returned.
+            h.begin();
+        } else {
+            h = tx.handle;
+        }
         try {
+
             // Creating the iterator could fail with a runtime exception,
-            String sql = "select path,value,kind from jsondb where path LIKE :like order by path";
-            ResultIterator<JsonRecord> iterator = h.createQuery(sql)
-                .bind("like", like)
-                .map(JsonRecordMapper.INSTANCE)
-                .iterator();
+            RecordSource source = new SqlRecordSource(h, fetchSize, documents);
+            ResultIterator<JsonRecord> iterator;
+            if (o.isWindowed()) {
+                iterator = new ChildWindowQuery(source, baseDBPath, o).execute();
+            } else if (o.shallow()) {
+                iterator = new ShallowRecords(source, baseDBPath);
+            } else {
+                iterator = source.select(range);
+            }
             try {
                 // At this point we know if we can produce results..
-                if (iterator.hasNext()) {
+                // an empty window of an existing path results in an empty object.
+                if (iterator.hasNext() || o.isWindowed() && existsJsonRecords(h, range)) {
                     result = output -> {
                         try {
-                            Consumer<JsonRecord> toJson = JsonRecordSupport.recordsToJsonStream(baseDBPath, output, o);
+                            Consumer<JsonRecord> toJson = LargeValues.resolving(h, baseDBPath, o,
+                                JsonRecordSupport.recordsToJsonStream(baseDBPath, output, o));
                             iterator.forEachRemaining(toJson);
                             toJson.accept(null);
                         } catch (IOException e) {
                             throw new JsonDBException(e);
                         } finally {
                             iterator.close();
-                            h.close();
+                            if (tx == null) {
+                                closeReadHandle(h);
+                            }
                         }
                     };
                 }
@@ -161,9 +438,67 @@ public class SqlJsonDB implements JsonDB {
             }
         } finally {
             // if we are producing results, then defer closing the handle
-            if (result == null) {
-                h.close();
+            if (result == null && tx == null) {
+                closeReadHandle(h);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Reads all the paths with a single query, unless some of them overlap.
+     */
+    @Override
+    public List<byte[]> getAsByteArrays(List<String> paths) {
+        TreeMap<String, byte[]> json = new TreeMap<>();
+        for (String path : paths) {
+            json.put(JsonRecordSupport.convertToDBPath(path), null);
+        }
+        // the ranges of a query must be disjoint, a path can't hold another one.
+        String previous = null;
+        for (String dbPath : json.keySet()) {
+            if (previous != null && dbPath.startsWith(previous)) {
+                return JsonDB.super.getAsByteArrays(paths);
             }
+            previous = dbPath;
+        }
+
+        List<PathRange> ranges = new ArrayList<>(json.size());
+        for (String dbPath : json.keySet()) {
+            ranges.add(PathRange.prefix(dbPath));
+        }
+        GetOptions options = new GetOptions();
+        withReadTransaction(h -> {
+            try (ResultIterator<JsonRecord> records = new SqlRecordSource(h, fetchSize, documents).select(ranges)) {
+                String current = null;
+                ByteArrayOutputStream output = null;
+                Consumer<JsonRecord> toJson = null;
+                while (records.hasNext()) {
+                    JsonRecord r = records.next();
+                    if (current == null || !r.getPath().startsWith(current)) {
+                        if (toJson != null) {
+                            toJson.accept(null);
+                            json.put(current, output.toByteArray());
+                        }
+                        // the records come in path order, so the range holding the record is the closest path before it.
+                        current = json.floorKey(r.getPath());
+                        output = new ByteArrayOutputStream();
+                        toJson = LargeValues.resolving(h, current, options, JsonRecordSupport.recordsToJsonStream(current, output, options));
+                    }
+                    toJson.accept(r);
+                }
+                if (toJson != null) {
+                    toJson.accept(null);
+                    json.put(current, output.toByteArray());
+                }
+            } catch (IOException e) {
+                throw new JsonDBException(e);
+            }
+        });
+
+        List<byte[]> result = new ArrayList<>(paths.size());
+        for (String path : paths) {
+            result.add(json.get(JsonRecordSupport.convertToDBPath(path)));
         }
         return result;
     }
@@ -171,13 +506,18 @@ public class SqlJsonDB implements JsonDB {
     @Override
     public boolean delete(String path) {
         String baseDBPath = JsonRecordSupport.convertToDBPath(path);
-        String like = baseDBPath+"%";
+        GroupCommitter committer = groupCommitter();
+        if (committer != null) {
+            boolean rc = committer.write(PathWrites.single(path, baseDBPath, null));
+            written();
+            return rc;
+        }
         boolean rc[] = new boolean[]{false};
         withTransaction(dbi -> {
-            rc[0] = deleteJsonRecords(dbi, baseDBPath, like) > 0;
+            rc[0] = deleteJsonRecords(dbi, baseDBPath) > 0;
         });
-        if( bus!=null && rc[0] ) {
-            bus.broadcast("jsondb-deleted", Strings.prefix(Strings.trimSuffix(path, "/"), "/"));
+        if( rc[0] ) {
+            broadcast("jsondb-deleted", path);
         }
         return rc[0];
     }
@@ -185,39 +525,67 @@ public class SqlJsonDB implements JsonDB {
     @Override
     public boolean exists(String path) {
         String baseDBPath = JsonRecordSupport.convertToDBPath(path);
-        String like = baseDBPath+"%";
         boolean rc[] = new boolean[]{false};
-        withTransaction(dbi -> {
-            rc[0] = countJsonRecords(dbi, like) > 0;
+        withReadTransaction(dbi -> {
+            rc[0] = existsJsonRecords(dbi, PathRange.prefix(baseDBPath));
         });
         return rc[0];
     }
 
     @Override
     public Set<String> fetchIdsByPropertyValue(final String collectionPath, final String property, final String value) {
-        final String pathRegex = collectionPath + "/:[^/]+/" + property;
+        Index declared = Index.of(collectionPath, property);
+        boolean indexed = indexes.contains(declared);
 
         final AtomicReference<Set<String>> ret = new AtomicReference<>();
-        withTransaction(dbi -> {
-            final String query;
-            if (databaseKind == DatabaseKind.PostgreSQL) {
-                query = "SELECT regexp_replace(path, '(/.+/:[^/]+).*', '\\1') from jsondb where path ~ ? and value = ?";
-            } else if (databaseKind == DatabaseKind.H2) {
-                query = "SELECT regexp_replace(path, '(/.+/:[^/]+).*', '$1') from jsondb where path regexp ? and value = ?";
+        withReadTransaction(dbi -> {
+            if (documents.isDocumentCollection(declared.getDBCollectionPath())) {
+                ret.set(fetchIdsFromDocuments(dbi, declared, indexed, value));
+            } else if (indexed) {
+                ret.set(IndexBatch.fetchIds(dbi, declared, value));
+            } else if (databaseKind == DatabaseKind.PostgreSQL || databaseKind == DatabaseKind.H2) {
+                ret.set(fetchIdsByRegex(dbi, collectionPath, property, largeValues.storedValue(value)));
             } else {
-                throw new UnsupportedOperationException(
-                    "Don't know how to use regex in a query with database: " + databaseKind);
+                ret.set(IndexBatch.scan(dbi, declared, largeValues.storedValue(value)));
             }
-
-            final List<String> paths = dbi.createQuery(query).bind(0, pathRegex).bind(1, value)
-                .map(StringColumnMapper.INSTANCE).list();
-
-            ret.set(new HashSet<>(paths));
         });
 
         return ret.get();
     }
 
+    private Set<String> fetchIdsFromDocuments(Handle dbi, Index index, boolean indexed, String value) {
+        if (documents.hasExpressionIndexes()) {
+            return documents.fetchIds(dbi, index, value);
+        }
+        if (indexed) {
+            return IndexBatch.fetchIds(dbi, index, value);
+        }
+        Set<String> result = new HashSet<>();
+        try (ResultIterator<JsonRecord> iterator = new SqlRecordSource(dbi, fetchSize, documents).select(PathRange.prefix(index.getDBCollectionPath()))) {
+            iterator.forEachRemaining(r -> {
+                if (index.matches(r.getPath()) && r.getValue().equals(value)) {
+                    result.add(index.toChildPath(r.getPath()));
+                }
+            });
+        }
+        return result;
+    }
+
+    private Set<String> fetchIdsByRegex(Handle dbi, String collectionPath, String property, String value) {
+        final String pathRegex = collectionPath + "/:[^/]+/" + property;
+        final String query;
+        if (databaseKind == DatabaseKind.PostgreSQL) {
+            query = "SELECT regexp_replace(path, '(/.+/:[^/]+).*', '\\1') from jsondb where path ~ ? and value = ?";
+        } else {
+            query = "SELECT regexp_replace(path, '(/.+/:[^/]+).*', '$1') from jsondb where path regexp ? and value = ?";
+        }
+
+        final List<String> paths = dbi.createQuery(query).bind(0, pathRegex).bind(1, value)
+            .map(StringColumnMapper.INSTANCE).list();
+
+        return new HashSet<>(paths);
+    }
+
     @Override
     public String push(String path, InputStream body) {
         String key = createKey();
@@ -225,174 +593,736 @@ public class SqlJsonDB implements JsonDB {
         return key;
     }
 
+    /**
+     * Writes records to the database as a delta against the records that are
+     * already stored: only the rows that differ get inserted, updated or deleted.
+     */
     /* default */ class BatchManager {
 
         private final Handle dbi;
+        private final IndexBatch indexBatch;
+        // entities who's version was already incremented in this transaction
+        private final Set<String> versioned = new HashSet<>();
+        private final Set<String> modified = new HashSet<>();
         private long batchSize;
         private PreparedBatch insertBatch;
+        private PreparedBatch updateBatch;
+        private PreparedBatch deleteBatch;
 
         /* default */ BatchManager(Handle dbi) {
             this.dbi = dbi;
+            this.indexBatch = new IndexBatch(dbi, indexes);
+        }
+
+        /**
+         * Replaces the records stored under the baseDBPath with the supplied records.
+         * The writes are only batched, so they must be flushed before reading
+         * records under the baseDBPath again in the same transaction.
+         *
+         * @param baseDBPath the path being set
+         * @param records the new records sorted by path
+         */
+        public void setRecords(String baseDBPath, Collection<JsonRecord> records) {
+            String entityPath = EntityVersions.entityPath(baseDBPath);
+            if (entityPath != null && versioned.add(entityPath)) {
+                // increment first so the entity is locked while it's being written.
+                EntityVersions.increment(dbi, upserts, Collections.singleton(entityPath));
+            }
+            deleteParentRecords(dbi, baseDBPath);
+            clearExpiries(dbi, PathRange.prefix(baseDBPath));
+            writeStatistics.recordsWritten(records.size());
+
+            String documentPath = documents.documentPath(baseDBPath);
+            if (documentPath != null) {
+                setDocumentRecords(documentPath, baseDBPath, records);
+                return;
+            }
+            Collection<JsonRecord> rows = records;
+            if (documents.overlaps(PathRange.prefix(baseDBPath))) {
+                rows = setDocuments(baseDBPath, records);
+            }
+            setRows(baseDBPath, rows);
         }
 
-        public void deleteRecordsForSet(String baseDBPath) {
-            String like = baseDBPath + "%";
-            deleteJsonRecords(dbi, baseDBPath, like);
+        /**
+         * Replaces the rows of the jsondb table under the baseDBPath.
+         */
+        private void setRows(String baseDBPath, Collection<JsonRecord> rows) {
+            try (ResultIterator<JsonRecord> existing = SqlRecordSource.selectRecords(dbi, PathRange.prefix(baseDBPath), DEFAULT_FETCH_SIZE)) {
+
+                // Merge the two path ordered streams of records.
+                Iterator<JsonRecord> updated = rows.iterator();
+                JsonRecord current = next(existing);
+                JsonRecord update = next(updated);
+                while (current != null || update != null) {
+                    int cmp;
+                    if (current == null) {
+                        cmp = 1;
+                    } else if (update == null) {
+                        cmp = -1;
+                    } else {
+                        cmp = current.getPath().compareTo(update.getPath());
+                    }
+
+                    if (cmp < 0) {
+                        delete(current);
+                        current = next(existing);
+                    } else if (cmp > 0) {
+                        insert(update, largeValues.stored(update));
+                        update = next(updated);
+                    } else {
+                        JsonRecord stored = largeValues.stored(update);
+                        if (current.getKind() == stored.getKind() && current.getValue().equals(stored.getValue())) {
+                            writeStatistics.rowUnchanged();
+                        } else {
+                            update(update, stored);
+                            if (LargeValues.isReference(current)) {
+                                LargeValues.release(dbi, current.getValue());
+                            }
+                        }
+                        current = next(existing);
+                        update = next(updated);
+                    }
+                }
+            }
         }
 
-        public Consumer<JsonRecord> createSetConsumer() {
-            return r -> {
-                PreparedBatch insert = getInsertBatch();
-                insert.bind("path", r.getPath())
-                    .bind("value", r.getValue())
-                    .bind("kind", r.getKind())
-                    .add();
+        /**
+         * Replaces the records of the document under the baseDBPath.
+         */
+        private void setDocumentRecords(String documentPath, String baseDBPath, Collection<JsonRecord> records) {
+            TreeMap<String, JsonRecord> current = documents.load(dbi, documentPath);
+            TreeMap<String, JsonRecord> updated = current == null ? new TreeMap<>() : new TreeMap<>(current);
+            DocumentStore.removeRecords(updated, baseDBPath);
+            for (JsonRecord r : records) {
+                updated.put(r.getPath(), r);
+            }
+            storeDocument(documentPath, current, updated);
+        }
 
-                batchSize += r.getPath().length() + r.getValue().length();
-                if (batchSize > 512 * 1024) { // Write the batch once we have enough data.
-                    insert.execute();
-                    batchSize = 0;
+        /**
+         * Replaces the documents in the range of the baseDBPath, which holds
+         * whole document collections.
+         *
+         * @return the records that are not stored in documents.
+         */
+        private List<JsonRecord> setDocuments(String baseDBPath, Collection<JsonRecord> records) {
+            List<JsonRecord> rows = new ArrayList<>();
+            Map<String, TreeMap<String, JsonRecord>> updates = new TreeMap<>();
+            for (JsonRecord r : records) {
+                String documentPath = documents.documentPath(r.getPath());
+                if (documentPath == null) {
+                    rows.add(r);
+                } else {
+                    updates.computeIfAbsent(documentPath, k -> new TreeMap<>()).put(r.getPath(), r);
                 }
-            };
+            }
+            for (String documentPath : documents.paths(dbi, PathRange.prefix(baseDBPath))) {
+                if (!updates.containsKey(documentPath)) {
+                    storeDocument(documentPath, documents.load(dbi, documentPath), Collections.emptyMap());
+                }
+            }
+            for (Map.Entry<String, TreeMap<String, JsonRecord>> update : updates.entrySet()) {
+                storeDocument(update.getKey(), documents.load(dbi, update.getKey()), update.getValue());
+            }
+            return rows;
+        }
+
+        /**
+         * Writes the document if its records changed, deleting it when it has no records left.
+         *
+         * @param current the records stored in the document, null if there is no such document.
+         */
+        /* default */ void storeDocument(String documentPath, Map<String, JsonRecord> current, Map<String, JsonRecord> updated) {
+            Map<String, JsonRecord> previous = current == null ? Collections.emptyMap() : current;
+            List<JsonRecord> removed = DocumentStore.changed(previous, updated);
+            List<JsonRecord> added = DocumentStore.changed(updated, previous);
+            if (removed.isEmpty() && added.isEmpty()) {
+                writeStatistics.rowUnchanged();
+                return;
+            }
+
+            documents.store(dbi, documentPath, updated.values());
+            if (current == null) {
+                writeStatistics.rowInserted();
+            } else if (updated.isEmpty()) {
+                writeStatistics.rowDeleted();
+            } else {
+                writeStatistics.rowUpdated();
+            }
+            if (!documents.hasExpressionIndexes()) {
+                removed.forEach(indexBatch::remove);
+                added.forEach(indexBatch::add);
+            }
+            modified(documentPath);
+        }
+
+        private JsonRecord next(Iterator<JsonRecord> iterator) {
+            if (iterator.hasNext()) {
+                return iterator.next();
+            }
+            return null;
         }
 
-        public PreparedBatch getInsertBatch() {
+        /**
+         * @param stored the record as stored in the jsondb table, see {@link LargeValues#stored(JsonRecord)}.
+         */
+        private void insert(JsonRecord r, JsonRecord stored) {
             if (insertBatch == null) {
                 insertBatch = dbi.prepareBatch("INSERT into jsondb (path, value, kind) values (:path, :value, :kind)");
             }
-            return insertBatch;
+            if (LargeValues.isReference(stored)) {
+                LargeValues.retain(dbi, upserts, r, stored);
+            }
+            insertBatch.bind("path", stored.getPath())
+                .bind("value", stored.getValue())
+                .bind("kind", stored.getKind())
+                .add();
+            indexBatch.add(r);
+            writeStatistics.rowInserted();
+            modified(r.getPath());
+            added(stored);
+        }
+
+        private void update(JsonRecord r, JsonRecord stored) {
+            if (updateBatch == null) {
+                updateBatch = dbi.prepareBatch("UPDATE jsondb SET value = :value, kind = :kind WHERE path = :path");
+            }
+            if (LargeValues.isReference(stored)) {
+                LargeValues.retain(dbi, upserts, r, stored);
+            }
+            updateBatch.bind("path", stored.getPath())
+                .bind("value", stored.getValue())
+                .bind("kind", stored.getKind())
+                .add();
+            indexBatch.remove(r);
+            indexBatch.add(r);
+            writeStatistics.rowUpdated();
+            modified(r.getPath());
+            added(stored);
+        }
+
+        private void delete(JsonRecord r) {
+            if (deleteBatch == null) {
+                deleteBatch = dbi.prepareBatch("DELETE from jsondb WHERE path = :path");
+            }
+            deleteBatch.bind("path", r.getPath()).add();
+            if (LargeValues.isReference(r)) {
+                LargeValues.release(dbi, r.getValue());
+            }
+            indexBatch.remove(r);
+            writeStatistics.rowDeleted();
+            modified(r.getPath());
+            added(r);
+        }
+
+        /**
+         * Tracks the entities modified by writes done above the entities, like
+         * setting a whole collection.  Values stored above the entities are
+         * versioned by their own path.
+         */
+        private void modified(String path) {
+            String entityPath = EntityVersions.entityPath(path);
+            if (entityPath == null) {
+                entityPath = path;
+            }
+            if (!versioned.contains(entityPath)) {
+                modified.add(entityPath);
+            }
+        }
+
+        /**
+         * Marks the entity as already having its version incremented in this transaction.
+         */
+        public void versioned(String entityPath) {
+            versioned.add(entityPath);
+        }
+
+        private void added(JsonRecord r) {
+            batchSize += r.getPath().length() + r.getValue().length();
+            if (batchSize > 512 * 1024) { // Write the batch once we have enough data.
+                flush();
+            }
         }
 
         public void flush() {
-            if (batchSize > 0 && insertBatch != null) {
-                insertBatch.execute();
+            if (batchSize > 0) {
+                execute(deleteBatch);
+                execute(updateBatch);
+                execute(insertBatch);
+                batchSize = 0;
+            }
+            indexBatch.flush();
+            if (!modified.isEmpty()) {
+                EntityVersions.increment(dbi, upserts, modified);
+                versioned.addAll(modified);
+                modified.clear();
+            }
+        }
 
+        private void execute(PreparedBatch batch) {
+            if (batch != null && batch.getSize() > 0) {
+                batch.execute();
             }
         }
     }
 
     @Override
     public void set(String path, InputStream body) {
+        String baseDBPath = JsonRecordSupport.convertToDBPath(path);
+        GroupCommitter committer = groupCommitter();
+        if (committer != null) {
+            committer.write(PathWrites.single(path, baseDBPath, SortedRecords.parse(baseDBPath, body)));
+            written();
+            return;
+        }
+        withTransaction(dbi -> setRecords(new BatchManager(dbi), baseDBPath, body));
+        broadcastUpdated(path);
+    }
+
+    /**
+     * Sets the value of the path like {@link #set(String, InputStream)}, and
+     * deletes it once the time to live elapsed, see {@link #deleteExpired(int)}.
+     * Writing or deleting the path, or one of its parents, cancels the expiry.
+     */
+    public void set(String path, String json, Duration ttl) {
+        set(path, new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8)), ttl);
+    }
+
+    public void set(String path, InputStream body, Duration ttl) {
+        String baseDBPath = JsonRecordSupport.convertToDBPath(path);
+        long expires = System.currentTimeMillis() + ttl.toMillis();
+        expiriesWritten();
         withTransaction(dbi -> {
-            BatchManager mb = new BatchManager(dbi);
-            String baseDBPath = JsonRecordSupport.convertToDBPath(path);
-            mb.deleteRecordsForSet(baseDBPath);
-            try {
-                JsonRecordSupport.jsonStreamToRecords(baseDBPath, body, mb.createSetConsumer());
-            } catch (IOException e) {
-                throw new JsonDBException(e);
+            setRecords(new BatchManager(dbi), baseDBPath, body);
+            Expiries.expire(dbi, baseDBPath, expires);
+        });
+        expiriesWritten();
+        broadcastUpdated(path);
+    }
+
+    private void expiriesWritten() {
+        expiriesWritten.incrementAndGet();
+        expiries = true;
+    }
+
+    /**
+     * Removes the expiries of the range, unless jsondb_expiry was empty when
+     * last checked.  The check runs at most every EXPIRIES_CHECK_MILLIS, so
+     * the expiries another node writes are cleared at most that late.
+     */
+    private void clearExpiries(Handle dbi, PathRange range) {
+        long now = System.currentTimeMillis();
+        if (now - expiriesCheckedAt >= EXPIRIES_CHECK_MILLIS) {
+            long written = expiriesWritten.get();
+            boolean exists = Expiries.exists(dbi);
+            // an expiry written while checking wasn't seen yet.
+            if (exists || expiriesWritten.get() == written) {
+                expiries = exists;
+            }
+            expiriesCheckedAt = now;
+        }
+        if (expiries) {
+            Expiries.clear(dbi, range);
+        }
+    }
+
+    /**
+     * Deletes the paths who's time to live elapsed, the ones that expired
+     * first first.  At most maxPaths paths are deleted, so the transaction
+     * stays short however many paths expired.
+     *
+     * @return the number of records deleted.
+     */
+    public int deleteExpired(int maxPaths) {
+        List<String> expired = new ArrayList<>();
+        int[] count = new int[]{0};
+        withTransaction(dbi -> {
+            expired.addAll(Expiries.expired(dbi, System.currentTimeMillis(), maxPaths));
+            for (String dbPath : expired) {
+                count[0] += deleteJsonRecords(dbi, dbPath);
             }
-            mb.flush();
         });
+        for (String dbPath : expired) {
+            broadcast("jsondb-deleted", JsonRecordSupport.convertFromDBPath(dbPath));
+        }
+        return count[0];
+    }
+
+    private static void setRecords(BatchManager mb, String baseDBPath, InputStream body) {
+        mb.setRecords(baseDBPath, SortedRecords.parse(baseDBPath, body).values());
+        mb.flush();
+    }
+
+    private void broadcastUpdated(String path) {
+        broadcast("jsondb-updated", path);
+    }
+
+    /**
+     * Events of writes done in a transaction are only sent once it commits.
+     */
+    private void broadcast(String event, String path) {
         if( bus!=null ) {
-            bus.broadcast("jsondb-updated", Strings.prefix(Strings.trimSuffix(path, "/"), "/"));
+            String data = Strings.prefix(Strings.trimSuffix(path, "/"), "/");
+            Transaction tx = transaction.get();
+            if (tx == null) {
+                bus.broadcast(event, data);
+            } else {
+                tx.events.add(new AbstractMap.SimpleImmutableEntry<>(event, data));
+            }
         }
     }
 
     @Override
-    public void update(String path, InputStream is) {
-        ArrayList<String> updatePaths = new ArrayList<>();
-        withTransaction(dbi -> {
-            try {
-                BatchManager mb = new BatchManager(dbi);
+    public boolean createIfAbsent(String path, InputStream body) {
+        String baseDBPath = JsonRecordSupport.convertToDBPath(path);
+        // an entity being created by another transaction is not absent.
+        return setIf(path, body, h -> lockEntity(h, baseDBPath) && !existsJsonRecords(h, PathRange.prefix(baseDBPath)));
+    }
 
-                try (JsonParser jp = new JsonFactory().createParser(is)) {
-                    JsonToken nextToken = jp.nextToken();
-                    if (nextToken != JsonToken.START_OBJECT ) {
-                        throw new JsonParseException(jp, "Update did not contain a json object");
-                    }
+    @Override
+    public boolean replaceIfExists(String path, InputStream body) {
+        String baseDBPath = JsonRecordSupport.convertToDBPath(path);
+        // an entity being created by another transaction did not exist.
+        return setIf(path, body, h -> lockEntity(h, baseDBPath) && existsJsonRecords(h, PathRange.prefix(baseDBPath)));
+    }
 
-                    while(true) {
+    @Override
+    public boolean compareAndSet(String path, long expectedVersion, InputStream body) {
+        String entityPath = EntityVersions.entityPath(JsonRecordSupport.convertToDBPath(path));
+        if (entityPath == null) {
+            throw new IllegalArgumentException("Versions are only kept for the entities of a collection, not for: " + path);
+        }
+        return setIf(path, body, h -> EntityVersions.compareAndIncrement(h, upserts, entityPath, expectedVersion));
+    }
 
-                        nextToken = jp.nextToken();
-                        if (nextToken == JsonToken.END_OBJECT ) {
-                            break;
-                        }
-                        if (nextToken != JsonToken.FIELD_NAME ) {
-                            throw new JsonParseException(jp, "Expected a field name");
-                        }
+    @Override
+    public long getVersion(String path) {
+        String baseDBPath = JsonRecordSupport.convertToDBPath(path);
+        String entityPath = EntityVersions.entityPath(baseDBPath);
+        long rc[] = new long[]{0};
+        withReadTransaction(dbi -> {
+            if (entityPath != null) {
+                rc[0] = EntityVersions.get(dbi, entityPath);
+            } else {
+                rc[0] = EntityVersions.sum(dbi, PathRange.prefix(baseDBPath));
+            }
+        });
+        return rc[0];
+    }
 
-                        String key = Strings.suffix(path, "/")+jp.getCurrentName();
-                        updatePaths.add(key);
-                        String baseDBPath = JsonRecordSupport.convertToDBPath(key);
-                        mb.deleteRecordsForSet(baseDBPath);
+    @Override
+    public Map<String, Long> getVersions(String collectionPath) {
+        String baseDBPath = JsonRecordSupport.convertToDBPath(collectionPath);
+        Map<String, Long> versions = new LinkedHashMap<>();
+        withReadTransaction(dbi -> {
+            for (Map.Entry<String, Long> version : EntityVersions.all(dbi, PathRange.prefix(baseDBPath)).entrySet()) {
+                versions.put(JsonRecordSupport.convertFromDBPath(version.getKey()), version.getValue());
+            }
+        });
+        return versions;
+    }
 
-                        try {
-                            JsonRecordSupport.jsonStreamToRecords(jp, baseDBPath, mb.createSetConsumer());
-                        } catch (IOException e) {
-                            throw new JsonDBException(e);
-                        }
-                    }
+    /**
+     * Increments the version of the entity holding the path, which locks it
+     * until the transaction ends.
+     *
+     * @return false if the entity is being written by another transaction the database can't wait for.
+     */
+    private boolean lockEntity(Handle h, String baseDBPath) {
+        String entityPath = EntityVersions.entityPath(baseDBPath);
+        return entityPath == null || EntityVersions.lock(h, upserts, entityPath);
+    }
 
-                    nextToken = jp.nextToken();
-                    if (nextToken != null) {
-                        throw new JsonParseException(jp, "Document did not terminate as expected.");
+    /**
+     * Sets the path in a single transaction if the condition holds, the condition
+     * is responsible for incrementing the version of the entity holding the path.
+     * When joining a transaction the changes made by the condition are rolled
+     * back to a savepoint instead.
+     */
+    private boolean setIf(String path, InputStream body, Predicate<Handle> condition) {
+        String baseDBPath = JsonRecordSupport.convertToDBPath(path);
+        boolean rc;
+        Transaction tx = transaction.get();
+        if (tx == null) {
+            try (Handle h = dbi.open()) {
+                try {
+                    h.begin();
+                    rc = setIf(h, baseDBPath, body, condition);
+                    if (rc) {
+                        h.commit();
+                        written();
+                    } else {
+                        h.rollback();
                     }
-                    mb.flush();
+                } catch (@SuppressWarnings("PMD.AvoidCatchingGenericException") RuntimeException e) {
+                    h.rollback();
+                    throw e;
                 }
-            } catch (IOException e) {
-                throw new JsonDBException(e);
             }
+        } else {
+            tx.handle.checkpoint(SET_IF_SAVEPOINT);
+            rc = setIf(tx.handle, baseDBPath, body, condition);
+            if (rc) {
+                tx.handle.release(SET_IF_SAVEPOINT);
+            } else {
+                tx.handle.rollback(SET_IF_SAVEPOINT);
+            }
+        }
+        if (rc) {
+            broadcastUpdated(path);
+        }
+        return rc;
+    }
 
-        });
-        if( bus!=null ) {
-            for (String updatePath : updatePaths) {
-                bus.broadcast("jsondb-updated", Strings.prefix(Strings.trimSuffix(updatePath, "/"), "/"));
+    private boolean setIf(Handle h, String baseDBPath, InputStream body, Predicate<Handle> condition) {
+        if (!condition.test(h)) {
+            return false;
+        }
+        BatchManager mb = new BatchManager(h);
+        String entityPath = EntityVersions.entityPath(baseDBPath);
+        if (entityPath != null) {
+            mb.versioned(entityPath);
+        }
+        setRecords(mb, baseDBPath, body);
+        return true;
+    }
+
+    @Override
+    public void update(String path, InputStream is) {
+        write(PathWrites.parseUpdate(path, is));
+    }
+
+    @Override
+    public void write(WriteBatch batch) {
+        write(PathWrites.of(batch));
+    }
+
+    /**
+     * Writes all the records, or deletes the paths mapped to null, in a single
+     * transaction.  Since the paths can't overlap the writes of one path don't
+     * change the records read by the others, so the batches only get flushed
+     * once at the end.
+     */
+    private void write(PathWrites writes) {
+        if (writes.isEmpty()) {
+            return;
+        }
+        GroupCommitter committer = groupCommitter();
+        if (committer != null) {
+            committer.write(writes);
+            written();
+            return;
+        }
+        withTransaction(dbi -> {
+            BatchManager mb = new BatchManager(dbi);
+            for (Map.Entry<String, SortedRecords> write : writes.entries()) {
+                if (write.getValue() == null) {
+                    deleteJsonRecords(dbi, write.getKey());
+                } else {
+                    mb.setRecords(write.getKey(), write.getValue().values());
+                }
             }
+            mb.flush();
+        });
+        broadcastUpdated(writes.parentPath());
+    }
+
+    private int deleteJsonRecords(Handle dbi, String baseDBPath) {
+        PathRange range = PathRange.prefix(baseDBPath);
+        // deleting a missing path changes nothing, not even the versions.
+        if (deleteParentRecords(dbi, baseDBPath) == 0 && !existsJsonRecords(dbi, range)) {
+            return 0;
         }
+        String entityPath = EntityVersions.entityPath(baseDBPath);
+        if (entityPath != null) {
+            EntityVersions.increment(dbi, upserts, Collections.singleton(entityPath));
+        } else {
+            EntityVersions.increment(dbi, range);
+        }
+        clearExpiries(dbi, range);
+
+        int count = deleteRecords(dbi, baseDBPath, range);
+        if (baseDBPath.equals(entityPath)) {
+            EntityVersions.remove(dbi, upserts, entityPath);
+        }
+        return count;
     }
 
+    private int deleteRecords(Handle dbi, String baseDBPath, PathRange range) {
+        String documentPath = documents.documentPath(baseDBPath);
+        if (documentPath != null) {
+            return deleteDocumentRecords(dbi, documentPath, baseDBPath);
+        }
+        int documentCount = 0;
+        if (documents.overlaps(range)) {
+            documentCount = documents.delete(dbi, range);
+        }
+        if (!indexes.isEmpty()) {
+            dbi.createStatement("DELETE from jsondb_index where " + PathRange.WHERE)
+                .bind("from", range.from()).bind("to", range.to()).execute();
+        }
+        LargeValues.release(dbi, range);
+        int count = dbi.createStatement("DELETE from jsondb where " + PathRange.WHERE)
+            .bind("from", range.from()).bind("to", range.to()).execute();
+        writeStatistics.rowsDeleted(count + documentCount);
+        return count + documentCount;
+    }
 
-    private int deleteJsonRecords(Handle dbi, String baseDBPath, String like) {
+    private int deleteDocumentRecords(Handle dbi, String documentPath, String baseDBPath) {
+        TreeMap<String, JsonRecord> current = documents.load(dbi, documentPath);
+        if (current == null) {
+            return 0;
+        }
+        TreeMap<String, JsonRecord> updated = new TreeMap<>(current);
+        int count = DocumentStore.removeRecords(updated, baseDBPath);
+        if (count > 0) {
+            BatchManager mb = new BatchManager(dbi);
+            // the version was already incremented
+            mb.versioned(documentPath);
+            mb.storeDocument(documentPath, current, updated);
+            mb.flush();
+        }
+        return count;
+    }
 
-        LinkedList<String> params = getAllParentPaths(baseDBPath);
+    /**
+     * Deletes the values stored at any of the parents of the baseDBPath, since
+     * they get replaced by the object holding the baseDBPath.
+     */
+    private int deleteParentRecords(Handle dbi, String baseDBPath) {
+        List<String> params = getAllParentPaths(baseDBPath);
+        if( params.isEmpty() ) {
+            return 0;
+        }
 
-        StringBuilder sql = new StringBuilder("DELETE from jsondb where path LIKE ?");
-        if( !params.isEmpty() ) {
-            sql.append(" OR path in ( ")
-               .append(String.join(", ", Collections.nCopies(params.size(), "?")))
-               .append(" )");
+        String in = String.join(", ", Collections.nCopies(params.size(), "?"));
+        if (!indexes.isEmpty()) {
+            dbi.update("DELETE from jsondb_index where path in ( " + in + " )", params.toArray());
         }
+        LargeValues.release(dbi, params, in);
+        int count = dbi.update("DELETE from jsondb where path in ( " + in + " )", params.toArray());
+        writeStatistics.rowsDeleted(count);
+        return count;
+    }
 
-        params.addFirst(like);
-        return dbi.update(sql.toString(), params.toArray());
+    /* default */ static List<String> getAllParentPaths(String baseDBPath) {
+        List<String> params = new ArrayList<>();
+        // skip over the trailing '/'
+        int end = baseDBPath.lastIndexOf('/', baseDBPath.length() - 2);
+        while (end > 0) {
+            params.add(baseDBPath.substring(0, end + 1));
+            end = baseDBPath.lastIndexOf('/', end - 1);
+        }
+        return params;
     }
 
-    private static LinkedList<String> getAllParentPaths(String baseDBPath) {
-        LinkedList<String> params = new LinkedList<String>();
-        Pattern compile = Pattern.compile("/[^/]*$");
-        String current = Strings.trimSuffix(baseDBPath, "/");
-        while( true ) {
-            current = compile.matcher(current).replaceFirst("");
-            if( current.isEmpty() ) {
-                break;
+    /**
+     * Ends the read only transaction used to stream records and releases the handle.
+     */
+    private static void closeReadHandle(Handle h) {
+        try {
+            if (h.isInTransaction()) {
+                h.rollback();
             }
-            params.add(current+"/");
+        } finally {
+            h.close();
+        }
+    }
+
+    private boolean existsJsonRecords(Handle dbi, PathRange range) {
+        if (documents.overlaps(range)) {
+            return new SqlRecordSource(dbi, fetchSize, documents).first(range) != null;
         }
-        return  params;
+        return dbi.createQuery("SELECT path from jsondb where " + PathRange.WHERE + " limit 1")
+            .bind("from", range.from())
+            .bind("to", range.to())
+            .map(StringColumnMapper.INSTANCE).first() != null;
     }
 
-    private int countJsonRecords(Handle dbi, String like) {
-        Integer result = dbi.createQuery("SELECT COUNT(*) from jsondb where path LIKE ?")
-            .bind(0, like)
-            .map(IntegerColumnMapper.PRIMITIVE).first();
-        return result.intValue();
+    @Override
+    public boolean isInTransaction() {
+        return transaction.get() != null;
+    }
+
+    @Override
+    public <T> T inTransaction(Function<JsonDB, T> work) {
+        if (transaction.get() != null) {
+            return work.apply(this);
+        }
+
+        Transaction tx;
+        T result;
+        try (final Handle h = dbi.open()) {
+            tx = new Transaction(h);
+            transaction.set(tx);
+            try {
+                h.begin();
+                result = work.apply(this);
+                h.commit();
+                written();
+            } catch (@SuppressWarnings("PMD.AvoidCatchingGenericException")RuntimeException e) {
+                h.rollback();
+                throw e;
+            } finally {
+                transaction.remove();
+            }
+        }
+        for (Map.Entry<String, String> event : tx.events) {
+            bus.broadcast(event.getKey(), event.getValue());
+        }
+        return result;
     }
 
-    private static class JsonRecordMapper implements ResultSetMapper<JsonRecord> {
-        private static final JsonRecordMapper INSTANCE = new JsonRecordMapper();
-        @Override
-        public JsonRecord map(int index, ResultSet r, StatementContext ctx) throws SQLException {
-            return JsonRecord.of(r.getString("path"), r.getString("value"), r.getInt("kind"));
+    /**
+     * The handle shared by all the calls made by a thread in
+     * {@link #inTransaction(Function)}, and the events to send once it commits.
+     */
+    private static final class Transaction {
+        private final Handle handle;
+        private final Set<Map.Entry<String, String>> events = new LinkedHashSet<>();
+
+        /* default */ Transaction(Handle handle) {
+            this.handle = handle;
         }
     }
 
+    /**
+     * Sends the next reads of the current thread to the primary, once one of its writes committed.
+     */
+    private void written() {
+        ReadReplicaDBI.written(dbi);
+    }
+
+    /**
+     * Runs the callback in the transaction of the current thread, or in a new
+     * one on the primary, which is taken to be a write transaction.
+     */
     private void withTransaction(Consumer<Handle> cb) {
-        try (final Handle h = dbi.open()) {
+        withTransaction(dbi, cb);
+    }
+
+    /**
+     * Like {@link #withTransaction(Consumer)}, on a read replica when the dbi is a {@link ReadReplicaDBI}.
+     */
+    private void withReadTransaction(Consumer<Handle> cb) {
+        withTransaction(ReadReplicaDBI.reads(dbi), cb);
+    }
+
+    private void withTransaction(DBI source, Consumer<Handle> cb) {
+        Transaction tx = transaction.get();
+        if (tx != null) {
+            cb.accept(tx.handle);
+            return;
+        }
+        try (final Handle h = source.open()) {
             try {
                 h.begin();
                 cb.accept(h);
                 h.commit();
+                if (source == dbi) {
+                    written();
+                }
             } catch (@SuppressWarnings("PMD.AvoidCatchingGenericException")RuntimeException e) {
                 h.rollback();
                 throw e;
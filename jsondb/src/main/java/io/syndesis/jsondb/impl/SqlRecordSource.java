@@ -0,0 +1,153 @@
+/**
+ * Copyright (C) 2016 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.syndesis.jsondb.impl;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Map;
+
+import org.skife.jdbi.v2.Handle;
+import org.skife.jdbi.v2.Query;
+import org.skife.jdbi.v2.ResultIterator;
+import org.skife.jdbi.v2.StatementContext;
+import org.skife.jdbi.v2.tweak.ResultSetMapper;
+
+/**
+ * Reads the records from the jsondb table, every lookup is a range scan of
+ * the primary key.  The records of the ranges that overlap the document
+ * collections are merged with the records of the documents, and the ranges
+ * within a single document only read that document.  The records of large
+ * values are returned as references, see {@link LargeValues}.
+ */
+/* default */ final class SqlRecordSource implements RecordSource {
+
+    private static final String SELECT = "select path,value,kind from jsondb where ";
+
+    private final Handle h;
+    private final int fetchSize;
+    private final DocumentStore documents;
+
+    /* default */ SqlRecordSource(Handle h, int fetchSize, DocumentStore documents) {
+        this.h = h;
+        this.fetchSize = fetchSize;
+        this.documents = documents;
+    }
+
+    @Override
+    public ResultIterator<JsonRecord> select(PathRange range) {
+        if (!documents.overlaps(range)) {
+            return selectRecords(h, range, fetchSize);
+        }
+        if (documents.containingDocument(range) != null) {
+            return documents.select(h, range, fetchSize);
+        }
+        return new DocumentStore.MergedRecords(selectRecords(h, range, fetchSize), documents.select(h, range, fetchSize));
+    }
+
+    @Override
+    public ResultIterator<JsonRecord> select(List<PathRange> ranges) {
+        for (PathRange range : ranges) {
+            if (documents.overlaps(range)) {
+                // the ranges are disjoint and sorted, so are their records.
+                return new MapRecordSource.Concatenated(ranges, this::select);
+            }
+        }
+
+        StringBuilder sql = new StringBuilder(256).append(SELECT);
+        for (int i = 0; i < ranges.size(); i++) {
+            if (i > 0) {
+                sql.append(" or ");
+            }
+            sql.append("(path >= ? and path < ?)");
+        }
+        sql.append(" order by path");
+
+        Query<Map<String, Object>> query = h.createQuery(sql.toString());
+        int param = 0;
+        for (PathRange range : ranges) {
+            query.bind(param++, range.from());
+            query.bind(param++, range.to());
+        }
+        return query.setFetchSize(fetchSize).map(JsonRecordMapper.INSTANCE).iterator();
+    }
+
+    @Override
+    public ResultIterator<JsonRecord> selectWithChild(String baseDBPath, String childPath) {
+        if (documents.overlaps(PathRange.prefix(baseDBPath))) {
+            return select(PathRange.prefix(baseDBPath));
+        }
+        return h.createQuery(SELECT + PathRange.WHERE + " and path LIKE :like order by path")
+            .setFetchSize(fetchSize)
+            .bind("from", baseDBPath)
+            .bind("to", PathRange.upperBound(baseDBPath))
+            .bind("like", baseDBPath + "%/" + childPath + "%")
+            .map(JsonRecordMapper.INSTANCE)
+            .iterator();
+    }
+
+    @Override
+    public JsonRecord first(PathRange range) {
+        if (documents.overlaps(range)) {
+            try (ResultIterator<JsonRecord> records = select(range)) {
+                return records.hasNext() ? records.next() : null;
+            }
+        }
+        return h.createQuery(SELECT + PathRange.WHERE + " order by path limit 1")
+            .bind("from", range.from())
+            .bind("to", range.to())
+            .map(JsonRecordMapper.INSTANCE)
+            .first();
+    }
+
+    @Override
+    public String last(PathRange range) {
+        String last = h.createQuery("select path from jsondb where " + PathRange.WHERE + " order by path desc limit 1")
+            .bind("from", range.from())
+            .bind("to", range.to())
+            .mapTo(String.class)
+            .first();
+        if (documents.overlaps(range)) {
+            String lastInDocuments = documents.last(h, range);
+            if (last == null || lastInDocuments != null && lastInDocuments.compareTo(last) > 0) {
+                return lastInDocuments;
+            }
+        }
+        return last;
+    }
+
+    @Override
+    public JsonRecord resolve(JsonRecord record) {
+        return LargeValues.resolve(h, record);
+    }
+
+    /* default */ static ResultIterator<JsonRecord> selectRecords(Handle h, PathRange range, int fetchSize) {
+        return h.createQuery(SELECT + PathRange.WHERE + " order by path")
+            .setFetchSize(fetchSize)
+            .bind("from", range.from())
+            .bind("to", range.to())
+            .map(JsonRecordMapper.INSTANCE)
+            .iterator();
+    }
+
+    /* default */ static class JsonRecordMapper implements ResultSetMapper<JsonRecord> {
+        /* default */ static final JsonRecordMapper INSTANCE = new JsonRecordMapper();
+        @Override
+        public JsonRecord map(int index, ResultSet r, StatementContext ctx) throws SQLException {
+            return JsonRecord.of(r.getString("path"), r.getString("value"), r.getInt("kind"));
+        }
+    }
+}
@@ -0,0 +1,153 @@
+/**
+ * Copyright (C) 2016 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.syndesis.jsondb.impl;
+
+import java.sql.SQLException;
+import java.util.Collection;
+import java.util.Map;
+
+import org.skife.jdbi.v2.Handle;
+import org.skife.jdbi.v2.PreparedBatch;
+import org.skife.jdbi.v2.exceptions.UnableToExecuteStatementException;
+
+/**
+ * Writes the rows that another transaction could insert at the same time,
+ * like the version of an entity written for the first time.  PostgreSQL and
+ * CockroachDB do it in a single {@code INSERT ... ON CONFLICT} statement,
+ * which waits for the other transaction.  The other databases insert in a
+ * savepoint, and a unique violation, or a concurrent insert H2 can't wait
+ * for, rolls the savepoint back instead of failing the transaction.
+ */
+/* default */ final class Upserts {
+
+    private static final String SAVEPOINT = "jsondb_upsert";
+
+    private static final String UNIQUE_VIOLATION = "23505";
+    // H2 fails the write of a row another transaction holds instead of waiting for it.
+    private static final String H2_CONCURRENT_UPDATE = "90131";
+
+    private final boolean onConflict;
+
+    /**
+     * @param onConflict true if the database supports {@code INSERT ... ON CONFLICT}.
+     */
+    /* default */ Upserts(boolean onConflict) {
+        this.onConflict = onConflict;
+    }
+
+    /**
+     * Inserts the row unless there is already a row with the same key.
+     *
+     * @param insert the INSERT statement
+     * @param key the columns of the unique key
+     * @return false if a row with the same key exists, or is being inserted by another transaction.
+     */
+    /* default */ boolean insertIfAbsent(Handle h, String insert, String key, Map<String, ?> params) {
+        if (onConflict) {
+            return h.createStatement(insert + " ON CONFLICT (" + key + ") DO NOTHING").bindFromMap(params).execute() > 0;
+        }
+        h.checkpoint(SAVEPOINT);
+        try {
+            h.createStatement(insert).bindFromMap(params).execute();
+        } catch (UnableToExecuteStatementException e) {
+            if (!isConflict(e)) {
+                throw e;
+            }
+            h.rollback(SAVEPOINT);
+            return false;
+        }
+        h.release(SAVEPOINT);
+        return true;
+    }
+
+    /**
+     * Inserts the row, or updates it if there is already a row with the same key.
+     *
+     * @param insert the INSERT statement
+     * @param key the columns of the unique key
+     * @param set the SET clause applied to the existing row, which is referred to by its table name
+     * @param update the UPDATE statement equivalent to the SET clause, for the databases without ON CONFLICT
+     * @return false if the row is being written by another transaction the database can't wait for.
+     */
+    /* default */ boolean upsert(Handle h, String insert, String key, String set, String update, Map<String, ?> params) {
+        if (onConflict) {
+            h.createStatement(onConflictUpdate(insert, key, set)).bindFromMap(params).execute();
+            return true;
+        }
+        // when another transaction inserts the row between the update and the insert, it's updated again.
+        return updateOrInsert(h, insert, update, params) || updateOrInsert(h, insert, update, params);
+    }
+
+    /**
+     * Same as {@link #upsert(Handle, String, String, String, String, Map)} for
+     * several rows, in a single batch when the database supports ON CONFLICT.
+     *
+     * @return false if one of the rows is being written by another transaction the database can't wait for.
+     */
+    /* default */ boolean upsertAll(Handle h, String insert, String key, String set, String update, Collection<? extends Map<String, ?>> rows) {
+        if (rows.isEmpty()) {
+            return true;
+        }
+        if (onConflict) {
+            // the update counts of the batch are not needed, drivers may not report them.
+            PreparedBatch batch = h.prepareBatch(onConflictUpdate(insert, key, set));
+            for (Map<String, ?> params : rows) {
+                batch.add(params);
+            }
+            batch.execute();
+            return true;
+        }
+        for (Map<String, ?> params : rows) {
+            if (!upsert(h, insert, key, set, update, params)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String onConflictUpdate(String insert, String key, String set) {
+        return insert + " ON CONFLICT (" + key + ") DO UPDATE SET " + set;
+    }
+
+    private static boolean updateOrInsert(Handle h, String insert, String update, Map<String, ?> params) {
+        h.checkpoint(SAVEPOINT);
+        try {
+            if (h.createStatement(update).bindFromMap(params).execute() == 0) {
+                h.createStatement(insert).bindFromMap(params).execute();
+            }
+        } catch (UnableToExecuteStatementException e) {
+            if (!isConflict(e)) {
+                throw e;
+            }
+            h.rollback(SAVEPOINT);
+            return false;
+        }
+        h.release(SAVEPOINT);
+        return true;
+    }
+
+    private static boolean isConflict(UnableToExecuteStatementException e) {
+        Throwable cause = e.getCause();
+        while (cause != null && !(cause instanceof SQLException)) {
+            cause = cause.getCause();
+        }
+        if (cause == null) {
+            return false;
+        }
+        String state = ((SQLException) cause).getSQLState();
+        return UNIQUE_VIOLATION.equals(state) || H2_CONCURRENT_UPDATE.equals(state);
+    }
+}
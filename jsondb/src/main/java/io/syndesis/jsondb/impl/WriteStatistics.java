@@ -0,0 +1,110 @@
+/**
+ * Copyright (C) 2016 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.syndesis.jsondb.impl;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts the records written to the JsonDB compared to the rows that
+ * actually had to be modified in the database.
+ */
+public class WriteStatistics {
+
+    private final LongAdder recordsWritten = new LongAdder();
+    private final LongAdder rowsInserted = new LongAdder();
+    private final LongAdder rowsUpdated = new LongAdder();
+    private final LongAdder rowsDeleted = new LongAdder();
+    private final LongAdder rowsUnchanged = new LongAdder();
+
+    /**
+     * @return the number of records contained in the documents that were written.
+     */
+    public long getRecordsWritten() {
+        return recordsWritten.sum();
+    }
+
+    public long getRowsInserted() {
+        return rowsInserted.sum();
+    }
+
+    public long getRowsUpdated() {
+        return rowsUpdated.sum();
+    }
+
+    public long getRowsDeleted() {
+        return rowsDeleted.sum();
+    }
+
+    /**
+     * @return the number of records that were written but already stored with the same value.
+     */
+    public long getRowsUnchanged() {
+        return rowsUnchanged.sum();
+    }
+
+    /**
+     * @return the number of rows modified for every record written, a full rewrite
+     * of a document that replaces the same number of records has an amplification of 2.
+     */
+    public double getWriteAmplification() {
+        long written = getRecordsWritten();
+        if (written == 0) {
+            return 0;
+        }
+        return (double) (getRowsInserted() + getRowsUpdated() + getRowsDeleted()) / written;
+    }
+
+    public void reset() {
+        recordsWritten.reset();
+        rowsInserted.reset();
+        rowsUpdated.reset();
+        rowsDeleted.reset();
+        rowsUnchanged.reset();
+    }
+
+    /* default */ void recordsWritten(long count) {
+        recordsWritten.add(count);
+    }
+
+    /* default */ void rowInserted() {
+        rowsInserted.increment();
+    }
+
+    /* default */ void rowUpdated() {
+        rowsUpdated.increment();
+    }
+
+    /* default */ void rowDeleted() {
+        rowsDeleted.increment();
+    }
+
+    /* default */ void rowsDeleted(long count) {
+        rowsDeleted.add(count);
+    }
+
+    /* default */ void rowUnchanged() {
+        rowsUnchanged.increment();
+    }
+
+    @Override
+    public String toString() {
+        return "WriteStatistics{recordsWritten=" + getRecordsWritten() +
+            ", rowsInserted=" + getRowsInserted() +
+            ", rowsUpdated=" + getRowsUpdated() +
+            ", rowsDeleted=" + getRowsDeleted() +
+            ", rowsUnchanged=" + getRowsUnchanged() + "}";
+    }
+}
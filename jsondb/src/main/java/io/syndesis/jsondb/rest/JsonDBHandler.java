@@ -30,7 +30,7 @@ import org.springframework.stereotype.Component;
 @Configuration
 @ConditionalOnProperty(value = "endpoints.jsondb.enabled")
 public class JsonDBHandler extends JsonDBResource {
-    public JsonDBHandler(JsonDB jsondb) {
-        super(jsondb);
+    public JsonDBHandler(JsonDB jsondb, JsonDBSubscriptions subscriptions) {
+        super(jsondb, subscriptions);
     }
 }
@@ -15,9 +15,13 @@
  */
 package io.syndesis.jsondb.rest;
 
+import java.io.FilterOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
 import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Consumer;
 
 import javax.ws.rs.Consumes;
@@ -29,14 +33,20 @@ import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
 import javax.ws.rs.QueryParam;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.Request;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.StreamingOutput;
 
 import static javax.ws.rs.core.HttpHeaders.CONTENT_TYPE;
+import static javax.ws.rs.core.HttpHeaders.RETRY_AFTER;
 import static javax.ws.rs.core.MediaType.APPLICATION_JSON;
 
+import io.syndesis.core.Json;
 import io.syndesis.jsondb.GetOptions;
 import io.syndesis.jsondb.JsonDB;
+import io.syndesis.jsondb.impl.Strings;
 
 /**
  * Provides a REST API to read/update a Key/Value database presented to the user a
@@ -50,20 +60,36 @@ import io.syndesis.jsondb.JsonDB;
 @Path("/jsondb")
 public class JsonDBResource {
     public static final String APPLICATION_JAVASCRIPT = "application/javascript";
+    public static final String TEXT_EVENT_STREAM = "text/event-stream";
+    private static final long KEEP_ALIVE_SECONDS = 25;
+    private static final String RETRY_AFTER_SECONDS = "30";
     private final JsonDB jsondb;
+    private final JsonDBSubscriptions subscriptions;
 
     public JsonDBResource(JsonDB jsondb) {
+        this(jsondb, null);
+    }
+
+    public JsonDBResource(JsonDB jsondb, JsonDBSubscriptions subscriptions) {
         this.jsondb = jsondb;
+        this.subscriptions = subscriptions;
     }
 
     @Produces({APPLICATION_JSON, APPLICATION_JAVASCRIPT})
     @Path("/{path: .*}.json")
     @GET
+    @SuppressWarnings({"PMD.UseObjectForClearerAPI", "PMD.CyclomaticComplexity", "PMD.ModifiedCyclomaticComplexity", "PMD.StdCyclomaticComplexity", "PMD.NPathComplexity", "PMD.ExcessiveParameterList"})
     public Response get(
         @PathParam("path") String path,
         @QueryParam("print") String print,
         @QueryParam("shallow") Boolean shallow,
-        @QueryParam("callback") String callback
+        @QueryParam("callback") String callback,
+        @QueryParam("orderBy") String orderBy,
+        @QueryParam("startAt") String startAt,
+        @QueryParam("endAt") String endAt,
+        @QueryParam("limitToFirst") Integer limitToFirst,
+        @QueryParam("limitToLast") Integer limitToLast,
+        @Context Request request
     ) {
         GetOptions options = new GetOptions();
         if ("pretty".equals(print)) {
@@ -78,6 +104,20 @@ public class JsonDBResource {
         if( shallow!=null ) {
             options.shallow(true);
         }
+        if( orderBy!=null ) {
+            Object order = parseValue(orderBy);
+            if( "$key".equals(order) ) {
+                options.orderByKey(true);
+            } else if( order instanceof String && !((String) order).startsWith("$") ) {
+                options.orderByChild((String) order);
+            } else {
+                return Response.status(Response.Status.BAD_REQUEST).build();
+            }
+        }
+        options.startAt(parseValue(startAt));
+        options.endAt(parseValue(endAt));
+        options.limitToFirst(limitToFirst);
+        options.limitToLast(limitToLast);
 
         String contentType = APPLICATION_JSON;
         if( callback!=null ) {
@@ -85,13 +125,109 @@ public class JsonDBResource {
             options.callback(callback);
         }
 
+        // The version is read before the value so a concurrent write can't
+        // get the new value tagged with the old version.
+        EntityTag tag = null;
+        long version = jsondb.getVersion(path);
+        if( version > 0 ) {
+            tag = new EntityTag(Long.toString(version));
+            Response.ResponseBuilder notModified = request.evaluatePreconditions(tag);
+            if( notModified != null ) {
+                return notModified.tag(tag).build();
+            }
+        }
+
         Consumer<OutputStream> stream = jsondb.getAsStreamingOutput(path, options);
         if( stream == null ) {
             return Response.status(Response.Status.NOT_FOUND).build();
         }
 
         StreamingOutput streamingOutput = x-> stream.accept(x);
-        return Response.ok(streamingOutput).header(CONTENT_TYPE, contentType).build();
+        return Response.ok(streamingOutput).header(CONTENT_TYPE, contentType).tag(tag).build();
+    }
+
+    /**
+     * Like the Firebase streaming REST API, streams the value of the path as
+     * a {@code put} event, followed by a {@code put} event with just the
+     * changed subtree every time something changes at, above or below the
+     * path, e.g. {@code {"path":"/name","data":"new name"}}.
+     *
+     * A stream holds its request thread for as long as it's open, so once the
+     * {@link JsonDBSubscriptions} cap is reached the next streams are answered
+     * with a 503 and a Retry-After.
+     */
+    @Produces(TEXT_EVENT_STREAM)
+    @Path("/{path: .*}.json")
+    @GET
+    public Response stream(@PathParam("path") String path) {
+        if( subscriptions==null ) {
+            return Response.status(Response.Status.NOT_IMPLEMENTED).build();
+        }
+
+        JsonDBSubscriptions.Subscription subscription = subscriptions.subscribe(path);
+        if( subscription==null ) {
+            return Response.status(Response.Status.SERVICE_UNAVAILABLE).header(RETRY_AFTER, RETRY_AFTER_SECONDS).build();
+        }
+
+        StreamingOutput streamingOutput = output -> {
+            try {
+                String changed = "/";
+                while (true) {
+                    if( changed==null ) {
+                        // also finds out when the client went away.
+                        output.write(":\n\n".getBytes(StandardCharsets.UTF_8));
+                    } else {
+                        writePut(output, subscription.getPath(), changed);
+                    }
+                    output.flush();
+                    changed = subscription.poll(KEEP_ALIVE_SECONDS, TimeUnit.SECONDS);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                subscription.close();
+            }
+        };
+        return Response.ok(streamingOutput).header(CONTENT_TYPE, TEXT_EVENT_STREAM).build();
+    }
+
+    private void writePut(OutputStream output, String basePath, String relativePath) throws IOException {
+        String path = "/".equals(relativePath) ? basePath : Strings.trimSuffix(basePath, "/") + relativePath;
+        output.write(("event: put\ndata: {\"path\":" + Json.mapper().writeValueAsString(relativePath) + ",\"data\":").getBytes(StandardCharsets.UTF_8));
+        // the json is written without line breaks, so it fits in a single data line.
+        Consumer<OutputStream> value = jsondb.getAsStreamingOutput(path);
+        if( value==null ) {
+            output.write("null".getBytes(StandardCharsets.UTF_8));
+        } else {
+            // the json writer closes its stream, but the event stream goes on.
+            value.accept(new FilterOutputStream(output) {
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    out.write(b, off, len);
+                }
+
+                @Override
+                public void close() throws IOException {
+                    flush();
+                }
+            });
+        }
+        output.write("}\n\n".getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Like Firebase, query values are JSON encoded, e.g. {@code startAt="a"}
+     * or {@code startAt=10}.  Values that are not valid JSON are used as strings.
+     */
+    private static Object parseValue(String value) {
+        if( value==null ) {
+            return null;
+        }
+        try {
+            return Json.mapper().readValue(value, Object.class);
+        } catch (IOException ignored) {
+            return value;
+        }
     }
 
     @Path("/{path: .*}.json")
@@ -111,6 +247,11 @@ public class JsonDBResource {
         return result;
     }
 
+    /**
+     * Like a Firebase multi-location update, the body's field names can be
+     * paths relative to the requested path, e.g. {@code {"a/b": 1, "c/d": 2}},
+     * which are all written atomically with a single change event.
+     */
     @Path("/{path: .*}.json")
     @Consumes(APPLICATION_JSON)
     @PATCH
@@ -0,0 +1,156 @@
+/**
+ * Copyright (C) 2016 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.syndesis.jsondb.rest;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import io.syndesis.core.EventBus;
+
+/**
+ * Receives the {@code jsondb-updated} and {@code jsondb-deleted} events of a
+ * JsonDB and hands the changed paths to the subscriptions of the paths they
+ * affect: the subscriptions at or above the changed path, and the ones below
+ * it.  The subscriptions are kept in a {@link PathTrie} so matching a change
+ * only walks the changed path instead of every subscription.
+ *
+ * Every open subscription holds the request thread of its event stream, so
+ * their number is capped to keep the server's threads for the other requests.
+ */
+public class JsonDBSubscriptions implements EventBus.Subscription {
+
+    /**
+     * The number of changes a subscription queues before they are replaced
+     * by a single change of the whole subscribed path.
+     */
+    public static final int DEFAULT_QUEUE_SIZE = 1000;
+
+    /**
+     * The number of subscriptions open at once.
+     */
+    public static final int DEFAULT_MAX_SUBSCRIPTIONS = 50;
+
+    private final PathTrie<Subscription> subscriptions = new PathTrie<>();
+    private final AtomicInteger count = new AtomicInteger();
+    private final int queueSize;
+    private final int maxSubscriptions;
+
+    public JsonDBSubscriptions() {
+        this(DEFAULT_QUEUE_SIZE, DEFAULT_MAX_SUBSCRIPTIONS);
+    }
+
+    public JsonDBSubscriptions(int queueSize) {
+        this(queueSize, DEFAULT_MAX_SUBSCRIPTIONS);
+    }
+
+    public JsonDBSubscriptions(int queueSize, int maxSubscriptions) {
+        this.queueSize = queueSize;
+        this.maxSubscriptions = maxSubscriptions;
+    }
+
+    /**
+     * A subscription to the changes of a path, closing it unsubscribes.
+     */
+    public final class Subscription implements AutoCloseable {
+        private final String path;
+        private final BlockingQueue<String> changes;
+        private final AtomicBoolean closed = new AtomicBoolean();
+
+        /* default */ Subscription(String path) {
+            this.path = path;
+            this.changes = new LinkedBlockingQueue<>(queueSize);
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        /**
+         * Waits for the next change.
+         *
+         * @return the path that changed, relative to the subscribed path: {@code /}
+         * if the whole subscribed path changed, or null if there was no change in time.
+         */
+        public String poll(long timeout, TimeUnit unit) throws InterruptedException {
+            return changes.poll(timeout, unit);
+        }
+
+        /* default */ void changed(String changedPath) {
+            String relative;
+            if (changedPath.length() > path.length() && changedPath.startsWith(path)) {
+                relative = path.length() == 1 ? changedPath : changedPath.substring(path.length());
+            } else {
+                // the change is at or above the subscribed path.
+                relative = "/";
+            }
+            if (!changes.offer(relative)) {
+                // a slow reader just gets the whole path again.
+                changes.clear();
+                changes.offer("/");
+            }
+        }
+
+        @Override
+        public void close() {
+            if (closed.compareAndSet(false, true)) {
+                subscriptions.remove(path, this);
+                count.decrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * @return the subscription, or null if maxSubscriptions are already open.
+     */
+    public Subscription subscribe(String path) {
+        if (count.incrementAndGet() > maxSubscriptions) {
+            count.decrementAndGet();
+            return null;
+        }
+        Subscription subscription = new Subscription(normalize(path));
+        subscriptions.add(subscription.getPath(), subscription);
+        return subscription;
+    }
+
+    public boolean hasSubscriptions() {
+        return !subscriptions.isEmpty();
+    }
+
+    @Override
+    public void onEvent(String event, String data) {
+        if (!"jsondb-updated".equals(event) && !"jsondb-deleted".equals(event)) {
+            return;
+        }
+        String changedPath = normalize(data);
+        for (Subscription subscription : subscriptions.matching(changedPath)) {
+            subscription.changed(changedPath);
+        }
+    }
+
+    /**
+     * @return the path as {@code /a/b}, or {@code /} for the root.
+     */
+    /* default */ static String normalize(String path) {
+        StringBuilder result = new StringBuilder(path.length() + 1);
+        for (String segment : PathTrie.segments(path)) {
+            result.append('/').append(segment);
+        }
+        return result.length() == 0 ? "/" : result.toString();
+    }
+}
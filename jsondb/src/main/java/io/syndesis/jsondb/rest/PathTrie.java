@@ -0,0 +1,126 @@
+/**
+ * Copyright (C) 2016 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.syndesis.jsondb.rest;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Maps the segments of json paths to the values registered at them, so the
+ * values interested in a change are found by walking the changed path: the
+ * values of the nodes passed on the way are at ancestors of the change, and
+ * the values below its last node are within the changed subtree.
+ */
+/* default */ final class PathTrie<T> {
+
+    private final Node<T> root = new Node<>(null, null);
+
+    private static final class Node<T> {
+        private final Node<T> parent;
+        private final String segment;
+        private final Map<String, Node<T>> children = new HashMap<>();
+        private final Set<T> values = new LinkedHashSet<>();
+
+        /* default */ Node(Node<T> parent, String segment) {
+            this.parent = parent;
+            this.segment = segment;
+        }
+
+        /* default */ void collectAll(List<T> result) {
+            result.addAll(values);
+            for (Node<T> child : children.values()) {
+                child.collectAll(result);
+            }
+        }
+    }
+
+    public synchronized void add(String path, T value) {
+        Node<T> node = root;
+        for (String segment : segments(path)) {
+            Node<T> parent = node;
+            node = parent.children.computeIfAbsent(segment, s -> new Node<>(parent, s));
+        }
+        node.values.add(value);
+    }
+
+    public synchronized boolean remove(String path, T value) {
+        Node<T> node = find(path);
+        if (node == null || !node.values.remove(value)) {
+            return false;
+        }
+        // prune the branch that no longer leads to any value.
+        while (node.parent != null && node.values.isEmpty() && node.children.isEmpty()) {
+            node.parent.children.remove(node.segment);
+            node = node.parent;
+        }
+        return true;
+    }
+
+    /**
+     * @return the values registered at the path, at its ancestors or below it.
+     */
+    public synchronized List<T> matching(String path) {
+        List<T> result = new ArrayList<>();
+        Node<T> node = root;
+        for (String segment : segments(path)) {
+            result.addAll(node.values);
+            node = node.children.get(segment);
+            if (node == null) {
+                return result;
+            }
+        }
+        node.collectAll(result);
+        return result;
+    }
+
+    public synchronized boolean isEmpty() {
+        return root.values.isEmpty() && root.children.isEmpty();
+    }
+
+    private Node<T> find(String path) {
+        Node<T> node = root;
+        for (String segment : segments(path)) {
+            node = node.children.get(segment);
+            if (node == null) {
+                return null;
+            }
+        }
+        return node;
+    }
+
+    /**
+     * @return the non empty segments of the path, so that {@code /a/b/}, {@code a/b} and {@code /a//b} are the same path.
+     */
+    /* default */ static List<String> segments(String path) {
+        List<String> result = new ArrayList<>();
+        int start = 0;
+        while (start < path.length()) {
+            int end = path.indexOf('/', start);
+            if (end < 0) {
+                end = path.length();
+            }
+            if (end > start) {
+                result.add(path.substring(start, end));
+            }
+            start = end + 1;
+        }
+        return result;
+    }
+}
@@ -0,0 +1,152 @@
+/**
+ * Copyright (C) 2016 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.syndesis.jsondb.dao;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+
+import io.syndesis.core.EventBus;
+import io.syndesis.dao.manager.DataManager;
+import io.syndesis.dao.manager.EncryptionComponent;
+import io.syndesis.jsondb.impl.SqlJsonDB;
+import io.syndesis.model.ListResult;
+import io.syndesis.model.connection.Connection;
+
+import org.h2.jdbcx.JdbcDataSource;
+import org.infinispan.configuration.cache.ConfigurationBuilder;
+import org.infinispan.configuration.global.GlobalConfigurationBuilder;
+import org.infinispan.manager.DefaultCacheManager;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.skife.jdbi.v2.DBI;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Unit Tests for the DataManager on top of the JsonDB.
+ */
+public class JsonDbDaoTest {
+
+    private JdbcDataSource ds;
+    private SqlJsonDB jsondb;
+    private DefaultCacheManager caches;
+    private DataManager dataManager;
+
+    @Before
+    public void before() {
+        ds = new JdbcDataSource();
+        ds.setURL("jdbc:h2:mem:test;DB_CLOSE_DELAY=-1;MODE=PostgreSQL");
+        EventBus bus = new DirectEventBus();
+        jsondb = new SqlJsonDB(new DBI(ds), bus);
+        try {
+            jsondb.dropTables();
+        } catch (Exception e) {
+        }
+        jsondb.createTables();
+
+        caches = new DefaultCacheManager(new GlobalConfigurationBuilder().nonClusteredDefault().build(),
+            new ConfigurationBuilder().build());
+        dataManager = new DataManager(caches, Collections.singletonList(new ConnectionJsonDbDao(jsondb)), bus, new EncryptionComponent(null));
+        dataManager.init();
+    }
+
+    @After
+    public void after() {
+        caches.stop();
+    }
+
+    @Test
+    public void testFetchAllSeesTheWritesToTheJsonDB() {
+        dataManager.create(new Connection.Builder().id("1").name("first").build());
+        ListResult<Connection> connections = dataManager.fetchAll(Connection.class);
+        assertThat(names(connections)).containsExactly("first");
+        assertThat(dataManager.fetchAll(Connection.class)).isSameAs(connections);
+
+        // written without the DataManager, like the JsonDB REST API does.
+        jsondb.update("/connections/:1", "{\"name\": \"renamed\"}");
+        jsondb.set("/connections/:2", "{\"id\": \"2\", \"name\": \"second\"}");
+        assertThat(names(dataManager.fetchAll(Connection.class))).containsExactly("renamed", "second");
+
+        jsondb.delete("/connections/:1");
+        connections = dataManager.fetchAll(Connection.class);
+        assertThat(names(connections)).containsExactly("second");
+        assertThat(dataManager.fetchAll(Connection.class)).isSameAs(connections);
+    }
+
+    @Test
+    public void testFetchAllTrustsTheSnapshotWithinTheStalenessBound() {
+        dataManager.create(new Connection.Builder().id("1").name("first").build());
+        ListResult<Connection> connections = dataManager.fetchAll(Connection.class);
+
+        // another node's writes send no event here, they're seen once the version is checked again.
+        SqlJsonDB otherNode = new SqlJsonDB(new DBI(ds), null);
+        otherNode.set("/connections/:2", "{\"id\": \"2\", \"name\": \"second\"}");
+        assertThat(dataManager.fetchAll(Connection.class)).isSameAs(connections);
+    }
+
+    @Test
+    public void testUpdateReplacesOnlyExistingEntities() {
+        ConnectionJsonDbDao dao = new ConnectionJsonDbDao(jsondb);
+        Connection missing = new Connection.Builder().id("missing").name("missing").build();
+        assertThat(dao.update(missing)).isNull();
+        assertThat(jsondb.exists("/connections/:missing")).isFalse();
+
+        dao.create(new Connection.Builder().id("1").name("first").build());
+        Connection renamed = new Connection.Builder().id("1").name("renamed").build();
+        assertThat(dao.update(renamed)).isSameAs(renamed);
+        assertThat(dao.fetch("1").getName()).isEqualTo("renamed");
+    }
+
+    /**
+     * Delivers the events as they're broadcast, like the SimpleEventBus.
+     */
+    private static class DirectEventBus implements EventBus {
+        private final Map<String, Subscription> subscriptions = new ConcurrentHashMap<>();
+
+        @Override
+        public Subscription subscribe(String subscriberId, Subscription handler) {
+            return subscriptions.put(subscriberId, handler);
+        }
+
+        @Override
+        public Subscription unsubscribe(String subscriberId) {
+            return subscriptions.remove(subscriberId);
+        }
+
+        @Override
+        public void broadcast(String event, String data) {
+            for (Subscription subscription : subscriptions.values()) {
+                subscription.onEvent(event, data);
+            }
+        }
+
+        @Override
+        public void send(String subscriberId, String event, String data) {
+            Subscription subscription = subscriptions.get(subscriberId);
+            if (subscription != null) {
+                subscription.onEvent(event, data);
+            }
+        }
+    }
+
+    private static List<String> names(ListResult<Connection> connections) {
+        return connections.getItems().stream().map(Connection::getName).collect(Collectors.toList());
+    }
+}
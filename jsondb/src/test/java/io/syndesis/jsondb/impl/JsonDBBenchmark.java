@@ -0,0 +1,151 @@
+/**
+ * Copyright (C) 2016 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.syndesis.jsondb.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import io.syndesis.jsondb.JsonDB;
+import io.syndesis.jsondb.dao.IntegrationJsonDbDao;
+import io.syndesis.model.ListResult;
+import io.syndesis.model.integration.Integration;
+
+import org.h2.jdbcx.JdbcDataSource;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.skife.jdbi.v2.DBI;
+
+/**
+ * Compares the {@link SqlJsonDB} on an in memory H2 database with the
+ * {@link MemoryJsonDB} persisted to a temporary directory on the workloads
+ * of the JsonDbDao: fetching one entity, listing the collection, and
+ * creating or updating entities.
+ *
+ * Run it with the main method from the test class path, or with:
+ * {@code java -cp <test class path> org.openjdk.jmh.Main JsonDBBenchmark}
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@SuppressWarnings("PMD")
+public class JsonDBBenchmark {
+
+    private static final int ENTITIES = 100;
+
+    @Param({"h2", "memory"})
+    public String engine;
+
+    private File directory;
+    private MemoryJsonDB memory;
+    private IntegrationJsonDbDao dao;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        JsonDB jsondb;
+        if ("h2".equals(engine)) {
+            JdbcDataSource ds = new JdbcDataSource();
+            ds.setURL("jdbc:h2:mem:benchmark;DB_CLOSE_DELAY=-1;MODE=PostgreSQL");
+            SqlJsonDB sqlJsonDB = new SqlJsonDB(new DBI(ds), null);
+            try {
+                sqlJsonDB.dropTables();
+            } catch (Exception e) {
+            }
+            sqlJsonDB.createTables();
+            jsondb = sqlJsonDB;
+        } else {
+            directory = Files.createTempDirectory("jsondb").toFile();
+            memory = new MemoryJsonDB(null, directory);
+            jsondb = memory;
+        }
+
+        dao = new IntegrationJsonDbDao(jsondb);
+        for (int i = 0; i < ENTITIES; i++) {
+            dao.create(integration(i, "integration " + i));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        if (memory != null) {
+            memory.close();
+            File[] files = directory.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    Files.delete(file.toPath());
+                }
+            }
+            Files.delete(directory.toPath());
+        }
+    }
+
+    private static Integration integration(int i, String name) {
+        return new Integration.Builder()
+            .id(String.format("i%04d", i))
+            .name(name)
+            .description("The integration number " + i)
+            .configuration("{\"a\": " + i + "}")
+            .build();
+    }
+
+    @Benchmark
+    public Integration fetch() {
+        return dao.fetch(String.format("i%04d", next++ % ENTITIES));
+    }
+
+    @Benchmark
+    public ListResult<Integration> fetchAll() {
+        return dao.fetchAll();
+    }
+
+    @Benchmark
+    public Integration update() {
+        int i = next++;
+        return dao.update(integration(i % ENTITIES, "updated " + i));
+    }
+
+    @Benchmark
+    public Integration createAndDelete() {
+        Integration created = dao.create(integration(ENTITIES + next++ % ENTITIES, "created"));
+        dao.delete(created);
+        return created;
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+            .include(JsonDBBenchmark.class.getSimpleName())
+            .build()).run();
+    }
+}
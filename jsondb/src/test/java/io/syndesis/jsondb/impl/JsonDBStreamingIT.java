@@ -0,0 +1,130 @@
+/**
+ * Copyright (C) 2016 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.syndesis.jsondb.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.Locale;
+import java.util.function.Consumer;
+
+import com.fasterxml.jackson.core.JsonTokenId;
+
+import org.h2.jdbcx.JdbcDataSource;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.skife.jdbi.v2.DBI;
+import org.skife.jdbi.v2.PreparedBatch;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Streams a subtree with millions of records (two per child) and checks that the heap
+ * used while doing so does not grow with the size of the subtree.
+ */
+public class JsonDBStreamingIT {
+
+    private static final int CHILDREN = 1_000_000;
+    private static final long MAX_HEAP_GROWTH = 64 * 1024 * 1024;
+
+    private File dir;
+    private SqlJsonDB jsondb;
+
+    @Before
+    public void before() throws IOException {
+        // Use a file based db so that the records themselves are not kept in the heap.
+        dir = Files.createTempDirectory("jsondb").toFile();
+        JdbcDataSource ds = new JdbcDataSource();
+        ds.setURL("jdbc:h2:" + new File(dir, "test").getAbsolutePath() + ";MODE=PostgreSQL");
+        DBI dbi = new DBI(ds);
+        jsondb = new SqlJsonDB(dbi, null);
+        jsondb.setFetchSize(500);
+        jsondb.createTables();
+
+        dbi.useHandle(h -> {
+            h.begin();
+            PreparedBatch batch = h.prepareBatch("INSERT into jsondb (path, value, kind) values (:path, :value, :kind)");
+            for (int i = 0; i < CHILDREN; i++) {
+                String child = String.format(Locale.ROOT, "/big/:%08d/", i);
+                batch.add().bind("path", child + "name/").bind("value", "name-" + i).bind("kind", JsonTokenId.ID_STRING);
+                batch.add().bind("path", child + "size/").bind("value", Integer.toString(i)).bind("kind", JsonTokenId.ID_NUMBER_INT);
+                if (batch.getSize() >= 10_000) {
+                    batch.execute();
+                    h.commit();
+                    h.begin();
+                }
+            }
+            batch.execute();
+            h.commit();
+        });
+    }
+
+    @After
+    public void after() {
+        jsondb.dropTables();
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                assertThat(file.delete()).isTrue();
+            }
+        }
+        assertThat(dir.delete()).isTrue();
+    }
+
+    @Test
+    public void shouldStreamLargeSubtreeWithFlatHeap() {
+        Consumer<OutputStream> output = jsondb.getAsStreamingOutput("/big", null);
+        assertThat(output).isNotNull();
+
+        HeapSamplingOutputStream stream = new HeapSamplingOutputStream();
+        output.accept(stream);
+
+        // one object per child plus the root object
+        assertThat(stream.objects).isEqualTo(CHILDREN + 1);
+        assertThat(stream.maxUsedHeap - stream.initialUsedHeap).isLessThan(MAX_HEAP_GROWTH);
+    }
+
+    /**
+     * Counts the streamed objects and samples the heap after every few megabytes of output.
+     */
+    private static class HeapSamplingOutputStream extends OutputStream {
+        private static final long SAMPLE_EVERY = 8 * 1024 * 1024;
+
+        private final long initialUsedHeap = usedHeap();
+        private long maxUsedHeap = initialUsedHeap;
+        private long bytes;
+        private long objects;
+
+        @Override
+        public void write(int b) {
+            if (b == '{') {
+                objects++;
+            }
+            bytes++;
+            if (bytes % SAMPLE_EVERY == 0) {
+                maxUsedHeap = Math.max(maxUsedHeap, usedHeap());
+            }
+        }
+
+        private static long usedHeap() {
+            Runtime runtime = Runtime.getRuntime();
+            System.gc();
+            return runtime.totalMemory() - runtime.freeMemory();
+        }
+    }
+}
@@ -16,38 +16,67 @@
 package io.syndesis.jsondb.impl;
 
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.charset.StandardCharsets;
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import com.fasterxml.jackson.annotation.JsonInclude;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
 
+import io.syndesis.core.EventBus;
 import io.syndesis.jsondb.GetOptions;
+import io.syndesis.jsondb.JsonDB;
 import io.syndesis.jsondb.JsonDBException;
+import io.syndesis.jsondb.WriteBatch;
 
 import org.h2.jdbcx.JdbcDataSource;
 import org.junit.Before;
 import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameter;
+import org.junit.runners.Parameterized.Parameters;
 import org.skife.jdbi.v2.DBI;
+import org.skife.jdbi.v2.Handle;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.entry;
 import static org.assertj.core.api.Assertions.fail;
+import static org.junit.Assume.assumeTrue;
 
 /**
- * Unit Tests for the JsonDB implementation.
+ * Unit Tests for the JsonDB implementations, the tests of what only the
+ * SqlJsonDB does are skipped for the MemoryJsonDB.
  */
+@RunWith(Parameterized.class)
 public class JsonDBTest {
 
-    private SqlJsonDB jsondb;
+    @Parameter(0)
+    public String engine;
+
+    private DBI dbi;
+    private JsonDB jsondb;
     private ObjectMapper mapper = new ObjectMapper()
         .setSerializationInclusion(JsonInclude.Include.NON_ABSENT);
 
@@ -57,14 +86,36 @@ public class JsonDBTest {
     public void before() {
         JdbcDataSource ds = new JdbcDataSource();
         ds.setURL("jdbc:h2:mem:test;DB_CLOSE_DELAY=-1;MODE=PostgreSQL");
-        DBI dbi = new DBI(ds);
-        this.jsondb = new SqlJsonDB(dbi, null);
+        this.dbi = new DBI(ds);
+        SqlJsonDB sql = new SqlJsonDB(dbi, null);
 
         try {
-            this.jsondb.dropTables();
+            sql.dropTables();
         } catch (Exception e) {
         }
-        this.jsondb.createTables();
+        sql.createTables();
+        this.jsondb = newJsonDB(null);
+    }
+
+    @Parameters(name = "{0}")
+    public static Collection<String> engines() {
+        return Arrays.asList("SqlJsonDB", "MemoryJsonDB");
+    }
+
+    private JsonDB newJsonDB(EventBus bus) {
+        if ("MemoryJsonDB".equals(engine)) {
+            return new MemoryJsonDB(bus);
+        }
+        return new SqlJsonDB(dbi, bus);
+    }
+
+    private void assumeSqlJsonDB() {
+        assumeTrue(jsondb instanceof SqlJsonDB);
+    }
+
+    private SqlJsonDB sqlJsonDB() {
+        assumeSqlJsonDB();
+        return (SqlJsonDB) jsondb;
     }
 
     @Test
@@ -124,6 +175,37 @@ public class JsonDBTest {
 
     }
 
+    @Test
+    public void testSetOnlyWritesChangedRecords() throws IOException {
+        SqlJsonDB sql = sqlJsonDB();
+        sql.set("/test", mapper.writeValueAsString(map(
+            "name", "Hiram Chirino",
+            "props", map(
+                "city", "Tampa",
+                "state", "FL"
+            )
+        )));
+
+        WriteStatistics stats = sql.getWriteStatistics();
+        stats.reset();
+
+        sql.set("/test", mapper.writeValueAsString(map(
+            "name", "Hiram Chirino",
+            "age", 40,
+            "props", map(
+                "city", "Miami"
+            )
+        )));
+
+        assertThat(sql.getAsString("/test")).isEqualTo("{\"age\":40,\"name\":\"Hiram Chirino\",\"props\":{\"city\":\"Miami\"}}");
+        assertThat(stats.getRecordsWritten()).isEqualTo(3);
+        assertThat(stats.getRowsUnchanged()).isEqualTo(1);
+        assertThat(stats.getRowsInserted()).isEqualTo(1);
+        assertThat(stats.getRowsUpdated()).isEqualTo(1);
+        assertThat(stats.getRowsDeleted()).isEqualTo(1);
+        assertThat(stats.getWriteAmplification()).isEqualTo(1.0);
+    }
+
     @Test
     public void testGetMissingKey() throws IOException {
 
@@ -152,6 +234,127 @@ public class JsonDBTest {
         assertThat(json).isEqualTo("{\"name\":\"Hiram Chirino\",\"props\":true}");
     }
 
+    @Test
+    public void testGetShallowChildren() throws IOException {
+
+        jsondb.set("/", mapper.writeValueAsString(map(
+            "a", map("x", 1, "y", map("z", 2)),
+            "b", "leaf",
+            "c", new Object[]{1, 2, 3},
+            "d", map("x", map("y", map("z", 3)))
+        )));
+
+        assertThat(jsondb.getAsString("/", new GetOptions().shallow(true)))
+            .isEqualTo("{\"b\":\"leaf\",\"a\":true,\"c\":true,\"d\":true}");
+        assertThat(jsondb.getAsString("/a", new GetOptions().shallow(true)))
+            .isEqualTo("{\"x\":1,\"y\":true}");
+        assertThat(jsondb.getAsString("/b", new GetOptions().shallow(true)))
+            .isEqualTo("\"leaf\"");
+        assertThat(jsondb.getAsString("/", new GetOptions().shallow(true).orderByKey(true).startAt("b").limitToFirst(2)))
+            .isEqualTo("{\"b\":\"leaf\",\"c\":true}");
+        assertThat(jsondb.getAsString("/", new GetOptions().shallow(true).orderByKey(true).limitToLast(1)))
+            .isEqualTo("{\"d\":true}");
+        assertThat(jsondb.getAsString("/missing", new GetOptions().shallow(true))).isNull();
+    }
+
+    @Test
+    public void testGetOrderByKey() throws IOException {
+        for (String key : Arrays.asList("a", "b", "c", "d", "e")) {
+            jsondb.set("/items/" + key, mapper.writeValueAsString(map(
+                "name", key.toUpperCase(Locale.US)
+            )));
+        }
+
+        assertThat(jsondb.getAsString("/items", new GetOptions().orderByKey(true).limitToFirst(2)))
+            .isEqualTo("{\"a\":{\"name\":\"A\"},\"b\":{\"name\":\"B\"}}");
+        assertThat(jsondb.getAsString("/items", new GetOptions().orderByKey(true).limitToLast(2)))
+            .isEqualTo("{\"d\":{\"name\":\"D\"},\"e\":{\"name\":\"E\"}}");
+        assertThat(jsondb.getAsString("/items", new GetOptions().orderByKey(true).startAt("b").endAt("c")))
+            .isEqualTo("{\"b\":{\"name\":\"B\"},\"c\":{\"name\":\"C\"}}");
+        assertThat(jsondb.getAsString("/items", new GetOptions().orderByKey(true).startAt("c").limitToFirst(1)))
+            .isEqualTo("{\"c\":{\"name\":\"C\"}}");
+        assertThat(jsondb.getAsString("/items", new GetOptions().orderByKey(true).endAt("c").limitToLast(1)))
+            .isEqualTo("{\"c\":{\"name\":\"C\"}}");
+        assertThat(jsondb.getAsString("/items", new GetOptions().orderByKey(true).startAt("x")))
+            .isEqualTo("{}");
+        assertThat(jsondb.getAsString("/missing", new GetOptions().orderByKey(true).startAt("x")))
+            .isNull();
+    }
+
+    @Test
+    public void testGetOrderByKeyWithPrefixedKeys() {
+        // the paths of a-b and a-c sort before the path of a, their keys after it.
+        jsondb.set("/prefixed", "{\"a\": 1, \"a-b\": 2, \"a-c\": 3, \"b\": 4}");
+
+        assertThat(jsondb.getAsString("/prefixed", new GetOptions().orderByKey(true).endAt("a")))
+            .isEqualTo("{\"a\":1}");
+        assertThat(jsondb.getAsString("/prefixed", new GetOptions().orderByKey(true).startAt("a-b")))
+            .isEqualTo("{\"a-b\":2,\"a-c\":3,\"b\":4}");
+        assertThat(jsondb.getAsString("/prefixed", new GetOptions().orderByKey(true).limitToFirst(2)))
+            .isEqualTo("{\"a-b\":2,\"a\":1}");
+        assertThat(jsondb.getAsString("/prefixed", new GetOptions().orderByKey(true).limitToLast(3)))
+            .isEqualTo("{\"a-b\":2,\"a-c\":3,\"b\":4}");
+        assertThat(jsondb.getAsString("/prefixed", new GetOptions().orderByKey(true).endAt("a-c").limitToLast(1).shallow(true)))
+            .isEqualTo("{\"a-c\":3}");
+    }
+
+    @Test
+    public void testGetOrderByChild() throws IOException {
+        jsondb.set("/dinosaurs", mapper.writeValueAsString(map(
+            "bruhathkayosaurus", map("height", 25, "length", 44),
+            "lambeosaurus", map("height", 2.1, "length", 12.5),
+            "linhenykus", map("height", 0.6, "length", 1),
+            "pterodactyl", map("height", 0.6, "length", 0.2),
+            "stegosaurus", map("height", 4, "length", 9),
+            "unknown", map("length", 1)
+        )));
+
+        assertThat(jsondb.getAsString("/dinosaurs", new GetOptions().orderByChild("height").limitToLast(2).shallow(true)))
+            .isEqualTo("{\"bruhathkayosaurus\":true,\"stegosaurus\":true}");
+        assertThat(jsondb.getAsString("/dinosaurs", new GetOptions().orderByChild("height").limitToFirst(2).shallow(true)))
+            .isEqualTo("{\"linhenykus\":true,\"pterodactyl\":true}");
+        assertThat(jsondb.getAsString("/dinosaurs", new GetOptions().orderByChild("height").startAt(3)))
+            .isEqualTo("{\"bruhathkayosaurus\":{\"height\":25,\"length\":44},\"stegosaurus\":{\"height\":4,\"length\":9}}");
+        assertThat(jsondb.getAsString("/dinosaurs", new GetOptions().orderByChild("length").startAt(1).endAt(9).shallow(true)))
+            .isEqualTo("{\"linhenykus\":true,\"stegosaurus\":true,\"unknown\":true}");
+        // the last ones are selected first.
+        assertThat(jsondb.getAsString("/dinosaurs", new GetOptions().orderByChild("height").limitToLast(3).limitToFirst(1).shallow(true)))
+            .isEqualTo("{\"lambeosaurus\":true}");
+    }
+
+    @Test
+    public void testGetOrderByChildIsCapped() throws IOException {
+        Map<String, Object> children = new LinkedHashMap<>();
+        for (int i = 0; i <= ChildWindowQuery.MAX_ORDERED_CHILDREN; i++) {
+            children.put("c" + i, map("i", i));
+        }
+        jsondb.set("/many", mapper.writeValueAsString(children));
+
+        try {
+            jsondb.getAsString("/many", new GetOptions().orderByChild("i").limitToFirst(1));
+            fail("Expected JsonDBException");
+        } catch (JsonDBException e) {
+            assertThat(e.getMessage()).contains("order them by key");
+        }
+        assertThat(jsondb.getAsString("/many", new GetOptions().orderByKey(true).limitToFirst(1)))
+            .isEqualTo("{\"c0\":{\"i\":0}}");
+    }
+
+    @Test
+    public void testGetOrderByLargeValue() {
+        SqlJsonDB sql = sqlJsonDB();
+        sql.setLargeValueThreshold(10);
+        sql.set("/connectors/:a", "{\"spec\": \"a long specification\"}");
+        sql.set("/connectors/:b", "{\"spec\": \"b long specification\"}");
+        sql.set("/connectors/:c", "{\"spec\": \"c\"}");
+
+        // ordered by the values, not by their hashes.
+        assertThat(sql.getAsString("/connectors", new GetOptions().orderByChild("spec").limitToFirst(1).shallow(true)))
+            .isEqualTo("{\":a\":true}");
+        assertThat(sql.getAsString("/connectors", new GetOptions().orderByChild("spec").startAt("b").endAt("b long specification")))
+            .isEqualTo("{\":b\":{\"spec\":\"b long specification\"}}");
+    }
+
     @Test
     public void testGetCallback() throws IOException {
 
@@ -354,6 +557,623 @@ public class JsonDBTest {
         assertThat(jsondb.fetchIdsByPropertyValue("/pair", "key", "nope")).isEmpty();
     }
 
+    @Test
+    public void shouldFetchIdsByIndexedPropertyValue() {
+        SqlJsonDB sql = sqlJsonDB();
+        SqlJsonDB indexed = new SqlJsonDB(dbi, null, Arrays.asList(Index.of("/pair", "key"), Index.of("/pair", "nested/key")));
+
+        indexed.set("/pair/:id1", "{\"key\": \"value\", \"nested\": {\"key\": \"value\"}}");
+        indexed.set("/pair/:id2", "{\"key\": \"other\"}");
+        indexed.set("/other/:id3", "{\"key\": \"value\"}");
+
+        assertThat(indexed.fetchIdsByPropertyValue("/pair", "key", "value")).containsOnly("/pair/:id1");
+        assertThat(indexed.fetchIdsByPropertyValue("/pair", "key", "other")).containsOnly("/pair/:id2");
+        assertThat(indexed.fetchIdsByPropertyValue("/pair", "nested/key", "value")).containsOnly("/pair/:id1");
+
+        // The index follows updates..
+        indexed.update("/pair/:id2", "{\"key\": \"value\"}");
+        assertThat(indexed.fetchIdsByPropertyValue("/pair", "key", "value")).containsOnly("/pair/:id1", "/pair/:id2");
+        assertThat(indexed.fetchIdsByPropertyValue("/pair", "key", "other")).isEmpty();
+
+        // and deletes.
+        indexed.delete("/pair/:id1");
+        assertThat(indexed.fetchIdsByPropertyValue("/pair", "key", "value")).containsOnly("/pair/:id2");
+        assertThat(indexed.fetchIdsByPropertyValue("/pair", "nested/key", "value")).isEmpty();
+
+        // Writes done without the index are picked up on rebuild.
+        sql.set("/pair/:id4", "{\"key\": \"value\"}");
+        assertThat(indexed.fetchIdsByPropertyValue("/pair", "key", "value")).containsOnly("/pair/:id2");
+        indexed.rebuildIndexes();
+        assertThat(indexed.fetchIdsByPropertyValue("/pair", "key", "value")).containsOnly("/pair/:id2", "/pair/:id4");
+    }
+
+    @Test
+    public void testDocumentCollections() {
+        assumeSqlJsonDB();
+        SqlJsonDB documents = new SqlJsonDB(dbi, null, Collections.emptyList(), Arrays.asList("/pair", "/dinosaurs"));
+
+        JdbcDataSource ds = new JdbcDataSource();
+        ds.setURL("jdbc:h2:mem:rows;DB_CLOSE_DELAY=-1;MODE=PostgreSQL");
+        SqlJsonDB rows = new SqlJsonDB(new DBI(ds), null);
+        try {
+            rows.dropTables();
+        } catch (Exception e) {
+        }
+        rows.createTables();
+
+        MemoryJsonDBTest.write(documents);
+        MemoryJsonDBTest.write(rows);
+        assertThat(MemoryJsonDBTest.read(documents)).isEqualTo(MemoryJsonDBTest.read(rows));
+
+        // every entity is a single row.
+        List<String> paths = dbi.withHandle(h -> h.createQuery("SELECT path from jsondb_document order by path").mapTo(String.class).list());
+        assertThat(paths).containsExactly("/dinosaurs/lambeosaurus/", "/dinosaurs/linhenykus/", "/dinosaurs/stegosaurus/", "/dinosaurs/trex/", "/dinosaurs/unknown/", "/pair/:b/", "/pair/:c/");
+        paths = dbi.withHandle(h -> h.createQuery("SELECT path from jsondb where path >= '/pair/' and path < '/pair0'").mapTo(String.class).list());
+        assertThat(paths).isEmpty();
+
+        documents.set("/pair/:b/more/1", "false");
+        assertThat(documents.getAsString("/pair/:b/more")).isEqualTo("[true,false]");
+        assertThat(documents.delete("/pair/:b/more")).isTrue();
+        assertThat(documents.getAsString("/pair/:b")).isEqualTo("{\"key\":\"b2\"}");
+        assertThat(documents.getVersion("/pair/:b")).isEqualTo(4);
+    }
+
+    @Test
+    public void shouldFetchIdsFromDocuments() {
+        assumeSqlJsonDB();
+        SqlJsonDB indexed = new SqlJsonDB(dbi, null, Collections.singletonList(Index.of("/pair", "key")), Collections.singletonList("/pair"));
+
+        indexed.set("/pair/:id1", "{\"key\": \"value\", \"nested\": {\"key\": \"value\"}}");
+        indexed.set("/pair/:id2", "{\"key\": \"other\"}");
+
+        assertThat(indexed.fetchIdsByPropertyValue("/pair", "key", "value")).containsOnly("/pair/:id1");
+        assertThat(indexed.fetchIdsByPropertyValue("/pair", "nested/key", "value")).containsOnly("/pair/:id1");
+
+        indexed.update("/pair/:id2", "{\"key\": \"value\"}");
+        indexed.set("/pair/:id1/key", "\"other\"");
+        assertThat(indexed.fetchIdsByPropertyValue("/pair", "key", "value")).containsOnly("/pair/:id2");
+        assertThat(indexed.fetchIdsByPropertyValue("/pair", "key", "other")).containsOnly("/pair/:id1");
+
+        indexed.delete("/pair");
+        assertThat(indexed.fetchIdsByPropertyValue("/pair", "key", "value")).isEmpty();
+        assertThat(indexed.fetchIdsByPropertyValue("/pair", "nested/key", "value")).isEmpty();
+    }
+
+    @Test
+    public void testUpsertsWithoutOnConflict() {
+        assumeSqlJsonDB();
+        Upserts upserts = new Upserts(false);
+        String insert = "INSERT INTO jsondb_blob (hash, refs, value) VALUES (:hash, 1, :value)";
+        String update = "UPDATE jsondb_blob SET refs = refs + 1 WHERE hash = :hash";
+        Map<String, Object> params = new HashMap<>();
+        params.put("hash", "h1");
+        params.put("value", new byte[] {1});
+        try (Handle h = dbi.open()) {
+            h.begin();
+            assertThat(upserts.insertIfAbsent(h, insert, "hash", params)).isTrue();
+            // the duplicate key is rolled back to a savepoint, the transaction goes on.
+            assertThat(upserts.insertIfAbsent(h, insert, "hash", params)).isFalse();
+            assertThat(upserts.upsert(h, insert, "hash", "refs = jsondb_blob.refs + 1", update, params)).isTrue();
+            params.put("hash", "h2");
+            assertThat(upserts.upsert(h, insert, "hash", "refs = jsondb_blob.refs + 1", update, params)).isTrue();
+            h.commit();
+
+            assertThat(h.createQuery("SELECT refs FROM jsondb_blob ORDER BY hash").mapTo(Integer.class).list()).containsExactly(2, 1);
+        }
+    }
+
+    @Test
+    public void testLargeValues() {
+        SqlJsonDB sql = sqlJsonDB();
+        sql.setLargeValueThreshold(10);
+        String spec = "\"a specification that is stored once\"";
+
+        sql.set("/connectors/:a", "{\"name\": \"a\", \"spec\": " + spec + "}");
+        sql.set("/connectors/:b", "{\"name\": \"b\", \"spec\": " + spec + "}");
+        assertThat(sql.getAsString("/connectors/:a/spec")).isEqualTo(spec);
+        assertThat(sql.getAsString("/connectors/:b")).isEqualTo("{\"name\":\"b\",\"spec\":" + spec + "}");
+        assertThat(sql.fetchIdsByPropertyValue("/connectors", "spec", "a specification that is stored once")).containsOnly("/connectors/:a", "/connectors/:b");
+        assertThat(blobs()).containsExactly(2);
+
+        // setting the same value again doesn't change the row
+        long updated = sql.getWriteStatistics().getRowsUpdated();
+        sql.set("/connectors/:a/spec", spec);
+        assertThat(sql.getWriteStatistics().getRowsUpdated()).isEqualTo(updated);
+        assertThat(blobs()).containsExactly(2);
+
+        sql.set("/connectors/:a/spec", "\"another long specification\"");
+        assertThat(blobs()).containsOnly(1, 1);
+        assertThat(sql.getAsString("/connectors/:a/spec")).isEqualTo("\"another long specification\"");
+
+        // shallow reads don't load the values of the deeper records
+        dbi.useHandle(h -> h.update("UPDATE jsondb_blob SET value = NULL"));
+        assertThat(sql.getAsString("/connectors", new GetOptions().shallow(true))).isEqualTo("{\":a\":true,\":b\":true}");
+
+        sql.delete("/connectors/:a");
+        assertThat(blobs()).containsExactly(1);
+        sql.set("/connectors/:b", "\"short\"");
+        assertThat(blobs()).isEmpty();
+    }
+
+    private List<Integer> blobs() {
+        return dbi.withHandle(h -> h.createQuery("SELECT refs from jsondb_blob").mapTo(Integer.class).list());
+    }
+
+    @Test
+    public void testSnapshots() {
+        assumeSqlJsonDB();
+        SqlJsonDB db = new SqlJsonDB(dbi, null, Collections.singletonList(Index.of("/pair", "key")), Collections.singletonList("/pair"));
+        db.setLargeValueThreshold(10);
+        db.set("/connectors/:a", "{\"name\": \"a\", \"spec\": \"a long\\ttab\\nline \\\\ specification\"}");
+        db.set("/pair/:1", "{\"key\": \"one\"}");
+        db.set("/list", "[1, 2.5, true, null, \"\"]");
+        db.set("/reservations/:r", "{\"user\": \"r\"}", Duration.ofHours(1));
+        String all = db.getAsString("/");
+
+        ByteArrayOutputStream snapshot = new ByteArrayOutputStream();
+        long exported = db.exportSnapshot(snapshot);
+
+        db.set("/", "{\"other\": true}");
+        List<Long> committed = new ArrayList<>();
+        assertThat(db.importSnapshot(new ByteArrayInputStream(snapshot.toByteArray()), 0, committed::add)).isEqualTo(exported);
+        assertThat(committed).isNotEmpty().endsWith(exported);
+        assertThat(db.getAsString("/")).isEqualTo(all);
+        assertThat(db.fetchIdsByPropertyValue("/pair", "key", "one")).containsOnly("/pair/:1");
+
+        // restarting an import after its last commit has nothing left to do.
+        assertThat(db.importSnapshot(new ByteArrayInputStream(snapshot.toByteArray()), exported, committed::add)).isZero();
+        assertThat(db.getAsString("/")).isEqualTo(all);
+    }
+
+    @Test
+    public void testSnapshotLines() {
+        assumeSqlJsonDB();
+        assertThat(Snapshots.fromLine("/a/\tb\\\\\\n\t\\\\N\t\\N")).containsExactly("/a/", "b\\\n", "\\N", null);
+    }
+
+    @Test
+    public void testPartitions() {
+        SqlJsonDB sql = sqlJsonDB();
+        Partitions partitions = new Partitions(Arrays.asList("/integrations", "connectors/"));
+        assertThat(partitions.createTable("jsondb", "path VARCHAR, value VARCHAR")).containsExactly(
+            "CREATE TABLE jsondb (path VARCHAR, value VARCHAR, PRIMARY KEY (path)) PARTITION BY RANGE (path)",
+            "CREATE TABLE jsondb_p_integrations PARTITION OF jsondb FOR VALUES FROM ('/integrations/') TO ('/integrations0')",
+            "CREATE TABLE jsondb_p_connectors PARTITION OF jsondb FOR VALUES FROM ('/connectors/') TO ('/connectors0')",
+            "CREATE TABLE jsondb_p_default PARTITION OF jsondb DEFAULT");
+
+        for (String collection : Arrays.asList("/", "/integrations/:id", "/default")) {
+            try {
+                new Partitions(Collections.singletonList(collection));
+                fail("Expected IllegalArgumentException");
+            } catch (IllegalArgumentException expected) {
+                // expected
+            }
+        }
+
+        // only PostgreSQL partitions the tables
+        sql.dropTables();
+        sql.setPartitionedCollections(Collections.singletonList("/integrations"));
+        sql.createTables();
+        sql.set("/integrations/:a", "{\"name\": \"a\"}");
+        assertThat(sql.getAsString("/")).isEqualTo("{\"integrations\":{\":a\":{\"name\":\"a\"}}}");
+    }
+
+    @Test
+    public void testExpiry() {
+        SqlJsonDB sql = sqlJsonDB();
+        // written while there are no expiries.
+        sql.set("/reservations/:e", "{\"user\": \"e\"}");
+        sql.set("/reservations/:a", "{\"user\": \"a\"}", Duration.ZERO);
+        sql.set("/reservations/:b", "{\"user\": \"b\"}", Duration.ZERO);
+        sql.set("/reservations/:c", "{\"user\": \"c\"}", Duration.ZERO);
+        sql.set("/reservations/:d", "{\"user\": \"d\"}", Duration.ofHours(1));
+        // writing the path again without a time to live cancels the expiry.
+        sql.set("/reservations/:e", "{\"user\": \"e\"}", Duration.ZERO);
+        sql.set("/reservations/:e", "{\"user\": \"e\"}");
+
+        // every sweep deletes at most 2 batches of 1 path.
+        ExpirySweeper sweeper = new ExpirySweeper(sql, 1000, 1, 2);
+        assertThat(sweeper.sweep()).isEqualTo(2);
+        assertThat(sql.exists("/reservations/:c")).isTrue();
+        assertThat(sweeper.sweep()).isEqualTo(1);
+        assertThat(sweeper.sweep()).isEqualTo(0);
+        assertThat(sweeper.getRowsRemoved()).isEqualTo(3);
+        assertThat(sql.getAsString("/reservations")).isEqualTo("{\":d\":{\"user\":\"d\"},\":e\":{\"user\":\"e\"}}");
+    }
+
+    @Test
+    public void testGroupCommitStopCompletesEveryWrite() throws Exception {
+        assumeSqlJsonDB();
+        for (int round = 0; round < 20; round++) {
+            GroupCommitter committer = new GroupCommitter(group -> new boolean[group.size()], writes -> false, 1, 10);
+            ExecutorService executor = Executors.newFixedThreadPool(4);
+            try {
+                List<Future<CompletableFuture<Boolean>>> submits = new ArrayList<>();
+                for (int i = 0; i < 100; i++) {
+                    submits.add(executor.submit(() -> committer.submit(null)));
+                }
+                committer.stop();
+                // queued before the stop, or failed by it, but never left pending.
+                for (Future<CompletableFuture<Boolean>> submit : submits) {
+                    CompletableFuture<Boolean> result = submit.get(10, TimeUnit.SECONDS);
+                    try {
+                        result.get(10, TimeUnit.SECONDS);
+                    } catch (ExecutionException e) {
+                        assertThat(e.getCause()).isInstanceOf(JsonDBException.class);
+                    }
+                }
+            } finally {
+                executor.shutdown();
+            }
+        }
+    }
+
+    @Test
+    public void testGroupCommit() throws Exception {
+        SqlJsonDB sql = sqlJsonDB();
+        sql.set("/pair/:gone", "{\"key\": \"value\"}");
+        sql.enableGroupCommit(50, 10);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<?>> writes = new ArrayList<>();
+            for (int i = 0; i < 20; i++) {
+                String id = ":" + i;
+                writes.add(executor.submit(() -> sql.set("/pair/" + id, "{\"key\": \"" + id + "\"}")));
+            }
+            // overlaps the writes of the same group.
+            writes.add(executor.submit(() -> sql.update("/pair/:0", "{\"more\": true}")));
+            Future<Boolean> delete = executor.submit(() -> sql.delete("/pair/:gone"));
+            Future<Boolean> missing = executor.submit(() -> sql.delete("/pair/:missing"));
+            // only fails its own write.
+            Future<?> invalid = executor.submit(() -> sql.set("/pair/:bad", "{\"[\": \"value\"}"));
+
+            for (Future<?> write : writes) {
+                write.get(10, TimeUnit.SECONDS);
+            }
+            assertThat(delete.get(10, TimeUnit.SECONDS)).isTrue();
+            assertThat(missing.get(10, TimeUnit.SECONDS)).isFalse();
+            try {
+                invalid.get(10, TimeUnit.SECONDS);
+                fail("Expected JsonDBException");
+            } catch (ExecutionException e) {
+                assertThat(e.getCause()).isInstanceOf(JsonDBException.class);
+            }
+        } finally {
+            executor.shutdown();
+            sql.disableGroupCommit();
+        }
+
+        for (int i = 1; i < 20; i++) {
+            assertThat(sql.getAsString("/pair/:" + i + "/key")).isEqualTo("\":" + i + "\"");
+        }
+        assertThat(sql.exists("/pair/:0/key")).isTrue();
+        assertThat(sql.exists("/pair/:gone")).isFalse();
+        assertThat(sql.exists("/pair/:bad")).isFalse();
+    }
+
+    @Test
+    public void testReadReplica() {
+        assumeSqlJsonDB();
+        JdbcDataSource primary = new JdbcDataSource();
+        primary.setURL("jdbc:h2:mem:test;DB_CLOSE_DELAY=-1;MODE=PostgreSQL");
+        // nothing gets replicated, so the reads tell which database they went to.
+        JdbcDataSource replica = new JdbcDataSource();
+        replica.setURL("jdbc:h2:mem:replica;DB_CLOSE_DELAY=-1;MODE=PostgreSQL");
+        SqlJsonDB replicaDB = new SqlJsonDB(new DBI(replica), null, Collections.singletonList(Index.of("/pair", "key")));
+        try {
+            replicaDB.dropTables();
+        } catch (Exception e) {
+        }
+        replicaDB.createTables();
+        replicaDB.set("/pair/:id", "{\"key\": \"replica\"}");
+
+        ReadReplicaDBI routing = new ReadReplicaDBI(primary, Collections.singletonList(replica), 60_000);
+        SqlJsonDB db = new SqlJsonDB(routing, null, Collections.singletonList(Index.of("/pair", "key")));
+        assertThat(routing.isSticky()).isFalse();
+
+        // a versioned GET reads the version and then the entity, both from the replica.
+        assertThat(db.getVersion("/pair/:id")).isEqualTo(1);
+        assertThat(routing.isSticky()).isFalse();
+        assertThat(db.getAsString("/pair/:id/key")).isEqualTo("\"replica\"");
+        assertThat(db.exists("/pair/:id")).isTrue();
+        assertThat(db.fetchIdsByPropertyValue("/pair", "key", "replica")).containsExactly("/pair/:id");
+
+        // reads the writes of the thread from the primary.
+        db.set("/pair/:other", "{\"key\": \"primary\"}");
+        assertThat(db.getAsString("/pair/:other/key")).isEqualTo("\"primary\"");
+        assertThat(db.exists("/pair/:id")).isFalse();
+        assertThat(db.fetchIdsByPropertyValue("/pair", "key", "primary")).containsExactly("/pair/:other");
+
+        routing.endRequest();
+        assertThat(db.exists("/pair/:other")).isFalse();
+    }
+
+    @Test
+    public void testGetAsByteArrays() {
+        jsondb.set("/pair/:a", "{\"key\": \"a\"}");
+        jsondb.set("/pair/:b", "{\"key\": \"b\"}");
+        jsondb.set("/pair/:c", "{\"key\": \"c\"}");
+
+        List<byte[]> json = jsondb.getAsByteArrays(Arrays.asList("/pair/:c", "/pair/:missing", "/pair/:a", "/pair/:c"));
+        assertThat(json).hasSize(4);
+        assertThat(new String(json.get(0), StandardCharsets.UTF_8)).isEqualTo("{\"key\":\"c\"}");
+        assertThat(json.get(1)).isNull();
+        assertThat(new String(json.get(2), StandardCharsets.UTF_8)).isEqualTo("{\"key\":\"a\"}");
+        assertThat(new String(json.get(3), StandardCharsets.UTF_8)).isEqualTo("{\"key\":\"c\"}");
+
+        // overlapping paths are read one at a time.
+        json = jsondb.getAsByteArrays(Arrays.asList("/pair/:a/key", "/pair/:a"));
+        assertThat(new String(json.get(0), StandardCharsets.UTF_8)).isEqualTo("\"a\"");
+        assertThat(new String(json.get(1), StandardCharsets.UTF_8)).isEqualTo("{\"key\":\"a\"}");
+    }
+
+    @Test
+    public void testConditionalWrites() {
+        assertThat(jsondb.replaceIfExists("/pair/:id", "{\"key\": \"value\"}")).isFalse();
+        assertThat(jsondb.exists("/pair/:id")).isFalse();
+
+        assertThat(jsondb.createIfAbsent("/pair/:id", "{\"key\": \"value\"}")).isTrue();
+        assertThat(jsondb.createIfAbsent("/pair/:id", "{\"key\": \"other\"}")).isFalse();
+        assertThat(jsondb.getAsString("/pair/:id")).isEqualTo("{\"key\":\"value\"}");
+
+        assertThat(jsondb.replaceIfExists("/pair/:id", "{\"key\": \"other\"}")).isTrue();
+        assertThat(jsondb.getAsString("/pair/:id")).isEqualTo("{\"key\":\"other\"}");
+    }
+
+    @Test
+    public void testConcurrentCreateIfAbsent() throws Exception {
+        int writers = 8;
+        CountDownLatch start = new CountDownLatch(1);
+        AtomicInteger created = new AtomicInteger();
+        AtomicInteger winner = new AtomicInteger(-1);
+        ExecutorService executor = Executors.newFixedThreadPool(writers);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int i = 0; i < writers; i++) {
+                int writer = i;
+                futures.add(executor.submit(() -> {
+                    start.await();
+                    // a writer gives up once the entity exists, never with an error.
+                    while (!jsondb.exists("/pair/:id")) {
+                        if (jsondb.createIfAbsent("/pair/:id", "{\"writer\": " + writer + "}")) {
+                            created.incrementAndGet();
+                            winner.set(writer);
+                        }
+                    }
+                    return null;
+                }));
+            }
+            start.countDown();
+            for (Future<?> future : futures) {
+                future.get(30, TimeUnit.SECONDS);
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        assertThat(created.get()).isEqualTo(1);
+        assertThat(jsondb.getAsString("/pair/:id")).isEqualTo("{\"writer\":" + winner.get() + "}");
+        // the writers that found the entity rolled their version increment back.
+        assertThat(jsondb.getVersion("/pair/:id")).isEqualTo(1);
+    }
+
+    @Test
+    public void testVersions() {
+        assertThat(jsondb.getVersion("/pair/:id")).isEqualTo(0);
+        assertThat(jsondb.compareAndSet("/pair/:id", 1, "{\"key\": \"value\"}")).isFalse();
+        assertThat(jsondb.compareAndSet("/pair/:id", 0, "{\"key\": \"value\"}")).isTrue();
+        assertThat(jsondb.getVersion("/pair/:id")).isEqualTo(1);
+        assertThat(jsondb.getVersion("/pair/:id/key")).isEqualTo(1);
+
+        // a stale version is rejected
+        assertThat(jsondb.compareAndSet("/pair/:id", 0, "{\"key\": \"other\"}")).isFalse();
+        assertThat(jsondb.compareAndSet("/pair/:id", 1, "{\"key\": \"other\"}")).isTrue();
+        assertThat(jsondb.getAsString("/pair/:id")).isEqualTo("{\"key\":\"other\"}");
+        assertThat(jsondb.getVersion("/pair/:id")).isEqualTo(2);
+
+        // every kind of write increments the version of the entity
+        jsondb.update("/pair/:id", "{\"more\": true}");
+        assertThat(jsondb.getVersion("/pair/:id")).isEqualTo(3);
+        jsondb.set("/pair/:id/key", "\"again\"");
+        assertThat(jsondb.getVersion("/pair/:id")).isEqualTo(4);
+
+        // even the ones done on the whole collection, but only for the modified entities.
+        jsondb.set("/pair", "{\":id\": {\"key\": \"again\", \"more\": true}, \":id2\": {\"key\": \"value\"}}");
+        assertThat(jsondb.getVersion("/pair/:id")).isEqualTo(4);
+        assertThat(jsondb.getVersion("/pair/:id2")).isEqualTo(1);
+        assertThat(jsondb.getVersion("/pair")).isEqualTo(5);
+
+        // deleting an entity drops its version, the collection's keeps increasing
+        // and the entity created again starts above its previous versions.
+        assertThat(jsondb.delete("/pair/:id")).isTrue();
+        assertThat(jsondb.getVersion("/pair/:id")).isEqualTo(0);
+        assertThat(jsondb.getVersion("/pair")).isEqualTo(6);
+        assertThat(jsondb.getVersions("/pair")).containsOnly(entry("/pair/:id2", 1L));
+        assertThat(jsondb.createIfAbsent("/pair/:id", "{\"key\": \"value\"}")).isTrue();
+        assertThat(jsondb.getVersion("/pair/:id")).isEqualTo(6);
+
+        // deleting a missing path writes no version.
+        assertThat(jsondb.delete("/pair/:missing")).isFalse();
+        assertThat(jsondb.delete("/pair/:id2/missing")).isFalse();
+        assertThat(jsondb.getVersion("/pair/:missing")).isEqualTo(0);
+        assertThat(jsondb.getVersion("/pair/:id2")).isEqualTo(1);
+
+        assertThat(jsondb.delete("/pair")).isTrue();
+        assertThat(jsondb.getVersion("/pair/:id2")).isEqualTo(2);
+        assertThat(jsondb.getVersions("/pair")).containsOnly(entry("/pair/:id", 7L), entry("/pair/:id2", 2L));
+
+        // values above the entities are versioned by their own path.
+        jsondb.set("/setting", "\"a\"");
+        assertThat(jsondb.getVersion("/setting")).isEqualTo(1);
+        jsondb.set("/setting", "\"b\"");
+        assertThat(jsondb.getVersion("/setting")).isEqualTo(2);
+    }
+
+    @Test
+    public void testPrefixQueriesDontTreatUnderscoreAsWildcard() throws IOException {
+        jsondb.set("/a_c", mapper.writeValueAsString(map("name", "underscore")));
+        jsondb.set("/abc", mapper.writeValueAsString(map("name", "letters")));
+        jsondb.set("/a_cd", mapper.writeValueAsString(map("name", "longer")));
+
+        assertThat(jsondb.getAsString("/a_c")).isEqualTo("{\"name\":\"underscore\"}");
+        assertThat(jsondb.delete("/a_c")).isTrue();
+        assertThat(jsondb.exists("/a_c")).isFalse();
+        assertThat(jsondb.getAsString("/abc")).isEqualTo("{\"name\":\"letters\"}");
+        assertThat(jsondb.getAsString("/a_cd")).isEqualTo("{\"name\":\"longer\"}");
+    }
+
+    @Test
+    public void testPrefixQueriesUsePrimaryKeyRange() {
+        assumeSqlJsonDB();
+        String plan = dbi.withHandle(h -> h.createQuery("EXPLAIN select path,value,kind from jsondb where " + PathRange.WHERE + " order by path")
+            .bind("from", "/test/")
+            .bind("to", PathRange.upperBound("/test/"))
+            .mapTo(String.class)
+            .first());
+
+        // H2 shows the index conditions in the comment naming the index, e.g. /* PUBLIC.PRIMARY_KEY_8: PATH >= ?1 AND PATH < ?2 */
+        String index = plan.substring(plan.indexOf("/*"), plan.indexOf("*/"));
+        assertThat(index).contains("PRIMARY_KEY");
+        assertThat(index.replaceAll("\\s+", " ")).contains("PATH >= ?1 AND PATH < ?2");
+        assertThat(plan).doesNotContain("tableScan");
+    }
+
+    @Test
+    public void testGetAllParentPaths() {
+        assumeSqlJsonDB();
+        assertThat(SqlJsonDB.getAllParentPaths("/a/b/c/")).containsExactly("/a/b/", "/a/");
+        assertThat(SqlJsonDB.getAllParentPaths("/a/")).isEmpty();
+    }
+
+    @Test
+    public void testWriteBatch() {
+        List<String> events = new ArrayList<>();
+        JsonDB db = newJsonDB(new RecordingEventBus(events));
+
+        db.set("/test", "{\"a\": {\"x\": 1, \"y\": 2}, \"b\": {\"x\": 1}, \"c\": \"gone\"}");
+        events.clear();
+
+        db.write(new WriteBatch()
+            .set("/test/a/x", "10")
+            .set("/test/b", "{\"z\": 3}")
+            .set("/test/d/0", "\"new\"")
+            .delete("/test/c"));
+
+        assertThat(db.getAsString("/test")).isEqualTo("{\"a\":{\"x\":10,\"y\":2},\"b\":{\"z\":3},\"d\":[\"new\"]}");
+        assertThat(events).containsExactly("jsondb-updated:/test");
+
+        // the paths of a batch can't overlap, and nothing gets written when they do.
+        try {
+            db.write(new WriteBatch()
+                .set("/test/e", "1")
+                .set("/test/a", "{}")
+                .delete("/test/a/y"));
+            fail("Expected IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+            assertThat(e.getMessage()).contains("overlaps");
+        }
+        assertThat(db.exists("/test/e")).isFalse();
+
+        // nor when one of the values is invalid.
+        try {
+            db.write(new WriteBatch()
+                .set("/test/e", "1")
+                .set("/test/f", "{"));
+            fail("Expected JsonDBException");
+        } catch (JsonDBException e) {
+            assertThat(db.exists("/test/e")).isFalse();
+        }
+    }
+
+    @Test
+    public void testUpdateBroadcastsOnce() {
+        List<String> events = new ArrayList<>();
+        JsonDB db = newJsonDB(new RecordingEventBus(events));
+
+        db.update("/test", "{\"a/x\": 1, \"b\": 2, \"c\": {\"y\": 3}}");
+        assertThat(db.getAsString("/test")).isEqualTo("{\"a\":{\"x\":1},\"b\":2,\"c\":{\"y\":3}}");
+        assertThat(events).containsExactly("jsondb-updated:/test");
+    }
+
+    @Test
+    public void testInTransaction() {
+        List<String> events = new ArrayList<>();
+        JsonDB db = newJsonDB(new RecordingEventBus(events));
+
+        String value = db.inTransaction(tx -> {
+            tx.set("/test/a", "1");
+            tx.useTransaction(nested -> nested.set("/test/b", "2"));
+            // the events are only sent on commit.
+            assertThat(events).isEmpty();
+            return tx.getAsString("/test");
+        });
+        assertThat(value).isEqualTo("{\"a\":1,\"b\":2}");
+        assertThat(events).containsExactly("jsondb-updated:/test/a", "jsondb-updated:/test/b");
+
+        // a failure in a nested call rolls back the whole transaction.
+        events.clear();
+        try {
+            db.useTransaction(tx -> {
+                tx.delete("/test/a");
+                tx.useTransaction(nested -> {
+                    nested.set("/test/c", "3");
+                    throw new IllegalStateException("failed");
+                });
+            });
+            fail("Expected IllegalStateException");
+        } catch (IllegalStateException e) {
+            assertThat(e.getMessage()).isEqualTo("failed");
+        }
+        assertThat(db.getAsString("/test")).isEqualTo("{\"a\":1,\"b\":2}");
+        assertThat(events).isEmpty();
+
+        // conditional writes that don't apply leave the rest of the transaction alone.
+        db.useTransaction(tx -> {
+            tx.set("/pair/:id/key", "\"value\"");
+            assertThat(tx.createIfAbsent("/pair/:id", "{\"key\": \"other\"}")).isFalse();
+            assertThat(tx.replaceIfExists("/pair/:id", "{\"key\": \"replaced\"}")).isTrue();
+        });
+        assertThat(db.getAsString("/pair/:id")).isEqualTo("{\"key\":\"replaced\"}");
+        assertThat(db.getVersion("/pair/:id")).isEqualTo(2);
+    }
+
+    @Test
+    public void testGetParentPath() {
+        assertThat(PathWrites.getParentPath(Arrays.asList("/a/b/c", "/a/b/d/e"))).isEqualTo("/a/b/");
+        assertThat(PathWrites.getParentPath(Arrays.asList("/a/bc", "/a/b"))).isEqualTo("/a/");
+        assertThat(PathWrites.getParentPath(Arrays.asList("a/b", "/c"))).isEqualTo("/");
+        assertThat(PathWrites.getParentPath(Collections.singletonList("/a/b"))).isEqualTo("/a/b/");
+        assertThat(PathWrites.getParentPath(Collections.emptyList())).isEqualTo("/");
+    }
+
+    private static class RecordingEventBus implements EventBus {
+        private final List<String> events;
+
+        RecordingEventBus(List<String> events) {
+            this.events = events;
+        }
+
+        @Override
+        public Subscription subscribe(String subscriberId, Subscription handler) {
+            return null;
+        }
+
+        @Override
+        public Subscription unsubscribe(String subscriberId) {
+            return null;
+        }
+
+        @Override
+        public void broadcast(String event, String data) {
+            events.add(event + ":" + data);
+        }
+
+        @Override
+        public void send(String subscriberId, String event, String data) {
+            // not used
+        }
+    }
+
     private String load(String file) throws IOException {
         try (InputStream is = getClass().getClassLoader().getResourceAsStream(file)) {
             ByteArrayOutputStream os = new ByteArrayOutputStream();
@@ -0,0 +1,185 @@
+/**
+ * Copyright (C) 2016 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.syndesis.jsondb.impl;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+import io.syndesis.jsondb.GetOptions;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Measures the throughput and, with the GC profiler, the allocation rate of
+ * the JsonDB path codec and of the read (records to JSON) and write (JSON to
+ * records) paths.  The {@code legacy*} benchmarks run the previous split and
+ * regex based codec for comparison, to compare the read and write paths run
+ * this benchmark on both revisions.
+ *
+ * Run it with the main method from the test class path, or with:
+ * {@code java -cp <test class path> org.openjdk.jmh.Main JsonRecordSupportBenchmark -prof gc}
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@SuppressWarnings("PMD")
+public class JsonRecordSupportBenchmark {
+
+    private static final Pattern INTEGER_PATTERN = Pattern.compile("^\\d+$");
+
+    private static final OutputStream NULL_OUTPUT = new OutputStream() {
+        @Override
+        public void write(int b) {
+            // discard
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            // discard
+        }
+    };
+
+    private final GetOptions options = new GetOptions();
+    private final String path = "/integrations/:-Kz8ZGyu3f5RWzy2yPfh/steps/12/configuredProperties/name";
+    private final String encodedIndex = JsonRecordSupport.toLexSortableString(1234, '[');
+    private List<JsonRecord> records;
+    private byte[] json;
+
+    @Setup
+    public void setup() throws IOException {
+        StringBuilder builder = new StringBuilder(64 * 1024).append("{\"integrations\":{");
+        for (int i = 0; i < 100; i++) {
+            if (i > 0) {
+                builder.append(',');
+            }
+            builder.append(String.format(Locale.ROOT,
+                "\":%04d\":{\"name\":\"integration %d\",\"tags\":[\"a\",\"b\"],\"steps\":[{\"id\":\"s1\",\"stepKind\":\"endpoint\"},{\"id\":\"s2\",\"stepKind\":\"log\"}]}",
+                i, i));
+        }
+        json = builder.append("}}").toString().getBytes(StandardCharsets.UTF_8);
+
+        List<JsonRecord> parsed = new ArrayList<>();
+        JsonRecordSupport.jsonStreamToRecords("/", new ByteArrayInputStream(json), parsed::add);
+        parsed.sort((a, b) -> a.getPath().compareTo(b.getPath()));
+        records = parsed;
+    }
+
+    @Benchmark
+    public String convertToDBPath() {
+        return JsonRecordSupport.convertToDBPath(path);
+    }
+
+    @Benchmark
+    public String legacyConvertToDBPath() {
+        String value = Arrays.stream(path.split("/")).filter(x -> !x.isEmpty()).map(x ->
+            INTEGER_PATTERN.matcher(x).matches() ? legacyToLexSortableString(Integer.parseInt(x), '[') : x
+        ).collect(Collectors.joining("/"));
+        return Strings.suffix(Strings.prefix(value, "/"), "/");
+    }
+
+    @Benchmark
+    public String toLexSortableString() {
+        return JsonRecordSupport.toLexSortableString(1234, '[');
+    }
+
+    @Benchmark
+    public String legacyToLexSortableString() {
+        return legacyToLexSortableString(1234, '[');
+    }
+
+    @Benchmark
+    public int fromLexSortableStringToInt() {
+        return JsonRecordSupport.fromLexSortableStringToInt(encodedIndex, '[');
+    }
+
+    @Benchmark
+    public int legacyFromLexSortableStringToInt() {
+        String remaining = encodedIndex.replaceFirst("^" + Pattern.quote(String.valueOf('[')) + "+", "");
+        int rc = 1;
+        while (!remaining.isEmpty()) {
+            String x = remaining.substring(0, rc);
+            remaining = remaining.substring(rc);
+            rc = Integer.parseInt(x);
+        }
+        return rc;
+    }
+
+    @Benchmark
+    public void readPath() throws IOException {
+        Consumer<JsonRecord> consumer = JsonRecordSupport.recordsToJsonStream("/", NULL_OUTPUT, options);
+        records.forEach(consumer);
+        consumer.accept(null);
+    }
+
+    @Benchmark
+    public void writePath(Blackhole blackhole) throws IOException {
+        JsonRecordSupport.jsonStreamToRecords("/", new ByteArrayInputStream(json), blackhole::consume);
+    }
+
+    private static String legacyToLexSortableString(int value, char marker) {
+        ArrayList<String> seqs = new ArrayList<String>();
+
+        String seq = Integer.toString(value);
+        seqs.add(seq);
+        while (seq.length() > 1) {
+            seq = Integer.toString(seq.length());
+            seqs.add(seq);
+        }
+
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < seqs.size(); i++) {
+            builder.append(marker);
+        }
+        for (int i = seqs.size() - 1; i >= 0; i--) {
+            builder.append(seqs.get(i));
+        }
+        return builder.toString();
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+            .include(JsonRecordSupportBenchmark.class.getSimpleName())
+            .addProfiler(GCProfiler.class)
+            .build()).run();
+    }
+}
@@ -46,4 +46,54 @@ public class JsonRecordSupportTest {
             assertThat(r2).isEqualTo(i);
         }
     }
+
+    @Test
+    public void testLexSortableOrder() {
+        String previous = null;
+        for (int i = 0; i < 100_000; i += 7) {
+            String r1 = JsonRecordSupport.toLexSortableString(i, '[');
+            if (previous != null) {
+                assertThat(r1.compareTo(previous)).isPositive();
+            }
+            assertThat(JsonRecordSupport.fromLexSortableStringToInt(r1, '[')).isEqualTo(i);
+            previous = r1;
+        }
+        assertThat(JsonRecordSupport.toLexSortableString(Integer.MAX_VALUE, '[')).isEqualTo("[[[2102147483647");
+    }
+
+    @Test
+    public void testFromLexSortableStringInRange() {
+        String path = "/list/[[212/name/";
+        assertThat(JsonRecordSupport.fromLexSortableStringToInt(path, 6, 11, '[')).isEqualTo(12);
+    }
+
+    @Test
+    public void testConvertToDBPath() {
+        assertThat(JsonRecordSupport.convertToDBPath("")).isEqualTo("/");
+        assertThat(JsonRecordSupport.convertToDBPath("/")).isEqualTo("/");
+        assertThat(JsonRecordSupport.convertToDBPath("a")).isEqualTo("/a/");
+        assertThat(JsonRecordSupport.convertToDBPath("//a//b/")).isEqualTo("/a/b/");
+        assertThat(JsonRecordSupport.convertToDBPath("/list/12/name")).isEqualTo("/list/[[212/name/");
+        assertThat(JsonRecordSupport.convertToDBPath("/list/1a")).isEqualTo("/list/1a/");
+    }
+
+    @Test
+    public void testConvertFromDBPath() {
+        assertThat(JsonRecordSupport.convertFromDBPath("/")).isEqualTo("/");
+        assertThat(JsonRecordSupport.convertFromDBPath("/a/b/")).isEqualTo("/a/b");
+        assertThat(JsonRecordSupport.convertFromDBPath("/list/[[212/name/")).isEqualTo("/list/12/name");
+    }
+
+    @Test
+    public void testPathSegments() {
+        PathSegments segments = new PathSegments().reset("/list/[[212/name/", 1);
+        assertThat(segments.size()).isEqualTo(3);
+        assertThat(segments.matches(0, "list")).isTrue();
+        assertThat(segments.matches(0, "lis")).isFalse();
+        assertThat(segments.isArrayIndex(1)).isTrue();
+        assertThat(segments.arrayIndex(1)).isEqualTo(12);
+        assertThat(segments.get(2)).isEqualTo("name");
+
+        assertThat(segments.reset("/list/", 6).size()).isEqualTo(0);
+    }
 }
@@ -0,0 +1,189 @@
+/**
+ * Copyright (C) 2016 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.syndesis.jsondb.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import io.syndesis.jsondb.GetOptions;
+import io.syndesis.jsondb.JsonDB;
+import io.syndesis.jsondb.WriteBatch;
+
+import org.h2.jdbcx.JdbcDataSource;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.skife.jdbi.v2.DBI;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.fail;
+
+/**
+ * Unit Tests for the MemoryJsonDB implementation.
+ */
+public class MemoryJsonDBTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private SqlJsonDB sqlJsonDB;
+
+    @Before
+    public void before() {
+        JdbcDataSource ds = new JdbcDataSource();
+        ds.setURL("jdbc:h2:mem:memory-test;DB_CLOSE_DELAY=-1;MODE=PostgreSQL");
+        this.sqlJsonDB = new SqlJsonDB(new DBI(ds), null);
+
+        try {
+            this.sqlJsonDB.dropTables();
+        } catch (Exception e) {
+        }
+        this.sqlJsonDB.createTables();
+    }
+
+    /* default */ static void write(JsonDB db) {
+        db.set("/", "{\"b\": \"leaf\", \"c\": [1, 2, 3]}");
+        db.set("/dinosaurs", "{\"lambeosaurus\": {\"height\": 2.1, \"length\": 12.5}, \"linhenykus\": {\"height\": 0.6}, "
+            + "\"stegosaurus\": {\"height\": 4, \"length\": 9}, \"unknown\": {\"length\": 1}}");
+        db.set("/dinosaurs/stegosaurus/name", "\"steg\"");
+        db.update("/dinosaurs", "{\"trex/height\": 6, \"unknown\": null}");
+        db.write(new WriteBatch().set("/pair/:a", "{\"key\": \"a\"}").set("/pair/:b", "{\"key\": \"b\"}").delete("/c"));
+        db.createIfAbsent("/pair/:a", "{\"key\": \"again\"}");
+        db.replaceIfExists("/pair/:b", "{\"key\": \"b2\", \"more\": [true]}");
+        db.compareAndSet("/pair/:c", 0, "{\"key\": \"c\"}");
+        db.compareAndSet("/pair/:c", 0, "{\"key\": \"stale\"}");
+        db.delete("/pair/:a");
+        db.set("/b/x", "1");
+    }
+
+    /* default */ static List<Object> read(JsonDB db) {
+        List<Object> result = new ArrayList<>();
+        for (String path : Arrays.asList("/", "/dinosaurs", "/pair", "/pair/:b", "/b", "/missing")) {
+            result.add(db.getAsString(path));
+            result.add(db.getAsString(path, new GetOptions().shallow(true)));
+            result.add(db.exists(path));
+            result.add(db.getVersion(path));
+        }
+        result.add(db.getAsString("/dinosaurs", new GetOptions().orderByKey(true).startAt("m").limitToFirst(1)));
+        result.add(db.getAsString("/dinosaurs", new GetOptions().orderByKey(true).limitToLast(2)));
+        result.add(db.getAsString("/dinosaurs", new GetOptions().orderByChild("height").startAt(3).shallow(true)));
+        result.add(db.getAsString("/dinosaurs", new GetOptions().orderByChild("height").limitToFirst(2)));
+        result.add(db.getAsString("/dinosaurs", new GetOptions().orderByKey(true).startAt("x")));
+        result.add(db.fetchIdsByPropertyValue("/pair", "key", "b2"));
+        return result;
+    }
+
+    @Test
+    public void testSameResultsAsSqlJsonDB() {
+        MemoryJsonDB memory = new MemoryJsonDB(null);
+        write(sqlJsonDB);
+        write(memory);
+        assertThat(read(memory)).isEqualTo(read(sqlJsonDB));
+    }
+
+    @Test
+    public void testInTransaction() {
+        MemoryJsonDB db = new MemoryJsonDB(null);
+        db.set("/test", "{\"a\": 1, \"b\": 2}");
+
+        try {
+            db.useTransaction(tx -> {
+                tx.delete("/test/a");
+                tx.useTransaction(nested -> {
+                    nested.set("/test/c", "3");
+                    throw new IllegalStateException("failed");
+                });
+            });
+            fail("Expected IllegalStateException");
+        } catch (IllegalStateException e) {
+            assertThat(e.getMessage()).isEqualTo("failed");
+        }
+        assertThat(db.getAsString("/test")).isEqualTo("{\"a\":1,\"b\":2}");
+        assertThat(db.getVersion("/test")).isEqualTo(2);
+    }
+
+    @Test
+    public void testRecovery() throws IOException {
+        File directory = folder.newFolder();
+        try (MemoryJsonDB db = new MemoryJsonDB(null, directory)) {
+            write(db);
+            write(sqlJsonDB);
+        }
+        try (MemoryJsonDB db = new MemoryJsonDB(null, directory)) {
+            assertThat(read(db)).isEqualTo(read(sqlJsonDB));
+        }
+    }
+
+    @Test
+    public void testRecoveryStopsAtTornCommit() throws IOException {
+        File directory = folder.newFolder();
+        try (MemoryJsonDB db = new MemoryJsonDB(null, directory)) {
+            db.set("/test/a", "1");
+            db.set("/test/b", "2");
+        }
+
+        // corrupt the last commit like a crash in the middle of writing it would.
+        File journal = new File(directory, "journal-0");
+        try (RandomAccessFile file = new RandomAccessFile(journal, "rw")) {
+            file.seek(file.length() - 1);
+            file.write(0xff);
+        }
+
+        try (MemoryJsonDB db = new MemoryJsonDB(null, directory)) {
+            assertThat(db.getAsString("/test")).isEqualTo("{\"a\":1}");
+            db.set("/test/c", "3");
+        }
+        try (MemoryJsonDB db = new MemoryJsonDB(null, directory)) {
+            assertThat(db.getAsString("/test")).isEqualTo("{\"a\":1,\"c\":3}");
+        }
+    }
+
+    @Test
+    public void testCompaction() throws IOException {
+        File directory = folder.newFolder();
+        try (MemoryJsonDB db = new MemoryJsonDB(null, directory, 1024)) {
+            for (int i = 0; i < 100; i++) {
+                db.set("/test/:id" + (i % 10), "{\"i\": " + i + "}");
+            }
+            db.delete("/test/:id0");
+        }
+        assertThat(new File(directory, "snapshot")).exists();
+        assertThat(new File(directory, "journal-0")).doesNotExist();
+
+        try (MemoryJsonDB db = new MemoryJsonDB(null, directory)) {
+            assertThat(db.exists("/test/:id0")).isFalse();
+            assertThat(db.getVersion("/test/:id0")).isEqualTo(0);
+            assertThat(db.getAsString("/test/:id9")).isEqualTo("{\"i\":99}");
+            assertThat(db.getVersion("/test")).isEqualTo(101);
+
+            db.snapshot();
+            db.set("/test/:id1", "{\"i\": 100}");
+            db.delete("/test/:id2");
+        }
+
+        try (MemoryJsonDB db = new MemoryJsonDB(null, directory)) {
+            assertThat(db.getAsString("/test/:id1")).isEqualTo("{\"i\":100}");
+            // the journal removes the version of the deleted entity.
+            assertThat(db.getVersion("/test/:id2")).isEqualTo(0);
+            assertThat(db.getVersion("/test")).isEqualTo(103);
+        }
+    }
+}
@@ -0,0 +1,109 @@
+/**
+ * Copyright (C) 2016 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.syndesis.jsondb.impl;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.CompletableFuture;
+
+import javax.sql.DataSource;
+
+import org.h2.jdbcx.JdbcDataSource;
+import org.junit.Before;
+import org.junit.Test;
+import org.skife.jdbi.v2.DBI;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Unit tests for ReadReplicaDBI, the replicas are H2 databases that don't
+ * replicate anything, so a read tells which database it went to.
+ */
+public class ReadReplicaDBITest {
+
+    private DataSource primary;
+    private DataSource replica1;
+    private DataSource replica2;
+
+    @Before
+    public void before() {
+        primary = database("primary");
+        replica1 = database("replica1");
+        replica2 = database("replica2");
+    }
+
+    @Test
+    public void testReadYourWrites() throws Exception {
+        ReadReplicaDBI dbi = new ReadReplicaDBI(primary, Collections.singletonList(replica1), 60_000);
+        assertThat(read(dbi.reads())).isEqualTo("replica1");
+        assertThat(dbi.isSticky()).isFalse();
+
+        // reading from the primary doesn't make the thread sticky, a committed write does.
+        assertThat(read(dbi)).isEqualTo("primary");
+        assertThat(dbi.isSticky()).isFalse();
+        dbi.useHandle(h -> h.update("UPDATE test SET name = 'written'"));
+        dbi.written();
+        assertThat(dbi.isSticky()).isTrue();
+        assertThat(read(dbi.reads())).isEqualTo("written");
+
+        // only the thread that wrote is sticky.
+        assertThat(CompletableFuture.supplyAsync(() -> read(dbi.reads())).get()).isEqualTo("replica1");
+
+        dbi.endRequest();
+        assertThat(read(dbi.reads())).isEqualTo("replica1");
+    }
+
+    @Test
+    public void testStickinessExpires() {
+        ReadReplicaDBI dbi = new ReadReplicaDBI(primary, Collections.singletonList(replica1), 0);
+        dbi.useHandle(h -> h.update("UPDATE test SET name = 'written'"));
+        dbi.written();
+        assertThat(read(dbi.reads())).isEqualTo("replica1");
+    }
+
+    @Test
+    public void testRoundRobin() {
+        ReadReplicaDBI dbi = new ReadReplicaDBI(primary, Arrays.asList(replica1, replica2), 60_000);
+        assertThat(read(dbi.reads())).isEqualTo("replica1");
+        assertThat(read(dbi.reads())).isEqualTo("replica2");
+        assertThat(read(dbi.reads())).isEqualTo("replica1");
+    }
+
+    @Test
+    public void testWithoutReplicas() {
+        ReadReplicaDBI dbi = new ReadReplicaDBI(primary, Collections.emptyList(), 60_000);
+        assertThat(read(dbi.reads())).isEqualTo("primary");
+
+        DBI plain = new DBI(replica2);
+        assertThat(ReadReplicaDBI.reads(plain)).isSameAs(plain);
+        ReadReplicaDBI.written(plain);
+    }
+
+    private static DataSource database(String name) {
+        JdbcDataSource ds = new JdbcDataSource();
+        ds.setURL("jdbc:h2:mem:" + name + ";DB_CLOSE_DELAY=-1");
+        new DBI(ds).useHandle(h -> {
+            h.execute("DROP TABLE IF EXISTS test");
+            h.execute("CREATE TABLE test (name VARCHAR)");
+            h.insert("INSERT INTO test (name) VALUES (?)", name);
+        });
+        return ds;
+    }
+
+    private static String read(DBI dbi) {
+        return dbi.withHandle(h -> h.createQuery("SELECT name FROM test").mapTo(String.class).first());
+    }
+}
@@ -0,0 +1,106 @@
+/**
+ * Copyright (C) 2016 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.syndesis.jsondb.rest;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Unit test the matching of JsonDB changes to the path subscriptions.
+ */
+public class JsonDBSubscriptionsTest {
+
+    private final JsonDBSubscriptions subscriptions = new JsonDBSubscriptions(3);
+
+    @Test
+    public void testPathTrie() {
+        PathTrie<String> trie = new PathTrie<>();
+        trie.add("/", "root");
+        trie.add("/integrations/:abc", "abc");
+        trie.add("integrations/:abc/", "abc2");
+        trie.add("/integrations/:xyz/steps", "xyz");
+
+        assertThat(trie.matching("/integrations/:abc/name")).containsExactly("root", "abc", "abc2");
+        assertThat(trie.matching("/integrations")).containsOnly("root", "abc", "abc2", "xyz");
+        assertThat(trie.matching("/connections/:abc")).containsExactly("root");
+
+        assertThat(trie.remove("/integrations/:xyz/steps", "xyz")).isTrue();
+        assertThat(trie.remove("/integrations/:xyz/steps", "xyz")).isFalse();
+        assertThat(trie.matching("/integrations/:xyz")).containsExactly("root");
+
+        trie.remove("/integrations/:abc", "abc");
+        trie.remove("/integrations/:abc", "abc2");
+        trie.remove("/", "root");
+        assertThat(trie.isEmpty()).isTrue();
+    }
+
+    @Test
+    public void testChangesAreRelativeToTheSubscribedPath() throws InterruptedException {
+        try (JsonDBSubscriptions.Subscription abc = subscriptions.subscribe("integrations/:abc");
+             JsonDBSubscriptions.Subscription root = subscriptions.subscribe("/")) {
+
+            assertThat(abc.getPath()).isEqualTo("/integrations/:abc");
+
+            subscriptions.onEvent("jsondb-updated", "/integrations/:abc/name");
+            assertThat(abc.poll(0, TimeUnit.SECONDS)).isEqualTo("/name");
+            assertThat(root.poll(0, TimeUnit.SECONDS)).isEqualTo("/integrations/:abc/name");
+
+            subscriptions.onEvent("jsondb-deleted", "/integrations");
+            assertThat(abc.poll(0, TimeUnit.SECONDS)).isEqualTo("/");
+            assertThat(root.poll(0, TimeUnit.SECONDS)).isEqualTo("/integrations");
+
+            subscriptions.onEvent("jsondb-updated", "/integrations/:xyz");
+            subscriptions.onEvent("change-event", "/integrations/:abc");
+            assertThat(abc.poll(0, TimeUnit.SECONDS)).isNull();
+            assertThat(root.poll(0, TimeUnit.SECONDS)).isEqualTo("/integrations/:xyz");
+        }
+        assertThat(subscriptions.hasSubscriptions()).isFalse();
+    }
+
+    @Test
+    public void testSubscriptionsAreCapped() {
+        JsonDBSubscriptions capped = new JsonDBSubscriptions(3, 2);
+        JsonDBSubscriptions.Subscription a = capped.subscribe("/a");
+        JsonDBSubscriptions.Subscription b = capped.subscribe("/b");
+        assertThat(a).isNotNull();
+        assertThat(b).isNotNull();
+        assertThat(capped.subscribe("/c")).isNull();
+
+        // closing twice frees a single place.
+        a.close();
+        a.close();
+        JsonDBSubscriptions.Subscription c = capped.subscribe("/c");
+        assertThat(c).isNotNull();
+        assertThat(capped.subscribe("/d")).isNull();
+        b.close();
+        c.close();
+        assertThat(capped.hasSubscriptions()).isFalse();
+    }
+
+    @Test
+    public void testSlowSubscriptionGetsTheWholePath() throws InterruptedException {
+        try (JsonDBSubscriptions.Subscription abc = subscriptions.subscribe("/integrations/:abc")) {
+            for (int i = 0; i < 4; i++) {
+                subscriptions.onEvent("jsondb-updated", "/integrations/:abc/step" + i);
+            }
+            assertThat(abc.poll(0, TimeUnit.SECONDS)).isEqualTo("/");
+            assertThat(abc.poll(0, TimeUnit.SECONDS)).isNull();
+        }
+    }
+}
@@ -0,0 +1,130 @@
+/**
+ * Copyright (C) 2016 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.syndesis.rest.v1;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.OptionalLong;
+
+import javax.ws.rs.container.ContainerRequestContext;
+import javax.ws.rs.container.ContainerRequestFilter;
+import javax.ws.rs.container.ContainerResponseContext;
+import javax.ws.rs.container.ContainerResponseFilter;
+import javax.ws.rs.container.DynamicFeature;
+import javax.ws.rs.container.ResourceInfo;
+import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.FeatureContext;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.ext.Provider;
+
+import io.syndesis.dao.manager.DataManager;
+import io.syndesis.model.Kind;
+import io.syndesis.model.WithId;
+import io.syndesis.rest.v1.operations.Getter;
+import io.syndesis.rest.v1.operations.Lister;
+import io.syndesis.rest.v1.operations.Resource;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+/**
+ * Adds an ETag holding the version tracked by the {@link DataManager} to the
+ * responses of the {@link Getter} and {@link Lister} operations, and answers
+ * with a 304 when the request's If-None-Match holds the current version,
+ * without fetching the entities.  Operations overriding the default get or
+ * list are left alone since their result may depend on more than the entities.
+ */
+@Provider
+@Service
+public class EntityTagFilter implements DynamicFeature {
+
+    private final DataManager dataManager;
+
+    @Autowired
+    public EntityTagFilter(DataManager dataManager) {
+        this.dataManager = dataManager;
+    }
+
+    @Override
+    public void configure(ResourceInfo resourceInfo, FeatureContext context) {
+        Class<?> declaringClass = resourceInfo.getResourceMethod().getDeclaringClass();
+        if (declaringClass == Getter.class) {
+            context.register(new VersionFilter(dataManager, true));
+        } else if (declaringClass == Lister.class) {
+            context.register(new VersionFilter(dataManager, false));
+        }
+    }
+
+    public static class VersionFilter implements ContainerRequestFilter, ContainerResponseFilter {
+        private static final String ENTITY_TAG = VersionFilter.class.getName() + ".tag";
+
+        private final DataManager dataManager;
+        private final boolean single;
+
+        public VersionFilter(DataManager dataManager, boolean single) {
+            this.dataManager = dataManager;
+            this.single = single;
+        }
+
+        @Override
+        public void filter(ContainerRequestContext requestContext) throws IOException {
+            List<Object> resources = requestContext.getUriInfo().getMatchedResources();
+            if (resources.isEmpty() || !(resources.get(0) instanceof Resource)) {
+                return;
+            }
+
+            Kind kind = ((Resource) resources.get(0)).resourceKind();
+            OptionalLong version;
+            if (single) {
+                version = fetchVersion(kind, requestContext.getUriInfo().getPathParameters().getFirst("id"));
+            } else {
+                version = fetchAllVersion(kind);
+            }
+            if (!version.isPresent() || version.getAsLong() == 0) {
+                return;
+            }
+
+            EntityTag tag = new EntityTag(Long.toString(version.getAsLong()));
+            Response.ResponseBuilder notModified = requestContext.getRequest().evaluatePreconditions(tag);
+            if (notModified != null) {
+                requestContext.abortWith(notModified.tag(tag).build());
+                return;
+            }
+            requestContext.setProperty(ENTITY_TAG, tag);
+        }
+
+        private <T extends WithId<T>> OptionalLong fetchVersion(Kind kind, String id) {
+            Class<T> model = kind.getModelClass();
+            return dataManager.fetchVersion(model, id);
+        }
+
+        private <T extends WithId<T>> OptionalLong fetchAllVersion(Kind kind) {
+            Class<T> model = kind.getModelClass();
+            return dataManager.fetchAllVersion(model);
+        }
+
+        @Override
+        public void filter(ContainerRequestContext requestContext, ContainerResponseContext responseContext) throws IOException {
+            Object tag = requestContext.getProperty(ENTITY_TAG);
+            if (tag != null && responseContext.getStatus() == Response.Status.OK.getStatusCode()) {
+                responseContext.getHeaders().putSingle(HttpHeaders.ETAG, tag);
+                // let clients keep the response and revalidate it with the tag.
+                responseContext.getHeaders().putSingle(HttpHeaders.CACHE_CONTROL, "private, no-cache");
+            }
+        }
+    }
+}
@@ -135,15 +135,22 @@ public class IntegrationHandler extends BaseHandler
         Integration integration = this.get(id);
         models.add(new ModelData(Kind.Integration, integration));
 
+        List<Connection> connections = new ArrayList<>();
         for (Step step : integration.getSteps()) {
             Optional<Connection> c = step.getConnection();
             if( c.isPresent() ) {
-                Connection connection = c.get();
-                models.add(new ModelData(Kind.Connection, connection));
-                Connector connector = getDataManager().fetch(Connector.class, connection.getConnectorId().get());
-                if( connector != null ) {
-                    models.add(new ModelData(Kind.Connector, connector));
-                }
+                connections.add(c.get());
+            }
+        }
+
+        // fetch all the connectors at once
+        List<String> connectorIds = connections.stream().map(c -> c.getConnectorId().get()).collect(Collectors.toList());
+        List<Optional<Connector>> connectors = getDataManager().fetchMany(Connector.class, connectorIds);
+        for (int i = 0; i < connections.size(); i++) {
+            models.add(new ModelData(Kind.Connection, connections.get(i)));
+            Optional<Connector> connector = connectors.get(i);
+            if( connector.isPresent() ) {
+                models.add(new ModelData(Kind.Connector, connector.get()));
             }
         }
 
@@ -56,6 +56,7 @@ import javax.ws.rs.core.MediaType;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.Optional;
 import java.util.Set;
@@ -186,7 +187,10 @@ public class ExtensionHandler extends BaseHandler implements Lister<Extension>,
     @Path(value = "/{id}/integrations")
     public Set<ResourceIdentifier> integrations(@NotNull @PathParam("id") final String id) {
         Extension extension = getDataManager().fetch(Extension.class, id);
-        return getDataManager().fetchAll(Integration.class).getItems().stream()
+        if (extension == null) {
+            return Collections.emptySet();
+        }
+        return getDataManager().fetchAllByIndex(Integration.class, "extensionId", extension.getExtensionId()).stream()
             .filter(integration -> isIntegrationActiveAndUsingExtension(integration, extension))
             .map(this::toResourceIdentifier)
             .collect(Collectors.toSet());
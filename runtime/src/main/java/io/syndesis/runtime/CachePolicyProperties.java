@@ -0,0 +1,108 @@
+/**
+ * Copyright (C) 2016 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.syndesis.runtime;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+/**
+ * The policies of the caches of the entities, by the model name of their kind.
+ * The kinds without a policy get the default cache.
+ */
+@ConfigurationProperties("cache")
+public class CachePolicyProperties {
+
+    private final Map<String, Policy> kinds = new ConcurrentSkipListMap<>();
+
+    public Map<String, Policy> getKinds() {
+        return kinds;
+    }
+
+    public void setKinds(final Map<String, Policy> kinds) {
+        this.kinds.clear();
+        this.kinds.putAll(kinds);
+    }
+
+    public static class Policy {
+
+        // Default values ....
+
+        public static final long UNLIMITED = -1;
+
+        private long maxEntries = UNLIMITED;
+        private long maxBytes = UNLIMITED;
+        private long lifespan = UNLIMITED;
+        private long maxIdle = UNLIMITED;
+        private boolean offHeap;
+
+        /**
+         * @return the most entries kept, used when there's no {@link #getMaxBytes()}; unlimited takes cache.max.entries.
+         */
+        public long getMaxEntries() {
+            return maxEntries;
+        }
+
+        public void setMaxEntries(long maxEntries) {
+            this.maxEntries = maxEntries;
+        }
+
+        /**
+         * @return the most bytes of serialized entities kept, the entities are then stored as bytes.
+         */
+        public long getMaxBytes() {
+            return maxBytes;
+        }
+
+        public void setMaxBytes(long maxBytes) {
+            this.maxBytes = maxBytes;
+        }
+
+        /**
+         * @return the milliseconds an entry is kept after it's written.
+         */
+        public long getLifespan() {
+            return lifespan;
+        }
+
+        public void setLifespan(long lifespan) {
+            this.lifespan = lifespan;
+        }
+
+        /**
+         * @return the milliseconds an entry is kept after it's last read.
+         */
+        public long getMaxIdle() {
+            return maxIdle;
+        }
+
+        public void setMaxIdle(long maxIdle) {
+            this.maxIdle = maxIdle;
+        }
+
+        /**
+         * @return whether the entities are stored as bytes outside of the heap.
+         */
+        public boolean isOffHeap() {
+            return offHeap;
+        }
+
+        public void setOffHeap(boolean offHeap) {
+            this.offHeap = offHeap;
+        }
+    }
+}
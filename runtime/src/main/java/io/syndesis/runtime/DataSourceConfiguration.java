@@ -15,11 +15,23 @@
  */
 package io.syndesis.runtime;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import io.syndesis.jsondb.impl.ReadReplicaDBI;
 import org.skife.jdbi.v2.DBI;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.jdbc.DataSourceProperties;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.web.filter.OncePerRequestFilter;
 
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
 import javax.sql.DataSource;
 
 /**
@@ -29,8 +41,35 @@ import javax.sql.DataSource;
 public class DataSourceConfiguration {
 
     @Bean
-    public DBI dbiBean(@Autowired DataSource dataSource) {
-        return new DBI(dataSource);
+    public DBI dbiBean(@Autowired DataSource dataSource, @Autowired DataSourceProperties properties,
+                       @Value("${datasource.read-replicas:}") String[] replicaUrls,
+                       @Value("${datasource.read-stickiness:1000}") long stickiness) {
+        if (replicaUrls.length == 0) {
+            return new DBI(dataSource);
+        }
+        // The replicas are accessed with the credentials and driver of the primary.
+        List<DataSource> replicas = new ArrayList<>();
+        for (String url : replicaUrls) {
+            replicas.add(properties.initializeDataSourceBuilder().url(url).build());
+        }
+        return new ReadReplicaDBI(dataSource, replicas, stickiness);
+    }
+
+    @Bean
+    public OncePerRequestFilter readReplicaRequestFilter(@Autowired DBI dbi) {
+        return new OncePerRequestFilter() {
+            @Override
+            protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain chain) throws ServletException, IOException {
+                try {
+                    chain.doFilter(request, response);
+                } finally {
+                    // the next request of the thread doesn't need to see the writes of this one.
+                    if (dbi instanceof ReadReplicaDBI) {
+                        ((ReadReplicaDBI) dbi).endRequest();
+                    }
+                }
+            }
+        };
     }
 
 }
@@ -15,9 +15,16 @@
  */
 package io.syndesis.runtime;
 
+import java.util.Arrays;
+
+import io.syndesis.core.EventBus;
+import io.syndesis.jsondb.impl.ExpirySweeper;
+import io.syndesis.jsondb.impl.Index;
 import io.syndesis.jsondb.impl.SqlJsonDB;
+import io.syndesis.jsondb.rest.JsonDBSubscriptions;
 import org.skife.jdbi.v2.DBI;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 
@@ -28,15 +35,46 @@ import org.springframework.context.annotation.Configuration;
 public class DataStoreConfiguration {
 
     @Bean
+    public JsonDBSubscriptions jsondbSubscriptions(@Value("${jsondb.subscriptions.max:50}") int maxSubscriptions) {
+        return new JsonDBSubscriptions(JsonDBSubscriptions.DEFAULT_QUEUE_SIZE, maxSubscriptions);
+    }
+
+    @Bean(destroyMethod = "disableGroupCommit")
     @Autowired
     @SuppressWarnings("PMD.EmptyCatchBlock")
-    public SqlJsonDB realTimeDB(DBI dbi) {
-        SqlJsonDB jsondb = new SqlJsonDB(dbi, null);
+    public SqlJsonDB realTimeDB(DBI dbi, @Value("${jsondb.fetch-size:1000}") int fetchSize,
+                                @Value("${jsondb.document-collections:}") String[] documentCollections,
+                                @Value("${jsondb.partitioned-collections:}") String[] partitionedCollections,
+                                @Value("${jsondb.group-commit.max-delay:0}") long groupCommitDelay,
+                                @Value("${jsondb.group-commit.max-writes:100}") int groupCommitWrites,
+                                JsonDBSubscriptions subscriptions) {
+        // The jsondb events get their own bus, they are only of interest to
+        // the path subscriptions and not to the UI event streams.
+        EventBus bus = new SimpleEventBus();
+        bus.subscribe("jsondb-subscriptions", subscriptions);
+        SqlJsonDB jsondb = new SqlJsonDB(dbi, bus, Arrays.asList(
+            // Used to validate @UniqueProperty constraints
+            Index.of("/connections", "name"),
+            Index.of("/integrations", "name"),
+            // Used to find the installed version of an extension
+            Index.of("/extensions", "extensionId")
+        ), Arrays.asList(documentCollections));
+        jsondb.setFetchSize(fetchSize);
+        jsondb.setPartitionedCollections(Arrays.asList(partitionedCollections));
         try {
             jsondb.createTables();
         } catch (@SuppressWarnings("PMD.AvoidCatchingGenericException") Exception ignore) {
         }
+        if (groupCommitDelay > 0) {
+            jsondb.enableGroupCommit(groupCommitDelay, groupCommitWrites);
+        }
         return jsondb;
     }
 
+    @Bean(initMethod = "start", destroyMethod = "stop")
+    @Autowired
+    public ExpirySweeper jsondbExpirySweeper(SqlJsonDB jsondb, @Value("${jsondb.expiry-sweep-period:60000}") long period) {
+        return new ExpirySweeper(jsondb, period);
+    }
+
 }
@@ -17,6 +17,7 @@ package io.syndesis.runtime;
 
 import io.syndesis.filestore.FileStore;
 import io.syndesis.filestore.impl.SqlFileStore;
+import io.syndesis.jsondb.impl.ReadReplicaDBI;
 import org.skife.jdbi.v2.DBI;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
@@ -33,7 +34,7 @@ public class FileStoreConfiguration {
     @Bean
     @Autowired
     public FileStore fileStore(DBI dbi) {
-        SqlFileStore fileStore = new SqlFileStore(dbi);
+        SqlFileStore fileStore = new SqlFileStore(dbi, () -> ReadReplicaDBI.reads(dbi), () -> ReadReplicaDBI.written(dbi));
         fileStore.init();
         return fileStore;
     }
@@ -15,20 +15,30 @@
  */
 package io.syndesis.runtime;
 
+import java.util.Map;
+
+import io.syndesis.model.Kind;
 import org.infinispan.configuration.cache.ConfigurationBuilder;
+import org.infinispan.configuration.cache.StorageType;
 import org.infinispan.configuration.global.GlobalConfigurationBuilder;
 import org.infinispan.eviction.EvictionType;
 import org.infinispan.manager.DefaultCacheManager;
 import org.infinispan.manager.EmbeddedCacheManager;
 import org.infinispan.spring.provider.SpringEmbeddedCacheManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.properties.EnableConfigurationProperties;
 import org.springframework.cache.CacheManager;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 
 @Configuration
+@EnableConfigurationProperties(CachePolicyProperties.class)
 public class InfinispanCacheConfiguration {
 
+    private static final Logger LOG = LoggerFactory.getLogger(InfinispanCacheConfiguration.class);
+
     private static CacheManager cacheManager;
     private static EmbeddedCacheManager embeddedCacheManager;
 
@@ -36,13 +46,21 @@ public class InfinispanCacheConfiguration {
     private int maxEntries;
 
     @Bean
-    public EmbeddedCacheManager embeddedCacheManager() {
+    public EmbeddedCacheManager embeddedCacheManager(final CachePolicyProperties policies) {
         if (embeddedCacheManager == null) {
             embeddedCacheManager = new DefaultCacheManager(
                     new GlobalConfigurationBuilder().nonClusteredDefault().globalJmxStatistics().enable()
                             .defaultCacheName("syndesis-cache").build(),
                     new ConfigurationBuilder().simpleCache(true).memory().evictionType(EvictionType.COUNT)
                             .size(maxEntries).jmxStatistics().enable().build());
+            for (Map.Entry<String, CachePolicyProperties.Policy> policy : policies.getKinds().entrySet()) {
+                Kind kind = kind(policy.getKey());
+                if (kind == null) {
+                    LOG.warn("Ignoring the cache policy of {}, which isn't a kind", policy.getKey());
+                    continue;
+                }
+                embeddedCacheManager.defineConfiguration(kind.getModelName(), configuration(policy.getValue()));
+            }
         }
         return embeddedCacheManager;
     }
@@ -54,4 +72,39 @@ public class InfinispanCacheConfiguration {
         }
         return cacheManager;
     }
+
+    private static Kind kind(String modelName) {
+        for (Kind kind : Kind.values()) {
+            if (kind.getModelName().equals(modelName)) {
+                return kind;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * A cache bounded by bytes weighs its entries by their serialized size,
+     * which needs them stored as bytes, and the DataManager then keeps the
+     * entities as JSON.  The other caches hold the entities as they are,
+     * unless they're off the heap.
+     */
+    private org.infinispan.configuration.cache.Configuration configuration(CachePolicyProperties.Policy policy) {
+        ConfigurationBuilder builder = new ConfigurationBuilder();
+        if (policy.getMaxBytes() > 0) {
+            builder.memory()
+                .storageType(policy.isOffHeap() ? StorageType.OFF_HEAP : StorageType.BINARY)
+                .evictionType(EvictionType.MEMORY)
+                .size(policy.getMaxBytes());
+        } else {
+            builder.simpleCache(!policy.isOffHeap())
+                .memory()
+                .storageType(policy.isOffHeap() ? StorageType.OFF_HEAP : StorageType.OBJECT)
+                .evictionType(EvictionType.COUNT)
+                .size(policy.getMaxEntries() > 0 ? policy.getMaxEntries() : maxEntries);
+        }
+        builder.expiration()
+            .lifespan(policy.getLifespan())
+            .maxIdle(policy.getMaxIdle());
+        return builder.jmxStatistics().enable().build();
+    }
 }
@@ -0,0 +1,92 @@
+/**
+ * Copyright (C) 2016 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.syndesis.runtime;
+
+import java.util.Collections;
+
+import io.syndesis.model.connection.Connector;
+
+import org.junit.Test;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class EntityTagsITCase extends BaseITCase {
+
+    @Test
+    public void getShouldBeTaggedWithTheVersion() {
+        String tag = getTagged("/api/v1/connectors/twitter");
+
+        // the same version isn't sent again.
+        get("/api/v1/connectors/twitter", tag, HttpStatus.NOT_MODIFIED);
+
+        Connector twitter = dataManager.fetch(Connector.class, "twitter");
+        dataManager.update(new Connector.Builder().createFrom(twitter).description("changed").build());
+
+        ResponseEntity<String> changed = get("/api/v1/connectors/twitter", tag, HttpStatus.OK);
+        assertThat(changed.getHeaders().getETag()).isNotNull().isNotEqualTo(tag);
+        assertThat(changed.getBody()).contains("changed");
+    }
+
+    @Test
+    public void listTagShouldChangeWhenOneEntityChanges() {
+        String listTag = getTagged("/api/v1/connectors");
+        String otherTag = getTagged("/api/v1/connectors/salesforce");
+        get("/api/v1/connectors", listTag, HttpStatus.NOT_MODIFIED);
+
+        Connector twitter = dataManager.fetch(Connector.class, "twitter");
+        dataManager.update(new Connector.Builder().createFrom(twitter).description("changed").build());
+
+        ResponseEntity<String> changed = get("/api/v1/connectors", listTag, HttpStatus.OK);
+        assertThat(changed.getHeaders().getETag()).isNotNull().isNotEqualTo(listTag);
+        // the entities that didn't change keep their tag.
+        get("/api/v1/connectors/salesforce", otherTag, HttpStatus.NOT_MODIFIED);
+    }
+
+    @Test
+    public void jsondbGetShouldBeTaggedWithTheVersion() {
+        put("/api/v1/jsondb/tagged/:one.json", Collections.singletonMap("name", "one"), null, tokenRule.validToken(), HttpStatus.NO_CONTENT);
+        put("/api/v1/jsondb/tagged/:two.json", Collections.singletonMap("name", "two"), null, tokenRule.validToken(), HttpStatus.NO_CONTENT);
+
+        String tag = getTagged("/api/v1/jsondb/tagged/:one.json");
+        String collectionTag = getTagged("/api/v1/jsondb/tagged.json");
+        get("/api/v1/jsondb/tagged/:one.json", tag, HttpStatus.NOT_MODIFIED);
+        get("/api/v1/jsondb/tagged.json", collectionTag, HttpStatus.NOT_MODIFIED);
+
+        put("/api/v1/jsondb/tagged/:one.json", Collections.singletonMap("name", "changed"), null, tokenRule.validToken(), HttpStatus.NO_CONTENT);
+
+        ResponseEntity<String> changed = get("/api/v1/jsondb/tagged/:one.json", tag, HttpStatus.OK);
+        assertThat(changed.getHeaders().getETag()).isNotNull().isNotEqualTo(tag);
+        assertThat(changed.getBody()).isEqualTo("{\"name\":\"changed\"}");
+        assertThat(get("/api/v1/jsondb/tagged.json", collectionTag, HttpStatus.OK).getHeaders().getETag()).isNotEqualTo(collectionTag);
+    }
+
+    private String getTagged(String url) {
+        ResponseEntity<String> response = get(url, String.class);
+        String tag = response.getHeaders().getETag();
+        assertThat(tag).as("ETag of " + url).isNotNull();
+        return tag;
+    }
+
+    private ResponseEntity<String> get(String url, String ifNoneMatch, HttpStatus expectedStatus) {
+        HttpHeaders headers = new HttpHeaders();
+        headers.setIfNoneMatch(ifNoneMatch);
+        return http(HttpMethod.GET, url, null, String.class, tokenRule.validToken(), headers, expectedStatus);
+    }
+}